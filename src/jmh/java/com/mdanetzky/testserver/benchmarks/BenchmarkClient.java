@@ -0,0 +1,116 @@
+package com.mdanetzky.testserver.benchmarks;
+
+import com.mdanetzky.testserver.SimpleHttpServer;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+class BenchmarkClient {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    static long get(String url) throws IOException {
+        HttpURLConnection connection = openConnection(url);
+        return readFully(connection.getInputStream());
+    }
+
+    static long get(String url, String acceptEncoding) throws IOException {
+        HttpURLConnection connection = openConnection(url);
+        connection.setRequestProperty("Accept-Encoding", acceptEncoding);
+        return readFully(connection.getInputStream());
+    }
+
+    static long post(String url, byte[] body) throws IOException {
+        HttpURLConnection connection = openConnection(url);
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        try (OutputStream os = connection.getOutputStream()) {
+            os.write(body);
+        }
+        return readFully(connection.getInputStream());
+    }
+
+    static long getOverNewTlsConnection(String url, boolean invalidateSession) throws IOException {
+        URL target = new URL(url);
+        try (SSLSocket socket = (SSLSocket) SimpleHttpServer.getSslContext().getSocketFactory()
+                .createSocket(target.getHost(), target.getPort())) {
+            socket.setTcpNoDelay(true);
+            socket.getOutputStream().write(getRequest(target.getPath()));
+            long length = readFully(socket.getInputStream());
+            if (invalidateSession)
+                socket.getSession().invalidate();
+            return length;
+        }
+    }
+
+    static long getWithSlowConnections(String url, int connections, long delayMillis)
+            throws IOException, InterruptedException {
+        URL target = new URL(url);
+        byte[] request = getRequest(target.getPath());
+        int half = request.length / 2;
+        List<SocketChannel> channels = new ArrayList<>(connections);
+        try {
+            for (int i = 0; i < connections; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(target.getHost(), target.getPort()));
+                channels.add(channel);
+                channel.write(ByteBuffer.wrap(request, 0, half));
+            }
+            Thread.sleep(delayMillis);
+            for (SocketChannel channel : channels)
+                channel.write(ByteBuffer.wrap(request, half, request.length - half));
+            long total = 0;
+            for (SocketChannel channel : channels)
+                total += readFully(channel);
+            return total;
+        } finally {
+            for (SocketChannel channel : channels)
+                channel.close();
+        }
+    }
+
+    private static byte[] getRequest(String path) {
+        String request = "GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+        return request.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static HttpURLConnection openConnection(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        if (connection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(SimpleHttpServer.getSslContext().getSocketFactory());
+            ((HttpsURLConnection) connection).setHostnameVerifier((s, sslSession) -> true);
+        }
+        return connection;
+    }
+
+    private static long readFully(InputStream in) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        int count;
+        while ((count = in.read(buffer)) != -1)
+            total += count;
+        in.close();
+        return total;
+    }
+
+    private static long readFully(SocketChannel channel) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long total = 0;
+        int count;
+        while ((count = channel.read(buffer)) != -1) {
+            total += count;
+            buffer.clear();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,60 @@
+package com.mdanetzky.testserver.benchmarks;
+
+import com.mdanetzky.testserver.SimpleHttpServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    private static final int TEXT_LENGTH = 1024 * 1024;
+    private static final long GENERATED_LENGTH = 16 * 1024 * 1024;
+
+    @Param({"JDK", "NIO"})
+    public SimpleHttpServer.Engine engine;
+
+    @Param({"identity", "gzip", "deflate"})
+    public String acceptEncoding;
+
+    @Param({"precompressedText", "streamedGenerated"})
+    public String content;
+
+    private String url;
+
+    @Setup
+    public void setUp() throws IOException {
+        SimpleHttpServer.Builder builder = SimpleHttpServer.getBuilder()
+                .setEngine(engine)
+                .setCompression(SimpleHttpServer.Encoding.GZIP, SimpleHttpServer.Encoding.DEFLATE);
+        if ("precompressedText".equals(content))
+            builder.setContent(getText());
+        else
+            builder.setGeneratedContent(GENERATED_LENGTH, 42);
+        url = builder.start();
+    }
+
+    private static String getText() {
+        StringBuilder text = new StringBuilder(TEXT_LENGTH);
+        for (int row = 0; text.length() < TEXT_LENGTH; row++)
+            text.append("<tr><td>").append(row).append("</td><td>row ").append(row * 31 % 977)
+                    .append("</td></tr>\n");
+        return text.substring(0, TEXT_LENGTH);
+    }
+
+    @TearDown
+    public void tearDown() {
+        SimpleHttpServer.stop();
+    }
+
+    @Benchmark
+    public long get() throws IOException {
+        return BenchmarkClient.get(url, acceptEncoding);
+    }
+}
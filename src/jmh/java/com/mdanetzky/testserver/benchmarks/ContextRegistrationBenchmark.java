@@ -0,0 +1,49 @@
+package com.mdanetzky.testserver.benchmarks;
+
+import com.mdanetzky.testserver.SimpleHttpServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextRegistrationBenchmark {
+
+    @Param({"CONTEXT_PER_HANDLER", "DISPATCH"})
+    public SimpleHttpServer.Routing routing;
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        SimpleHttpServer.stop();
+    }
+
+    @Benchmark
+    public String start() throws IOException {
+        return SimpleHttpServer.getBuilder()
+                .setRouting(routing)
+                .setContent("content")
+                .start();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String startConcurrently() throws IOException {
+        return start();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String startAndCloseConcurrently() throws IOException {
+        SimpleHttpServer.ContextHandle context = SimpleHttpServer.getBuilder()
+                .setRouting(routing)
+                .setContent("content")
+                .startContext();
+        context.close();
+        return context.getUrl();
+    }
+}
@@ -0,0 +1,45 @@
+package com.mdanetzky.testserver.benchmarks;
+
+import com.mdanetzky.testserver.SimpleHttpServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EchoBenchmark {
+
+    @Param({"JDK", "NIO"})
+    public SimpleHttpServer.Engine engine;
+
+    @Param({"0", "1024", "1048576", "16777216"})
+    public int bodySize;
+
+    private String url;
+    private byte[] body;
+
+    @Setup
+    public void setUp() throws IOException {
+        body = new byte[bodySize];
+        new Random(42).nextBytes(body);
+        url = SimpleHttpServer.getBuilder()
+                .setEngine(engine)
+                .startEcho();
+    }
+
+    @TearDown
+    public void tearDown() {
+        SimpleHttpServer.stop();
+    }
+
+    @Benchmark
+    public long post() throws IOException {
+        return BenchmarkClient.post(url, body);
+    }
+}
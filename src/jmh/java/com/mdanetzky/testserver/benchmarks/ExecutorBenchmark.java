@@ -0,0 +1,81 @@
+package com.mdanetzky.testserver.benchmarks;
+
+import com.mdanetzky.testserver.SimpleHttpServer;
+import com.mdanetzky.testserver.SimpleHttpServer.ServerExecutors;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExecutorBenchmark {
+
+    @Param({"cached", "bounded", "workStealing", "virtual"})
+    public String executor;
+
+    @Param({"10000"})
+    public int connections;
+
+    @Param({"200"})
+    public long delayMillis;
+
+    private String url;
+
+    @Setup
+    public void setUp() throws IOException {
+        url = SimpleHttpServer.getBuilder()
+                .setExecutor(getExecutorFactory())
+                .setContent("content")
+                .start();
+    }
+
+    private SimpleHttpServer.ExecutorFactory getExecutorFactory() {
+        switch (executor) {
+            case "bounded":
+                return ServerExecutors.boundedThreadPool(64, connections,
+                        SimpleHttpServer.RejectionPolicy.OVERFLOW_THREAD);
+            case "workStealing":
+                return ServerExecutors.workStealingPool(Runtime.getRuntime().availableProcessors());
+            case "virtual":
+                return ServerExecutors.virtualThreadPerExchange();
+            default:
+                return ServerExecutors.cachedThreadPool();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        SimpleHttpServer.stop();
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class ThreadFootprint {
+
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        public long peakThreads;
+
+        @Setup(Level.Invocation)
+        public void resetPeak() {
+            threads.resetPeakThreadCount();
+        }
+
+        void record() {
+            peakThreads = threads.getPeakThreadCount();
+        }
+    }
+
+    @Benchmark
+    public long slowConnections(ThreadFootprint footprint) throws IOException, InterruptedException {
+        long received = BenchmarkClient.getWithSlowConnections(url, connections, delayMillis);
+        footprint.record();
+        return received;
+    }
+}
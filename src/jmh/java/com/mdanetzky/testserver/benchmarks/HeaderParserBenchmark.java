@@ -0,0 +1,27 @@
+package com.mdanetzky.testserver.benchmarks;
+
+import com.mdanetzky.testserver.SimpleHttpServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeaderParserBenchmark {
+
+    private static final String HEADERS = "Content-Type: text/html; charset=UTF-8\n" +
+            "Cache-Control: no-cache, no-store\n" +
+            "Set-Cookie: session=abc123; Path=/; HttpOnly\n" +
+            "Set-Cookie: theme=dark; Path=/\n" +
+            "X-Request-Id: 4f2c8a9e-1b7d-4e3a-9c5f-2d8b6a1e0f3c\n" +
+            "Location: http://localhost/redirected";
+
+    @Benchmark
+    public SimpleHttpServer.Builder parseHeaders() {
+        return SimpleHttpServer.getBuilder().setHeaders(HEADERS);
+    }
+}
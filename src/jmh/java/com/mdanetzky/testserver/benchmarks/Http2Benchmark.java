@@ -0,0 +1,209 @@
+package com.mdanetzky.testserver.benchmarks;
+
+import com.mdanetzky.testserver.SimpleHttpServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Http2Benchmark {
+
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int SETTINGS = 0x4;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int END_STREAM = 0x1;
+    private static final int END_HEADERS = 0x4;
+
+    @Param({"HTTP1", "HTTP2"})
+    public String protocol;
+
+    @Param({"1", "16"})
+    public int requests;
+
+    @Param({"16", "16384"})
+    public int contentLength;
+
+    private URI uri;
+
+    @Setup
+    public void setUp() throws IOException {
+        uri = URI.create(SimpleHttpServer.getBuilder()
+                .setEngine(SimpleHttpServer.Engine.NIO)
+                .setHttp2(true)
+                .setGeneratedContent(contentLength, 1)
+                .start());
+    }
+
+    @TearDown
+    public void tearDown() {
+        SimpleHttpServer.stop();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        private final ByteBuffer input = ByteBuffer.allocate(256 * 1024);
+        private final ByteBuffer control = ByteBuffer.allocate(64);
+        private SocketChannel channel;
+        private boolean http2;
+        private int requests;
+        private byte[] request;
+        private byte[] headerBlock;
+        private ByteBuffer frames;
+        private int nextStreamId = 1;
+
+        @Setup
+        public void setUp(Http2Benchmark benchmark) throws IOException {
+            channel = SocketChannel.open(new InetSocketAddress(benchmark.uri.getHost(), benchmark.uri.getPort()));
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            http2 = "HTTP2".equals(benchmark.protocol);
+            requests = benchmark.requests;
+            input.flip();
+            String path = benchmark.uri.getRawPath();
+            if (!http2) {
+                request = ("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                return;
+            }
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            block.write(0x82);
+            block.write(0x86);
+            block.write(0x04);
+            block.write(path.length());
+            block.write(path.getBytes(StandardCharsets.ISO_8859_1), 0, path.length());
+            block.write(0x01);
+            block.write("localhost".length());
+            block.write("localhost".getBytes(StandardCharsets.ISO_8859_1), 0, "localhost".length());
+            headerBlock = block.toByteArray();
+            frames = ByteBuffer.allocate(requests * (9 + headerBlock.length));
+            control.clear();
+            control.put("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            putFrameHeader(control, 6, SETTINGS, 0, 0);
+            control.putShort((short) 0x4).putInt(1 << 24);
+            control.flip();
+            write(control);
+            writeWindowUpdate((1 << 30) - 65535);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            channel.close();
+        }
+
+        private long fetch() throws IOException {
+            return http2 ? fetchMultiplexed() : fetchSequentially();
+        }
+
+        private long fetchSequentially() throws IOException {
+            long total = 0;
+            for (int i = 0; i < requests; i++) {
+                write(ByteBuffer.wrap(request));
+                total += readResponse();
+            }
+            return total;
+        }
+
+        private long readResponse() throws IOException {
+            int headEnd;
+            while ((headEnd = findHeadEnd()) < 0)
+                fill(input.remaining() + 1);
+            String head = new String(input.array(), input.position(), headEnd - input.position(),
+                    StandardCharsets.ISO_8859_1).toLowerCase();
+            int start = head.indexOf("content-length:") + "content-length:".length();
+            int length = Integer.parseInt(head.substring(start, head.indexOf('\r', start)).trim());
+            input.position(headEnd);
+            fill(length);
+            input.position(input.position() + length);
+            return length;
+        }
+
+        private int findHeadEnd() {
+            for (int i = input.position() + 3; i < input.limit(); i++)
+                if (input.get(i) == '\n' && input.get(i - 1) == '\r' && input.get(i - 2) == '\n')
+                    return i + 1;
+            return -1;
+        }
+
+        private long fetchMultiplexed() throws IOException {
+            frames.clear();
+            for (int i = 0; i < requests; i++) {
+                putFrameHeader(frames, headerBlock.length, HEADERS, END_STREAM | END_HEADERS, nextStreamId);
+                frames.put(headerBlock);
+                nextStreamId += 2;
+            }
+            frames.flip();
+            write(frames);
+            long total = 0;
+            int open = requests;
+            while (open > 0) {
+                fill(9);
+                int length = (input.get(input.position()) & 0xff) << 16 | input.getShort(input.position() + 1) & 0xffff;
+                int type = input.get(input.position() + 3);
+                int flags = input.get(input.position() + 4);
+                fill(9 + length);
+                input.position(input.position() + 9 + length);
+                if (type == DATA)
+                    total += length;
+                else if (type == SETTINGS && (flags & 0x1) == 0)
+                    writeSettingsAck();
+                if ((type == DATA || type == HEADERS) && (flags & END_STREAM) != 0)
+                    open--;
+            }
+            if (total > 0)
+                writeWindowUpdate((int) total);
+            return total;
+        }
+
+        private void fill(int length) throws IOException {
+            while (input.remaining() < length) {
+                input.compact();
+                if (channel.read(input) < 0)
+                    throw new IOException("Connection closed");
+                input.flip();
+            }
+        }
+
+        private void writeSettingsAck() throws IOException {
+            control.clear();
+            putFrameHeader(control, 0, SETTINGS, 0x1, 0);
+            control.flip();
+            write(control);
+        }
+
+        private void writeWindowUpdate(int increment) throws IOException {
+            control.clear();
+            putFrameHeader(control, 4, WINDOW_UPDATE, 0, 0);
+            control.putInt(increment);
+            control.flip();
+            write(control);
+        }
+
+        private static void putFrameHeader(ByteBuffer buffer, int length, int type, int flags, int streamId) {
+            buffer.put((byte) (length >>> 16)).putShort((short) length).put((byte) type).put((byte) flags)
+                    .putInt(streamId);
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+    }
+
+    @Benchmark
+    public long fetch(Client client) throws IOException {
+        return client.fetch();
+    }
+}
@@ -0,0 +1,46 @@
+package com.mdanetzky.testserver.benchmarks;
+
+import com.mdanetzky.testserver.SimpleHttpServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpsBenchmark {
+
+    private String url;
+
+    @Setup
+    public void setUp() throws IOException {
+        url = SimpleHttpServer.getBuilder()
+                .setSsl()
+                .setContent("content")
+                .start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        SimpleHttpServer.stop();
+    }
+
+    @Benchmark
+    public long keepAliveRequest() throws IOException {
+        return BenchmarkClient.get(url);
+    }
+
+    @Benchmark
+    public long resumedHandshakeAndRequest() throws IOException {
+        return BenchmarkClient.getOverNewTlsConnection(url, false);
+    }
+
+    @Benchmark
+    public long fullHandshakeAndRequest() throws IOException {
+        return BenchmarkClient.getOverNewTlsConnection(url, true);
+    }
+}
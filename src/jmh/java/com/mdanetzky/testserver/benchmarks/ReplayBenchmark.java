@@ -0,0 +1,59 @@
+package com.mdanetzky.testserver.benchmarks;
+
+import com.mdanetzky.testserver.SimpleHttpServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplayBenchmark {
+
+    private static final int BODY_LENGTH = 1024;
+
+    @Param({"JDK", "NIO"})
+    public SimpleHttpServer.Engine engine;
+
+    @Param({"1000", "100000"})
+    public int responses;
+
+    private Path archive;
+    private String url;
+
+    @Setup
+    public void setUp() throws IOException {
+        archive = Files.createTempFile("ReplayBenchmark", ".archive");
+        Files.delete(archive);
+        String backend = SimpleHttpServer.getBuilder()
+                .setGeneratedContent(BODY_LENGTH, 1)
+                .start();
+        SimpleHttpServer.ContextHandle recorder = SimpleHttpServer.getBuilder()
+                .startRecorderContext(backend, archive);
+        for (int i = 0; i < responses; i++)
+            BenchmarkClient.get(recorder.getUrl() + "/" + i);
+        recorder.close();
+        url = SimpleHttpServer.getBuilder()
+                .setEngine(engine)
+                .startReplay(archive) + "/";
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        SimpleHttpServer.stop();
+        Files.deleteIfExists(archive);
+        Files.deleteIfExists(archive.resolveSibling(archive.getFileName() + ".idx"));
+    }
+
+    @Benchmark
+    public long replay() throws IOException {
+        return BenchmarkClient.get(url + ThreadLocalRandom.current().nextInt(responses));
+    }
+}
@@ -0,0 +1,47 @@
+package com.mdanetzky.testserver.benchmarks;
+
+import com.mdanetzky.testserver.SimpleHttpServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class RequestLimiterBenchmark {
+
+    @Param({"JDK", "NIO"})
+    public SimpleHttpServer.Engine engine;
+
+    @Param({"none", "concurrency", "rate", "both"})
+    public String limit;
+
+    private String url;
+
+    @Setup
+    public void setUp() throws IOException {
+        SimpleHttpServer.Builder builder = SimpleHttpServer.getBuilder()
+                .setEngine(engine)
+                .setContent("content");
+        if ("concurrency".equals(limit) || "both".equals(limit))
+            builder.setMaxConcurrentRequests(1024);
+        if ("rate".equals(limit) || "both".equals(limit))
+            builder.setRateLimit(1e9, 1024);
+        url = builder.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        SimpleHttpServer.stop();
+    }
+
+    @Benchmark
+    public long get() throws IOException {
+        return BenchmarkClient.get(url);
+    }
+}
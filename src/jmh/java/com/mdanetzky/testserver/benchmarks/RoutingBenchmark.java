@@ -0,0 +1,43 @@
+package com.mdanetzky.testserver.benchmarks;
+
+import com.mdanetzky.testserver.SimpleHttpServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoutingBenchmark {
+
+    @Param({"CONTEXT_PER_HANDLER", "DISPATCH"})
+    public SimpleHttpServer.Routing routing;
+
+    @Param({"10", "10000"})
+    public int contexts;
+
+    private String url;
+
+    @Setup
+    public void setUp() throws IOException {
+        SimpleHttpServer.Builder builder = SimpleHttpServer.getBuilder()
+                .setRouting(routing)
+                .setContent("content");
+        for (int i = 0; i < contexts; i++)
+            url = builder.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        SimpleHttpServer.stop();
+    }
+
+    @Benchmark
+    public long get() throws IOException {
+        return BenchmarkClient.get(url);
+    }
+}
@@ -0,0 +1,56 @@
+package com.mdanetzky.testserver.benchmarks;
+
+import com.mdanetzky.testserver.SimpleHttpServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class ShardBenchmark {
+
+    @Param({"1", "2", "4"})
+    public int shards;
+
+    private final List<String> urls = new ArrayList<>();
+    private final AtomicInteger nextUrl = new AtomicInteger();
+
+    @Setup
+    public void setUp() throws IOException {
+        SimpleHttpServer.Builder builder = SimpleHttpServer.getBuilder()
+                .setShards(shards)
+                .setContent("content");
+        for (int i = 0; i < shards * 4; i++)
+            urls.add(builder.start());
+    }
+
+    @TearDown
+    public void tearDown() {
+        SimpleHttpServer.stop();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        private String url;
+
+        @Setup
+        public void setUp(ShardBenchmark benchmark) {
+            url = benchmark.urls.get(benchmark.nextUrl.getAndIncrement() % benchmark.urls.size());
+        }
+    }
+
+    @Benchmark
+    public long get(Client client) throws IOException {
+        return BenchmarkClient.get(client.url);
+    }
+}
@@ -0,0 +1,48 @@
+package com.mdanetzky.testserver.benchmarks;
+
+import com.mdanetzky.testserver.SimpleHttpServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SinkBenchmark {
+
+    private static final int BODY_LENGTH = 16 * 1024 * 1024;
+
+    @Param({"JDK", "NIO"})
+    public SimpleHttpServer.Engine engine;
+
+    @Param({"CRC32C", "SHA_256"})
+    public SimpleHttpServer.Digest digest;
+
+    private byte[] body;
+    private String url;
+
+    @Setup
+    public void setUp() throws IOException {
+        body = new byte[BODY_LENGTH];
+        ThreadLocalRandom.current().nextBytes(body);
+        url = SimpleHttpServer.getBuilder()
+                .setEngine(engine)
+                .setSinkDigest(digest)
+                .startSink();
+    }
+
+    @TearDown
+    public void tearDown() {
+        SimpleHttpServer.stop();
+    }
+
+    @Benchmark
+    public long upload() throws IOException {
+        return BenchmarkClient.post(url, body);
+    }
+}
@@ -0,0 +1,66 @@
+package com.mdanetzky.testserver.benchmarks;
+
+import com.mdanetzky.testserver.SimpleHttpServer;
+import com.sun.net.httpserver.HttpHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StaticContentBenchmark {
+
+    @Param({"JDK", "NIO"})
+    public SimpleHttpServer.Engine engine;
+
+    @Param({"16", "1048576"})
+    public int contentLength;
+
+    @Param({"snapshot", "mutableBuilder"})
+    public String handler;
+
+    private String url;
+
+    @Setup
+    public void setUp() throws IOException {
+        char[] content = new char[contentLength];
+        Arrays.fill(content, 'x');
+        Map<String, List<String>> headers = new LinkedHashMap<>();
+        headers.put("Content-Type", Collections.singletonList("application/octet-stream"));
+        headers.put("Cache-Control", Collections.singletonList("no-cache"));
+        SimpleHttpServer.Builder builder = SimpleHttpServer.getBuilder()
+                .setEngine(engine)
+                .setHeaders(headers)
+                .setContent(new String(content));
+        if ("mutableBuilder".equals(handler))
+            builder.setHandler(getMutableBuilderHandler(headers, new String(content).getBytes()));
+        url = builder.start();
+    }
+
+    private static HttpHandler getMutableBuilderHandler(Map<String, List<String>> headers, byte[] content) {
+        return httpExchange -> {
+            httpExchange.getResponseHeaders().putAll(headers);
+            httpExchange.sendResponseHeaders(200, content.length);
+            OutputStream os = httpExchange.getResponseBody();
+            os.write(content);
+            os.close();
+        };
+    }
+
+    @TearDown
+    public void tearDown() {
+        SimpleHttpServer.stop();
+    }
+
+    @Benchmark
+    public long get() throws IOException {
+        return BenchmarkClient.get(url);
+    }
+}
@@ -0,0 +1,116 @@
+package com.mdanetzky.testserver.benchmarks;
+
+import com.mdanetzky.testserver.SimpleHttpServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UnixDomainSocketBenchmark {
+
+    @Param({"TCP", "UNIX"})
+    public String transport;
+
+    @Param({"16", "16384"})
+    public int contentLength;
+
+    private Path directory;
+    private Path socket;
+    private URI uri;
+
+    @Setup
+    public void setUp() throws IOException {
+        SimpleHttpServer.Builder builder = SimpleHttpServer.getBuilder()
+                .setEngine(SimpleHttpServer.Engine.NIO)
+                .setGeneratedContent(contentLength, 1);
+        if ("UNIX".equals(transport)) {
+            directory = Files.createTempDirectory("UnixDomainSocketBenchmark");
+            socket = directory.resolve("server.sock");
+            builder.setUnixDomainSocket(socket);
+        }
+        uri = URI.create(builder.start());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        SimpleHttpServer.stop();
+        if (directory != null) {
+            Files.deleteIfExists(socket);
+            Files.delete(directory);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        private SocketChannel channel;
+        private ByteBuffer request;
+        private final ByteBuffer response = ByteBuffer.allocate(64 * 1024);
+
+        @Setup
+        public void setUp(UnixDomainSocketBenchmark benchmark) throws IOException {
+            channel = benchmark.socket != null
+                    ? SimpleHttpServer.connectUnixDomainSocket(benchmark.socket)
+                    : SocketChannel.open(new InetSocketAddress(benchmark.uri.getHost(), benchmark.uri.getPort()));
+            request = ByteBuffer.wrap(("GET " + benchmark.uri.getRawPath() + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            channel.close();
+        }
+
+        private long exchange() throws IOException {
+            request.rewind();
+            while (request.hasRemaining())
+                channel.write(request);
+            response.clear();
+            int headEnd;
+            while ((headEnd = findHeadEnd(response)) < 0)
+                read();
+            long end = headEnd + getContentLength(response, headEnd);
+            while (response.position() < end)
+                read();
+            return end;
+        }
+
+        private void read() throws IOException {
+            if (!response.hasRemaining())
+                throw new IOException("Response does not fit the buffer");
+            if (channel.read(response) < 0)
+                throw new IOException("Connection closed");
+        }
+
+        private static int findHeadEnd(ByteBuffer buffer) {
+            for (int i = 3; i < buffer.position(); i++)
+                if (buffer.get(i) == '\n' && buffer.get(i - 1) == '\r' && buffer.get(i - 2) == '\n')
+                    return i + 1;
+            return -1;
+        }
+
+        private static long getContentLength(ByteBuffer buffer, int headEnd) {
+            String head = new String(buffer.array(), 0, headEnd, StandardCharsets.ISO_8859_1).toLowerCase();
+            int start = head.indexOf("content-length:") + "content-length:".length();
+            return Long.parseLong(head.substring(start, head.indexOf('\r', start)).trim());
+        }
+    }
+
+    @Benchmark
+    public long get(Client client) throws IOException {
+        return client.exchange();
+    }
+}
@@ -0,0 +1,307 @@
+package com.mdanetzky.testserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class Launcher implements Closeable {
+
+    private static final long RELOAD_INTERVAL_MILLIS = 500;
+    private static final String ROUTE_PREFIX = "route.";
+    private static final String HEADER_PREFIX = "header.";
+    private static final List<String> SERVER_KEYS = Arrays.asList("port", "engine", "ssl", "http2");
+    private static final List<String> ROUTE_KEYS = Arrays.asList("path", "type", "status", "content", "file", "delay");
+    private static final List<String> ROUTE_TYPES = Arrays.asList("content", "echo", "sink", "metrics");
+
+    private final Path manifest;
+    private final Map<String, String> serverSettings;
+    private final Map<String, Route> routes = new LinkedHashMap<>();
+    private ScheduledExecutorService reloader;
+    private Map<String, String> reloadedServerSettings;
+    private String reloadError;
+    private boolean closed;
+
+    private Launcher(Path manifest, Map<String, String> serverSettings) {
+        this.manifest = manifest;
+        this.serverSettings = serverSettings;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean check = args.length == 2 && "--check".equals(args[1]);
+        if (args.length != 1 && !check) {
+            System.err.println("Usage: java -jar SimpleHttpTestServer.jar <manifest.properties> [--check]");
+            System.exit(2);
+        }
+        long started = System.nanoTime();
+        Launcher launcher = start(Paths.get(args[0]));
+        for (Map.Entry<String, String> url : launcher.getUrls().entrySet())
+            System.out.println(url.getKey() + " " + url.getValue());
+        System.out.println("Started " + launcher.getUrls().size() + " routes in " +
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms");
+        if (check) {
+            launcher.close();
+            SimpleHttpServer.stop();
+            System.exit(0);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(SimpleHttpServer::stop));
+        launcher.watch(RELOAD_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public static Launcher start(Path manifest) throws IOException {
+        Path path = manifest.toAbsolutePath();
+        Properties properties = load(path);
+        Launcher launcher = new Launcher(path, getServerSettings(properties));
+        List<Route> routes = getRoutes(properties, path.getParent());
+        try {
+            for (Route route : routes) {
+                route.context = launcher.startRoute(route, null);
+                launcher.routes.put(route.name, route);
+            }
+        } catch (IOException | RuntimeException e) {
+            launcher.close();
+            throw e;
+        }
+        return launcher;
+    }
+
+    public synchronized Launcher watch(long interval, TimeUnit unit) {
+        if (reloader == null && !closed) {
+            reloader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "SimpleHttpServer-launcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reloader.scheduleWithFixedDelay(this::reloadQuietly, interval, interval, unit);
+        }
+        return this;
+    }
+
+    public synchronized String getUrl(String route) {
+        Route current = routes.get(route);
+        return current == null ? null : current.context.getUrl();
+    }
+
+    public synchronized Map<String, String> getUrls() {
+        Map<String, String> urls = new LinkedHashMap<>();
+        for (Route route : routes.values())
+            urls.put(route.name, route.context.getUrl());
+        return urls;
+    }
+
+    public synchronized List<String> reload() throws IOException {
+        if (closed)
+            return Collections.emptyList();
+        Properties properties = load(manifest);
+        Map<String, String> settings = getServerSettings(properties);
+        if (!settings.equals(serverSettings) && !settings.equals(reloadedServerSettings))
+            System.err.println("Changes of " + SERVER_KEYS + " take effect after a restart");
+        reloadedServerSettings = settings;
+        Map<String, Route> updated = new LinkedHashMap<>();
+        for (Route route : getRoutes(properties, manifest.getParent()))
+            updated.put(route.name, route);
+        List<String> changed = new ArrayList<>();
+        List<Route> obsolete = new ArrayList<>();
+        for (Route route : routes.values()) {
+            if (route.isSameAs(updated.get(route.name)))
+                continue;
+            obsolete.add(route);
+            changed.add(route.name);
+        }
+        List<Route> started = new ArrayList<>();
+        try {
+            for (Route route : updated.values()) {
+                if (route.isSameAs(routes.get(route.name)))
+                    continue;
+                route.context = startRoute(route, getContext(obsolete, route.path));
+                started.add(route);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (Route route : started)
+                route.context.close();
+            throw e;
+        }
+        for (Route route : obsolete) {
+            routes.remove(route.name);
+            route.context.close();
+        }
+        for (Route route : started) {
+            routes.put(route.name, route);
+            if (!changed.contains(route.name))
+                changed.add(route.name);
+        }
+        return changed;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (reloader != null)
+            reloader.shutdownNow();
+        for (Route route : routes.values())
+            route.context.close();
+        routes.clear();
+    }
+
+    private synchronized void reloadQuietly() {
+        try {
+            for (String name : reload())
+                System.out.println("Reloaded " + name + " " + Objects.toString(getUrl(name), "(removed)"));
+            reloadError = null;
+        } catch (IOException | RuntimeException e) {
+            String error = manifest + " is invalid, keeping the current routes: " + e;
+            if (!error.equals(reloadError))
+                System.err.println(error);
+            reloadError = error;
+        }
+    }
+
+    private SimpleHttpServer.ContextHandle startRoute(Route route, SimpleHttpServer.ContextHandle replaced)
+            throws IOException {
+        SimpleHttpServer.Builder builder = SimpleHttpServer.getBuilder()
+                .setContextPath(route.path)
+                .setReplacedContext(replaced);
+        applyServerSettings(builder);
+        return route.start(builder);
+    }
+
+    private static SimpleHttpServer.ContextHandle getContext(List<Route> routes, String path) {
+        for (Route route : routes)
+            if (route.path.equals(path))
+                return route.context;
+        return null;
+    }
+
+    private void applyServerSettings(SimpleHttpServer.Builder builder) {
+        String port = serverSettings.get("port");
+        if (port != null)
+            builder.setPort(Integer.parseInt(port));
+        String engine = serverSettings.get("engine");
+        if (engine != null)
+            builder.setEngine(SimpleHttpServer.Engine.valueOf(engine.toUpperCase()));
+        if (Boolean.parseBoolean(serverSettings.get("ssl")))
+            builder.setSsl();
+        builder.setHttp2(Boolean.parseBoolean(serverSettings.get("http2")));
+    }
+
+    private static Properties load(Path manifest) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        return properties;
+    }
+
+    private static Map<String, String> getServerSettings(Properties properties) {
+        Map<String, String> settings = new TreeMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(ROUTE_PREFIX))
+                continue;
+            if (!SERVER_KEYS.contains(key))
+                throw new IllegalArgumentException("Unknown manifest key " + key);
+            settings.put(key, properties.getProperty(key).trim());
+        }
+        return settings;
+    }
+
+    private static List<Route> getRoutes(Properties properties, Path directory) throws IOException {
+        Map<String, Map<String, String>> settings = new TreeMap<>();
+        for (String key : properties.stringPropertyNames()) {
+            if (!key.startsWith(ROUTE_PREFIX))
+                continue;
+            int separator = key.indexOf('.', ROUTE_PREFIX.length());
+            if (separator < 0)
+                throw new IllegalArgumentException("Route keys look like route.<name>.<setting>: " + key);
+            String setting = key.substring(separator + 1);
+            if (!ROUTE_KEYS.contains(setting) && !setting.startsWith(HEADER_PREFIX))
+                throw new IllegalArgumentException("Unknown manifest key " + key);
+            settings.computeIfAbsent(key.substring(ROUTE_PREFIX.length(), separator), name -> new TreeMap<>())
+                    .put(setting, properties.getProperty(key));
+        }
+        List<Route> routes = new ArrayList<>();
+        for (Map.Entry<String, Map<String, String>> route : settings.entrySet())
+            routes.add(new Route(route.getKey(), route.getValue(), directory));
+        return routes;
+    }
+
+    private static class Route {
+
+        private final String name;
+        private final String path;
+        private final String type;
+        private final Map<String, String> settings;
+        private final Path file;
+        private final long fileSize;
+        private final long fileModified;
+        private SimpleHttpServer.ContextHandle context;
+
+        Route(String name, Map<String, String> settings, Path directory) throws IOException {
+            this.name = name;
+            this.path = settings.getOrDefault("path", "/" + name).trim();
+            this.type = settings.getOrDefault("type", "content").trim();
+            this.settings = settings;
+            if (!ROUTE_TYPES.contains(type))
+                throw new IllegalArgumentException("Unknown type " + type + " of route " + name);
+            if (settings.containsKey("file") && settings.containsKey("content"))
+                throw new IllegalArgumentException("Route " + name + " sets both content and file");
+            String file = settings.get("file");
+            this.file = file == null ? null : directory.resolve(file.trim());
+            this.fileSize = file == null ? 0 : Files.size(this.file);
+            this.fileModified = file == null ? 0 : Files.getLastModifiedTime(this.file).toMillis();
+        }
+
+        boolean isSameAs(Route other) {
+            return other != null && settings.equals(other.settings) && Objects.equals(file, other.file) &&
+                    fileSize == other.fileSize && fileModified == other.fileModified;
+        }
+
+        SimpleHttpServer.ContextHandle start(SimpleHttpServer.Builder builder) throws IOException {
+            String delay = settings.get("delay");
+            if (delay != null)
+                builder.setResponseDelay(Long.parseLong(delay.trim()), TimeUnit.MILLISECONDS);
+            switch (type) {
+                case "echo":
+                    return builder.startEchoContext();
+                case "sink":
+                    return builder.startSinkContext();
+                case "metrics":
+                    return builder.startMetricsContext();
+                default:
+                    return startContent(builder);
+            }
+        }
+
+        private SimpleHttpServer.ContextHandle startContent(SimpleHttpServer.Builder builder) throws IOException {
+            String status = settings.get("status");
+            if (status != null)
+                builder.setResponseCode(Integer.parseInt(status.trim()));
+            Map<String, List<String>> headers = new LinkedHashMap<>();
+            for (Map.Entry<String, String> setting : settings.entrySet())
+                if (setting.getKey().startsWith(HEADER_PREFIX))
+                    headers.put(setting.getKey().substring(HEADER_PREFIX.length()),
+                            Collections.singletonList(setting.getValue().trim()));
+            if (!headers.isEmpty())
+                builder.setHeaders(headers);
+            if (file != null)
+                builder.setContent(file);
+            else
+                builder.setContent(settings.getOrDefault("content", ""));
+            return builder.startContext();
+        }
+    }
+}
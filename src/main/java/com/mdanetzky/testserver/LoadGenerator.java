@@ -0,0 +1,513 @@
+package com.mdanetzky.testserver;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class LoadGenerator {
+
+    private static final int LATENCY_PRECISION_BITS = 7;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final List<Target> targets;
+    private final int connections;
+    private final double requestsPerSecond;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final long expectedIntervalNanos;
+    private final SSLContext sslContext;
+    private final int timeoutMillis;
+
+    private LoadGenerator(Builder builder) {
+        if (builder.urls.isEmpty())
+            throw new IllegalArgumentException("At least one url is required");
+        targets = new ArrayList<>();
+        for (String url : builder.urls)
+            targets.add(new Target(URI.create(url), builder.method, builder.headers, builder.body));
+        connections = builder.connections;
+        requestsPerSecond = builder.requestsPerSecond;
+        durationNanos = builder.durationNanos;
+        warmupNanos = builder.warmupNanos;
+        expectedIntervalNanos = builder.expectedIntervalNanos;
+        sslContext = builder.sslContext;
+        timeoutMillis = builder.timeoutMillis;
+    }
+
+    public static Builder getBuilder() {
+        return new Builder();
+    }
+
+    private Result run() throws InterruptedException {
+        List<Worker> workers = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++)
+            workers.add(new Worker(i));
+        ExecutorService executor = Executors.newFixedThreadPool(connections, runnable -> {
+            Thread thread = new Thread(runnable, "LoadGenerator-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            long expectedInterval = expectedIntervalNanos;
+            if (warmupNanos > 0) {
+                Result warmup = runPhase(executor, workers, warmupNanos, 0);
+                if (expectedInterval < 0 && requestsPerSecond == 0)
+                    expectedInterval = Math.round(warmup.serviceTime.getMean());
+            }
+            return runPhase(executor, workers, durationNanos, Math.max(0, expectedInterval));
+        } finally {
+            executor.shutdownNow();
+            workers.forEach(Worker::close);
+        }
+    }
+
+    private Result runPhase(ExecutorService executor, List<Worker> workers, long phaseNanos, long expectedInterval)
+            throws InterruptedException {
+        long start = System.nanoTime();
+        Phase phase = new Phase(start, start + phaseNanos, expectedInterval);
+        List<Future<?>> futures = new ArrayList<>(workers.size());
+        for (Worker worker : workers)
+            futures.add(executor.submit(() -> worker.run(phase)));
+        for (Future<?> future : futures)
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        phase.result.elapsedNanos = System.nanoTime() - start;
+        return phase.result;
+    }
+
+    public static class Builder {
+
+        private final List<String> urls = new ArrayList<>();
+        private final Map<String, String> headers = new LinkedHashMap<>();
+        private String method = "GET";
+        private byte[] body = null;
+        private int connections = 1;
+        private double requestsPerSecond = 0;
+        private long durationNanos = TimeUnit.SECONDS.toNanos(10);
+        private long warmupNanos = 0;
+        private long expectedIntervalNanos = -1;
+        private SSLContext sslContext = null;
+        private int timeoutMillis = 30_000;
+
+        public Builder setUrl(String... urls) {
+            this.urls.clear();
+            this.urls.addAll(Arrays.asList(urls));
+            return this;
+        }
+
+        public Builder setMethod(String method) {
+            this.method = Objects.requireNonNull(method);
+            return this;
+        }
+
+        public Builder setHeader(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        public Builder setBody(byte[] body) {
+            this.body = body.clone();
+            return this;
+        }
+
+        public Builder setConnections(int connections) {
+            if (connections < 1)
+                throw new IllegalArgumentException("At least one connection is required");
+            this.connections = connections;
+            return this;
+        }
+
+        public Builder setClosedLoop() {
+            this.requestsPerSecond = 0;
+            return this;
+        }
+
+        public Builder setRequestsPerSecond(double requestsPerSecond) {
+            if (requestsPerSecond <= 0)
+                throw new IllegalArgumentException("Request rate must be positive");
+            this.requestsPerSecond = requestsPerSecond;
+            return this;
+        }
+
+        public Builder setDuration(long duration, TimeUnit unit) {
+            this.durationNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        public Builder setWarmup(long warmup, TimeUnit unit) {
+            this.warmupNanos = unit.toNanos(warmup);
+            return this;
+        }
+
+        public Builder setExpectedInterval(long interval, TimeUnit unit) {
+            this.expectedIntervalNanos = unit.toNanos(interval);
+            return this;
+        }
+
+        public Builder setSslContext(SSLContext sslContext) {
+            this.sslContext = sslContext;
+            return this;
+        }
+
+        public Builder setTimeout(long timeout, TimeUnit unit) {
+            this.timeoutMillis = (int) Math.min(Integer.MAX_VALUE, unit.toMillis(timeout));
+            return this;
+        }
+
+        public Result run() throws InterruptedException {
+            return new LoadGenerator(this).run();
+        }
+    }
+
+    public static class Result {
+
+        private final SimpleHttpServer.LatencyHistogram latency =
+                new SimpleHttpServer.LatencyHistogram(LATENCY_PRECISION_BITS);
+        private final SimpleHttpServer.LatencyHistogram serviceTime =
+                new SimpleHttpServer.LatencyHistogram(LATENCY_PRECISION_BITS);
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final ConcurrentMap<Integer, LongAdder> responseCodes = new ConcurrentHashMap<>();
+        private volatile long elapsedNanos;
+
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public Map<Integer, Long> getResponseCodes() {
+            Map<Integer, Long> counts = new TreeMap<>();
+            responseCodes.forEach((code, count) -> counts.put(code, count.sum()));
+            return counts;
+        }
+
+        public SimpleHttpServer.LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        public SimpleHttpServer.LatencyHistogram getServiceTime() {
+            return serviceTime;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : getRequests() * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(256)
+                    .append(String.format("requests %d, errors %d, %.1f requests/s, response codes %s%n",
+                            getRequests(), getErrors(), getThroughput(), getResponseCodes()));
+            appendPercentiles(text, "latency     ", latency);
+            appendPercentiles(text, "service time", serviceTime);
+            return text.toString();
+        }
+
+        private static void appendPercentiles(StringBuilder text, String name,
+                                              SimpleHttpServer.LatencyHistogram histogram) {
+            text.append(name).append(" (ms):");
+            for (double percentile : new double[]{50, 90, 99, 99.9})
+                text.append(String.format(" p%s %.3f", percentile == 99.9 ? "99.9" : (int) percentile,
+                        histogram.getValueAtPercentile(percentile) / 1e6));
+            text.append(String.format(" max %.3f%n", histogram.getMax() / 1e6));
+        }
+
+        private void record(int responseCode, long latencyNanos, long serviceNanos, long expectedInterval) {
+            requests.increment();
+            responseCodes.computeIfAbsent(responseCode, code -> new LongAdder()).increment();
+            serviceTime.record(serviceNanos);
+            latency.record(latencyNanos);
+            if (expectedInterval > 0)
+                for (long missed = latencyNanos - expectedInterval; missed >= expectedInterval; missed -= expectedInterval)
+                    latency.record(missed);
+        }
+    }
+
+    private class Phase {
+
+        private final long start;
+        private final long end;
+        private final long expectedInterval;
+        private final AtomicLong tickets = new AtomicLong();
+        private final Result result = new Result();
+
+        Phase(long start, long end, long expectedInterval) {
+            this.start = start;
+            this.end = end;
+            this.expectedInterval = expectedInterval;
+        }
+
+        private long nextIntendedStart() {
+            if (requestsPerSecond == 0)
+                return System.nanoTime();
+            return start + (long) (tickets.getAndIncrement() * 1e9 / requestsPerSecond);
+        }
+    }
+
+    private class Worker {
+
+        private final Map<String, Connection> connectionsByOrigin = new HashMap<>();
+        private int nextTarget;
+
+        Worker(int index) {
+            nextTarget = index % targets.size();
+        }
+
+        private void run(Phase phase) {
+            while (true) {
+                long intendedStart = phase.nextIntendedStart();
+                if (intendedStart - phase.end >= 0 || Thread.currentThread().isInterrupted())
+                    return;
+                long now;
+                while ((now = System.nanoTime()) - intendedStart < 0)
+                    LockSupport.parkNanos(intendedStart - now);
+                Target target = targets.get(nextTarget);
+                nextTarget = (nextTarget + 1) % targets.size();
+                long start = System.nanoTime();
+                try {
+                    int responseCode = getConnection(target).exchange(target);
+                    long end = System.nanoTime();
+                    long expectedInterval = requestsPerSecond == 0 ? phase.expectedInterval : 0;
+                    phase.result.record(responseCode, end - intendedStart, end - start, expectedInterval);
+                } catch (IOException | RuntimeException e) {
+                    phase.result.errors.increment();
+                    closeConnection(target);
+                }
+            }
+        }
+
+        private Connection getConnection(Target target) throws IOException {
+            Connection connection = connectionsByOrigin.get(target.origin);
+            if (connection == null || connection.closed) {
+                connection = new Connection(target, sslContext, timeoutMillis);
+                connectionsByOrigin.put(target.origin, connection);
+            }
+            return connection;
+        }
+
+        private void closeConnection(Target target) {
+            Connection connection = connectionsByOrigin.remove(target.origin);
+            if (connection != null)
+                connection.close();
+        }
+
+        private void close() {
+            connectionsByOrigin.values().forEach(Connection::close);
+            connectionsByOrigin.clear();
+        }
+    }
+
+    private static class Target {
+
+        private final String host;
+        private final int port;
+        private final Path socketPath;
+        private final boolean ssl;
+        private final String origin;
+        private final boolean head;
+        private final byte[] request;
+
+        Target(URI uri, String method, Map<String, String> headers, byte[] body) {
+            ssl = "https".equalsIgnoreCase(uri.getScheme());
+            if ("http+unix".equalsIgnoreCase(uri.getScheme())) {
+                socketPath = Paths.get(uri.getAuthority());
+                host = "localhost";
+                port = 80;
+            } else if (ssl || "http".equalsIgnoreCase(uri.getScheme())) {
+                socketPath = null;
+                host = uri.getHost();
+                port = uri.getPort() != -1 ? uri.getPort() : ssl ? 443 : 80;
+            } else {
+                throw new IllegalArgumentException("Unsupported url " + uri);
+            }
+            origin = uri.getScheme() + "://" + uri.getRawAuthority();
+            head = "HEAD".equals(method);
+            String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+            if (uri.getRawQuery() != null)
+                path += "?" + uri.getRawQuery();
+            StringBuilder requestHead = new StringBuilder(256)
+                    .append(method).append(' ').append(path).append(" HTTP/1.1\r\n")
+                    .append("Host: ").append(host).append(':').append(port).append("\r\n");
+            headers.forEach((name, value) -> requestHead.append(name).append(": ").append(value).append("\r\n"));
+            if (body != null)
+                requestHead.append("Content-Length: ").append(body.length).append("\r\n");
+            requestHead.append("\r\n");
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            byte[] headBytes = requestHead.toString().getBytes(StandardCharsets.ISO_8859_1);
+            request.write(headBytes, 0, headBytes.length);
+            if (body != null)
+                request.write(body, 0, body.length);
+            this.request = request.toByteArray();
+        }
+    }
+
+    private static class Connection implements Closeable {
+
+        private final Closeable socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final byte[] scratch = new byte[BUFFER_SIZE];
+        private final StringBuilder line = new StringBuilder(128);
+        private boolean closed;
+
+        Connection(Target target, SSLContext sslContext, int timeoutMillis) throws IOException {
+            if (target.socketPath != null) {
+                SocketChannel channel = SimpleHttpServer.connectUnixDomainSocket(target.socketPath);
+                socket = channel;
+                in = new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE);
+                out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+            } else {
+                Socket tcpSocket = connect(target, sslContext, timeoutMillis);
+                socket = tcpSocket;
+                in = new BufferedInputStream(tcpSocket.getInputStream(), BUFFER_SIZE);
+                out = new BufferedOutputStream(tcpSocket.getOutputStream(), BUFFER_SIZE);
+            }
+        }
+
+        private static Socket connect(Target target, SSLContext sslContext, int timeoutMillis) throws IOException {
+            Socket plain = new Socket();
+            plain.setTcpNoDelay(true);
+            plain.setSoTimeout(timeoutMillis);
+            plain.connect(new InetSocketAddress(target.host, target.port), timeoutMillis);
+            if (target.ssl) {
+                SSLContext context = sslContext != null ? sslContext : SimpleHttpServer.getSslContext();
+                SSLSocket sslSocket = (SSLSocket) context.getSocketFactory()
+                        .createSocket(plain, target.host, target.port, true);
+                sslSocket.startHandshake();
+                return sslSocket;
+            }
+            return plain;
+        }
+
+        private int exchange(Target target) throws IOException {
+            out.write(target.request);
+            out.flush();
+            String statusLine = readLine();
+            if (!statusLine.startsWith("HTTP/1.") || statusLine.length() < 12)
+                throw new IOException("Malformed status line: " + statusLine);
+            int responseCode = Integer.parseInt(statusLine.substring(9, 12));
+            long contentLength = -1;
+            boolean chunked = false;
+            boolean keepAlive = !statusLine.startsWith("HTTP/1.0");
+            for (String header = readLine(); !header.isEmpty(); header = readLine()) {
+                int colon = header.indexOf(':');
+                if (colon < 0)
+                    continue;
+                String name = header.substring(0, colon).trim();
+                String value = header.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length"))
+                    contentLength = Long.parseLong(value);
+                else if (name.equalsIgnoreCase("Transfer-Encoding"))
+                    chunked = value.toLowerCase().contains("chunked");
+                else if (name.equalsIgnoreCase("Connection"))
+                    keepAlive = !value.equalsIgnoreCase("close") &&
+                            (keepAlive || value.equalsIgnoreCase("keep-alive"));
+            }
+            if (target.head || responseCode < 200 || responseCode == 204 || responseCode == 304) {
+                contentLength = 0;
+                chunked = false;
+            }
+            if (chunked)
+                skipChunks();
+            else if (contentLength >= 0)
+                skip(contentLength);
+            else
+                keepAlive = skipToEnd();
+            if (!keepAlive)
+                close();
+            return responseCode;
+        }
+
+        private void skipChunks() throws IOException {
+            while (true) {
+                String size = readLine();
+                int extension = size.indexOf(';');
+                long length = Long.parseLong((extension < 0 ? size : size.substring(0, extension)).trim(), 16);
+                if (length == 0) {
+                    while (!readLine().isEmpty())
+                        ;
+                    return;
+                }
+                skip(length);
+                readLine();
+            }
+        }
+
+        private void skip(long length) throws IOException {
+            while (length > 0) {
+                int count = in.read(scratch, 0, (int) Math.min(scratch.length, length));
+                if (count < 0)
+                    throw new IOException("Connection closed before the end of the response body");
+                length -= count;
+            }
+        }
+
+        private boolean skipToEnd() throws IOException {
+            while (in.read(scratch) >= 0)
+                ;
+            return false;
+        }
+
+        private String readLine() throws IOException {
+            line.setLength(0);
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0)
+                    throw new IOException("Connection closed before the end of the response head");
+                if (b != '\r')
+                    line.append((char) b);
+            }
+            return line.toString();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -2,123 +2,584 @@ package com.mdanetzky.testserver;
 
 import com.sun.net.httpserver.*;
 
+import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedKeyManager;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.security.*;
-import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
 import java.util.*;
-import java.util.concurrent.Executors;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class SimpleHttpServer {
 
-    public static final SSLContext sslContext = HttpsInitializer.tryToGetSslContext();
-    private static SimpleHttpServer testServer;
-    private static SimpleHttpServer testServerSsl;
-    private static int contextSuffix = 0;
-    private final HttpServer httpServer;
+    private static volatile SSLContext defaultSslContext;
+    private static final ConcurrentMap<ServerConfig, SimpleHttpServer> servers = new ConcurrentHashMap<>();
+    private static final AtomicInteger contextSuffix = new AtomicInteger();
+    private static final int START_ATTEMPTS = 3;
+    private final ServerConfig config;
+    private final SSLContext sslContext;
+    private final TlsStatistics tlsStatistics;
+    private final ExecutorService executor;
+    private final List<Listener> listeners = new ArrayList<>();
+    private final AtomicInteger nextListener = new AtomicInteger();
+    private final Map<String, ContextHandle> contexts = new ConcurrentHashMap<>();
+    private final Map<ContextHandle, Boolean> leastRecentlyUsed = new LinkedHashMap<>(16, 0.75f, true);
+    private volatile ScheduledExecutorService scheduler;
+    private volatile boolean stopped;
 
-    private SimpleHttpServer(boolean ssl) throws IOException {
-        httpServer = createServer(ssl);
-        bindPort(httpServer);
-        httpServer.setExecutor(Executors.newCachedThreadPool());
-        httpServer.start();
-    }
-
-    private static void bindPort(HttpServer httpServer) throws IOException {
-        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
-        httpServer.bind(address, 0);
+    private SimpleHttpServer(ServerConfig config) throws IOException {
+        this.config = config;
+        tlsStatistics = config.ssl ? new TlsStatistics(config.sslContext == null) : null;
+        sslContext = config.ssl ? createSslContext(config, tlsStatistics) : null;
+        executor = config.executorFactory.create();
+        try {
+            for (int i = 0; i < config.shards; i++)
+                listeners.add(createListener(i));
+        } catch (IOException | RuntimeException e) {
+            listeners.forEach(Listener::stop);
+            executor.shutdownNow();
+            throw e;
+        }
     }
 
     public static Builder getBuilder() {
         return new Builder();
     }
 
-    private static synchronized String init() throws IOException {
-        if (testServer == null)
-            testServer = new SimpleHttpServer(false);
-        return "/" + contextSuffix++;
+    public static InputStream getGeneratedContentStream(long length, long seed) {
+        return new GeneratedContentStream(length, seed);
     }
 
-    public static synchronized void stop() {
-        stopHttpServer();
-        stopHttpsServer();
+    public static SSLContext getSslContext() {
+        SSLContext sslContext = defaultSslContext;
+        if (sslContext == null) {
+            synchronized (SimpleHttpServer.class) {
+                sslContext = defaultSslContext;
+                if (sslContext == null)
+                    defaultSslContext = sslContext = HttpsInitializer.getDefaultSslContext();
+            }
+        }
+        return sslContext;
     }
 
-    private static void stopHttpsServer() {
-        stopServer(testServerSsl);
-        testServerSsl = null;
+    public static boolean isUnixDomainSocketSupported() {
+        return UnixDomainSockets.isSupported();
     }
 
-    private static void stopHttpServer() {
-        stopServer(testServer);
-        testServer = null;
+    public static SocketChannel connectUnixDomainSocket(Path path) throws IOException {
+        return SocketChannel.open(UnixDomainSockets.getAddress(path));
     }
 
-    private static void stopServer(SimpleHttpServer server) {
+    private static SimpleHttpServer init(ServerConfig config) throws IOException {
+        SimpleHttpServer server = servers.get(config);
         if (server != null)
-            server.stopInstance();
+            return server;
+        try {
+            return servers.computeIfAbsent(config, SimpleHttpServer::create);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static SimpleHttpServer create(ServerConfig config) {
+        try {
+            return new SimpleHttpServer(config);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String nextContextPath() {
+        return "/" + contextSuffix.getAndIncrement();
+    }
+
+    private static int getPort(ServerConfig config, int index) {
+        return config.port == 0 ? 0 : config.port + index;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public static void stop() {
+        for (SimpleHttpServer server : new ArrayList<>(servers.values()))
+            if (servers.remove(server.config, server))
+                server.stopInstance();
+    }
+
+    private static SSLContext createSslContext(ServerConfig config, TlsStatistics statistics) {
+        config.tls.applySessionTickets();
+        SSLContext sslContext = config.sslContext != null
+                ? config.sslContext
+                : HttpsInitializer.createServerSslContext(config.tlsKey, statistics);
+        config.tls.applySessionCache(sslContext);
+        return sslContext;
+    }
+
+    private Listener createListener(int index) throws IOException {
+        if (config.engine == Engine.NIO)
+            return new NioEngine.NioListener(config, executor, index);
+        if (config.unixDomainSocket != null)
+            throw new UnsupportedOperationException("Unix domain sockets are served by the NIO engine only");
+        if (config.http2)
+            throw new UnsupportedOperationException("HTTP/2 is served by the NIO engine only");
+        HttpsConfigurator configurator = config.ssl
+                ? new MyHttpsConfigurator(sslContext, config.tls, tlsStatistics)
+                : null;
+        return new JdkListener(config, configurator, executor, index);
+    }
+
+    private ContextHandle addContext(String contextPath, HttpHandler httpHandler, RequestJournal journal,
+                                     ResponseProfile profile, RequestLimiter limiter, Eviction eviction,
+                                     ContextHandle replaced) throws ServerStoppedException {
+        boolean replacing = replaced != null && replaced.server == this && replaced.contextPath.equals(contextPath);
+        Listener listener = replacing
+                ? replaced.listener
+                : listeners.get(Math.floorMod(nextListener.getAndIncrement(), listeners.size()));
+        ContextHandle context = new ContextHandle(this, listener, contextPath, httpHandler, journal, profile, limiter,
+                eviction);
+        if (replacing) {
+            if (!contexts.replace(contextPath, replaced, context))
+                throw new IllegalStateException("Context path " + contextPath + " is no longer served by the " +
+                        "replaced context");
+            context.replaced = replaced;
+        } else {
+            if (contexts.putIfAbsent(contextPath, context) != null)
+                throw new IllegalStateException("Context path " + contextPath + " is already in use");
+            listener.getRouter().add(contextPath, httpExchange -> route(contextPath, httpExchange));
+        }
+        if (stopped) {
+            removeContext(context);
+            throw new ServerStoppedException();
+        }
+        if (eviction.maxContexts > 0)
+            evictLeastRecentlyUsed(context, eviction.maxContexts);
+        if (eviction.idleTimeoutNanos > 0)
+            scheduleIdleCheck(context, eviction.idleTimeoutNanos);
+        return context;
+    }
+
+    private void route(String contextPath, HttpExchange httpExchange) throws IOException {
+        ContextHandle context = contexts.get(contextPath);
+        if (context != null)
+            context.handle(httpExchange);
+        else
+            sendNotFound(httpExchange);
+    }
+
+    private void removeContext(ContextHandle context) {
+        ContextHandle replaced = context.replaced;
+        context.replaced = null;
+        boolean restored = replaced != null && !replaced.isClosed() &&
+                contexts.replace(context.contextPath, context, replaced);
+        if (!restored && contexts.remove(context.contextPath, context))
+            context.listener.getRouter().remove(context.contextPath);
+        if (context.eviction.maxContexts > 0) {
+            synchronized (leastRecentlyUsed) {
+                leastRecentlyUsed.remove(context);
+            }
+        }
     }
 
-    private static synchronized String initSsl() throws IOException {
-        if (testServerSsl == null)
-            testServerSsl = new SimpleHttpServer(true);
-        return "/" + contextSuffix++;
+    private ScheduledExecutorService getScheduler() {
+        ScheduledExecutorService current = scheduler;
+        if (current == null) {
+            synchronized (this) {
+                current = scheduler;
+                if (current == null)
+                    scheduler = current = Executors.newSingleThreadScheduledExecutor(SimpleHttpServer::newDaemonThread);
+            }
+        }
+        return current;
+    }
+
+    private void schedule(Runnable task, long delayNanos, Runnable onRejected) {
+        try {
+            getScheduler().schedule(() -> execute(task, onRejected), delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            onRejected.run();
+        }
+    }
+
+    private void execute(Runnable task, Runnable onRejected) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            onRejected.run();
+        }
     }
 
-    private HttpServer createServer(boolean ssl) throws IOException {
-        if (ssl)
-            return createHttpsServer();
-        return HttpServer.create();
+    private static Thread newDaemonThread(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
     }
 
-    private HttpServer createHttpsServer() throws IOException {
-        HttpsServer httpsServer = HttpsServer.create();
-        httpsServer.setHttpsConfigurator(new MyHttpsConfigurator());
-        return httpsServer;
+    private void scheduleIdleCheck(ContextHandle context, long delayNanos) {
+        try {
+            getScheduler().schedule(() -> checkIdle(context), delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException ignored) {
+        }
     }
 
-    private void addContext(String contextPath, HttpHandler httpHandler) {
-        httpServer.createContext(contextPath, httpHandler);
+    private void checkIdle(ContextHandle context) {
+        if (context.isClosed())
+            return;
+        long idleNanos = System.nanoTime() - context.lastAccess;
+        if (idleNanos >= context.eviction.idleTimeoutNanos)
+            context.close();
+        else
+            scheduleIdleCheck(context, context.eviction.idleTimeoutNanos - idleNanos);
     }
 
-    private String getOrigin() {
-        return getProtocol() + "://" +
-                httpServer.getAddress().getHostName() + ":" +
-                httpServer.getAddress().getPort();
+    private void evictLeastRecentlyUsed(ContextHandle context, int maxContexts) {
+        List<ContextHandle> evicted = new ArrayList<>();
+        synchronized (leastRecentlyUsed) {
+            leastRecentlyUsed.put(context, Boolean.TRUE);
+            Iterator<ContextHandle> eldest = leastRecentlyUsed.keySet().iterator();
+            while (leastRecentlyUsed.size() - evicted.size() > maxContexts && eldest.hasNext())
+                evicted.add(eldest.next());
+        }
+        evicted.forEach(ContextHandle::close);
     }
 
-    private String getProtocol() {
-        return httpServer instanceof HttpsServer ? "https" : "http";
+    private void touch(ContextHandle context) {
+        synchronized (leastRecentlyUsed) {
+            leastRecentlyUsed.get(context);
+        }
     }
 
     private void stopInstance() {
-        httpServer.stop(0);
+        stopped = true;
+        synchronized (this) {
+            if (scheduler != null)
+                scheduler.shutdownNow();
+        }
+        listeners.forEach(Listener::stop);
+        executor.shutdownNow();
+    }
+
+    private static String getContextPath(HttpExchange httpExchange) {
+        String path = httpExchange.getRequestURI().getRawPath();
+        int end = path.indexOf('/', 1);
+        return end < 0 ? path : path.substring(0, end);
+    }
+
+    private static long getContentLength(Headers headers) {
+        List<String> values = headers.get("Content-Length");
+        if (values == null)
+            return -1;
+        long length = -1;
+        for (String value : values) {
+            for (String element : value.split(",", -1)) {
+                String digits = element.trim();
+                if (digits.isEmpty() || !digits.chars().allMatch(c -> c >= '0' && c <= '9'))
+                    throw new IllegalArgumentException("Invalid Content-Length: " + value);
+                long parsed = Long.parseLong(digits);
+                if (length >= 0 && parsed != length)
+                    throw new IllegalArgumentException("Conflicting Content-Length values: " + values);
+                length = parsed;
+            }
+        }
+        return length;
+    }
+
+    private static void sendNotFound(HttpExchange httpExchange) throws IOException {
+        httpExchange.sendResponseHeaders(404, -1);
+        httpExchange.close();
+    }
+
+    public enum Routing {
+        CONTEXT_PER_HANDLER,
+        DISPATCH
+    }
+
+    public enum Engine {
+        JDK,
+        NIO
+    }
+
+    public enum Encoding {
+        GZIP("gzip"),
+        DEFLATE("deflate");
+
+        private static final int BUFFER_SIZE = 64 * 1024;
+
+        private final String token;
+
+        Encoding(String token) {
+            this.token = token;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        private OutputStream compress(OutputStream out, int level) throws IOException {
+            if (this == GZIP)
+                return new GZIPOutputStream(out, BUFFER_SIZE) {
+                    {
+                        def.setLevel(level);
+                    }
+                };
+            Deflater deflater = new Deflater(level);
+            return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+    }
+
+    public enum Digest {
+        CRC32C,
+        SHA_256
     }
 
     public static class Builder {
 
         private boolean ssl = false;
+        private SSLContext sslContext = null;
+        private TlsKey tlsKey = null;
+        private List<String> tlsProtocols = null;
+        private List<String> tlsCipherSuites = null;
+        private int tlsSessionCacheSize = -1;
+        private int tlsSessionTimeoutSeconds = -1;
+        private Boolean tlsSessionTickets = null;
+        private Routing routing = Routing.CONTEXT_PER_HANDLER;
+        private long idleTimeoutMillis = 0;
+        private int maxContexts = 0;
+        private ExecutorFactory executorFactory = ServerExecutors.cachedThreadPool();
+        private int shards = 1;
+        private Engine engine = Engine.JDK;
+        private Path unixDomainSocket = null;
+        private boolean http2 = false;
+        private boolean tcpNoDelay = false;
+        private int port = 0;
+        private String contextPath = null;
+        private ContextHandle replacedContext = null;
         private int responseCode = 200;
         private Map<String, List<String>> headers = null;
-        private byte[] content = "".getBytes();
-        private HttpHandler handler = BasicHandler.getHandler(this);
+        private Content content = new ByteArrayContent("".getBytes());
+        private HttpHandler handler = null;
+        private long echoBodyLimit = Long.MAX_VALUE;
+        private Digest sinkDigest = Digest.CRC32C;
+        private List<Encoding> encodings = Collections.emptyList();
+        private boolean conditionalRequests = false;
+        private int journalCapacity = 0;
+        private int journalBodyPrefix = 0;
+        private Delay responseDelay = null;
+        private Delay responseDuration = null;
+        private long bandwidth = 0;
+        private Fault fault = null;
+        private double faultProbability = 0;
+        private int maxConcurrentRequests = 0;
+        private double requestsPerSecond = 0;
+        private int rateLimitBurst = 1;
+        private long limitQueueTimeoutNanos = 0;
 
         public Builder setContent(String content) {
-            this.content = content.getBytes();
+            this.content = new ByteArrayContent(content.getBytes());
+            return this;
+        }
+
+        public Builder setContent(Path content) throws IOException {
+            this.content = new FileContent(MappedFile.get(content));
+            return this;
+        }
+
+        public Builder setContent(ByteBuffer content) {
+            this.content = new ByteBufferContent(content.slice().asReadOnlyBuffer());
+            return this;
+        }
+
+        public Builder setGeneratedContent(long length, long seed) {
+            this.content = new GeneratedContent(length, seed);
             return this;
         }
 
         public Builder setSsl() {
             this.ssl = true;
+            this.sslContext = null;
+            this.tlsKey = null;
+            return this;
+        }
+
+        public Builder setSsl(SSLContext sslContext) {
+            this.ssl = true;
+            this.sslContext = Objects.requireNonNull(sslContext);
+            this.tlsKey = null;
+            return this;
+        }
+
+        public Builder setSsl(KeyStore keyStore, char[] password) throws GeneralSecurityException {
+            this.ssl = true;
+            this.sslContext = null;
+            this.tlsKey = HttpsInitializer.createTlsKey(keyStore, password);
+            return this;
+        }
+
+        public Builder setTlsProtocols(String... protocols) {
+            this.tlsProtocols = Arrays.asList(protocols.clone());
+            return this;
+        }
+
+        public Builder setTlsCipherSuites(String... cipherSuites) {
+            this.tlsCipherSuites = Arrays.asList(cipherSuites.clone());
+            return this;
+        }
+
+        public Builder setTlsSessionCache(int size, long timeout, TimeUnit unit) {
+            if (size < 0 || timeout < 0)
+                throw new IllegalArgumentException("Session cache size and timeout must not be negative");
+            this.tlsSessionCacheSize = size;
+            this.tlsSessionTimeoutSeconds = (int) Math.min(Integer.MAX_VALUE, unit.toSeconds(timeout));
+            return this;
+        }
+
+        public Builder setTlsSessionTickets(boolean enabled) {
+            this.tlsSessionTickets = enabled;
+            return this;
+        }
+
+        public Builder setRouting(Routing routing) {
+            this.routing = routing;
+            return this;
+        }
+
+        public Builder setIdleTimeout(long idleTimeout, TimeUnit unit) {
+            this.idleTimeoutMillis = unit.toMillis(idleTimeout);
+            return this;
+        }
+
+        public Builder setMaxContexts(int maxContexts) {
+            this.maxContexts = maxContexts;
+            return this;
+        }
+
+        public Builder setExecutor(ExecutorFactory executorFactory) {
+            this.executorFactory = executorFactory;
+            return this;
+        }
+
+        public Builder setShards(int shards) {
+            this.shards = shards;
+            return this;
+        }
+
+        public Builder setShardPerCore() {
+            return setShards(Runtime.getRuntime().availableProcessors());
+        }
+
+        public Builder setEngine(Engine engine) {
+            this.engine = engine;
+            return this;
+        }
+
+        public Builder setUnixDomainSocket(Path path) {
+            this.unixDomainSocket = path == null ? null : path.toAbsolutePath();
+            return this;
+        }
+
+        public Builder setHttp2(boolean http2) {
+            this.http2 = http2;
+            return this;
+        }
+
+        public Builder setTcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        public Builder setPort(int port) {
+            if (port < 0 || port > 65535)
+                throw new IllegalArgumentException("Port must be between 0 and 65535");
+            this.port = port;
+            return this;
+        }
+
+        public Builder setContextPath(String contextPath) {
+            if (contextPath != null && !contextPath.matches("/[^/?#]+"))
+                throw new IllegalArgumentException("Context path must be a single path segment like /name");
+            if (contextPath != null && contextPath.matches("/[0-9]+"))
+                throw new IllegalArgumentException("Numeric context paths are reserved for generated paths");
+            this.contextPath = contextPath;
+            return this;
+        }
+
+        Builder setReplacedContext(ContextHandle replacedContext) {
+            this.replacedContext = replacedContext;
             return this;
         }
 
@@ -138,192 +599,5928 @@ public class SimpleHttpServer {
         }
 
         public String startEcho() throws IOException {
-            setHandler(EchoHandler.getHandler());
-            return start();
+            return startEchoContext().getUrl();
         }
 
-        public Builder setHandler(HttpHandler handler) {
-            this.handler = handler;
+        public Builder setEchoBodyLimit(long echoBodyLimit) {
+            this.echoBodyLimit = echoBodyLimit;
             return this;
         }
 
-        public String start() throws IOException {
-            String contextPath = initServer();
-            getTestServer().addContext(contextPath, handler);
-            return getTestServer().getOrigin() + contextPath;
+        public ContextHandle startEchoContext() throws IOException {
+            setHandler(EchoHandler.getHandler(echoBodyLimit, encodings));
+            return startContext();
         }
 
-        private String initServer() throws IOException {
-            if (ssl)
-                return initSsl();
-            return init();
+        public String startSink() throws IOException {
+            return startSinkContext().getUrl();
         }
 
-        private SimpleHttpServer getTestServer() {
-            if (ssl)
-                return testServerSsl;
-            return testServer;
+        public Builder setSinkDigest(Digest sinkDigest) {
+            this.sinkDigest = Objects.requireNonNull(sinkDigest);
+            return this;
         }
-    }
 
-    private static class BasicHandler {
+        public ContextHandle startSinkContext() throws IOException {
+            setHandler(SinkHandler.getHandler(sinkDigest));
+            return startContext();
+        }
 
-        private static HttpHandler getHandler(Builder builder) {
-            return httpExchange -> {
-                fillHeaders(builder.headers, httpExchange);
-                httpExchange.sendResponseHeaders(builder.responseCode, builder.content.length);
-                sendResponse(builder.content, httpExchange);
-            };
+        public String startRecorder(String targetUrl, Path archive) throws IOException {
+            return startRecorderContext(targetUrl, archive).getUrl();
         }
 
-        private static void fillHeaders(Map<String, List<String>> headers, HttpExchange httpExchange) {
-            if (headers != null) {
-                Headers responseHeaders = httpExchange.getResponseHeaders();
-                responseHeaders.putAll(headers);
+        public ContextHandle startRecorderContext(String targetUrl, Path archive) throws IOException {
+            ArchiveRecorder recorder = new ArchiveRecorder(targetUrl, archive);
+            setHandler(recorder);
+            try {
+                return startContext();
+            } catch (IOException | RuntimeException e) {
+                recorder.close();
+                throw e;
             }
         }
 
-        private static void sendResponse(byte[] contentBytes, HttpExchange httpExchange) throws IOException {
-            OutputStream os = httpExchange.getResponseBody();
-            os.write(contentBytes);
-            os.close();
+        public String startReplay(Path archive) throws IOException {
+            return startReplayContext(archive).getUrl();
         }
-    }
 
-    private static class EchoHandler {
+        public ContextHandle startReplayContext(Path archive) throws IOException {
+            setHandler(new ArchiveReplayer(archive));
+            return startContext();
+        }
 
-        private static HttpHandler getHandler() {
-            return httpExchange -> {
-                String echo = getEchoString(httpExchange);
-                byte[] contentBytes = echo.getBytes();
-                httpExchange.sendResponseHeaders(200, contentBytes.length);
-                BasicHandler.sendResponse(contentBytes, httpExchange);
-            };
+        public String startMetrics() throws IOException {
+            return startMetricsContext().getUrl();
         }
 
-        private static String getEchoString(HttpExchange httpExchange) throws IOException {
-            return getFirstLineOfRequest(httpExchange) +
-                    getRequestHeaders(httpExchange) +
-                    "\nREQUEST BODY:\n" +
-                    getRequestBody(httpExchange);
+        public ContextHandle startMetricsContext() throws IOException {
+            return startContext(MetricsHandler::getHandler, null, null, null);
         }
 
-        private static String getFirstLineOfRequest(HttpExchange httpExchange) {
-            String head = httpExchange.getRequestMethod() + " ";
-            head += httpExchange.getRequestURI() + " ";
-            return head + httpExchange.getProtocol() + "\n";
+        public Builder setCompression(Encoding... encodings) {
+            this.encodings = Arrays.asList(encodings.clone());
+            return this;
         }
 
-        private static String getRequestHeaders(HttpExchange httpExchange) {
-            return httpExchange.getRequestHeaders().entrySet().stream()
-                    .map(EchoHandler::formatHeader)
-                    .collect(Collectors.joining("\n"));
+        public Builder setConditionalRequests(boolean conditionalRequests) {
+            this.conditionalRequests = conditionalRequests;
+            return this;
         }
 
-        private static String getRequestBody(HttpExchange httpExchange) throws IOException {
-            InputStream is = httpExchange.getRequestBody();
-            String body = readStream(is);
-            is.close();
-            return body;
+        public Builder setRequestJournal(int capacity) {
+            return setRequestJournal(capacity, 0);
         }
 
-        private static String readStream(InputStream is) throws IOException {
-            StringBuilder buffer = new StringBuilder();
-            int b;
-            while ((b = is.read()) != -1)
-                buffer.append((char) b);
-            return buffer.toString();
+        public Builder setRequestJournal(int capacity, int bodyPrefixBytes) {
+            if (capacity < 0 || bodyPrefixBytes < 0)
+                throw new IllegalArgumentException("Journal capacity and body prefix must not be negative");
+            this.journalCapacity = capacity;
+            this.journalBodyPrefix = bodyPrefixBytes;
+            return this;
         }
 
-        private static String formatHeader(Map.Entry<String, List<String>> header) {
-            return header.getKey() + ": " +
-                    header.getValue().stream()
-                            .map(String::trim)
-                            .collect(Collectors.joining("; "));
+        public Builder setResponseDelay(long delay, TimeUnit unit) {
+            return setResponseDelay(Delays.fixed(delay, unit));
         }
-    }
 
-    private static class HttpsInitializer {
+        public Builder setResponseDelay(Delay delay) {
+            this.responseDelay = delay;
+            return this;
+        }
 
-        private static final String KEYSTORE_BASE_64 =
-                "/u3+7QAAAAIAAAABAAAAAQAFYWxpYXMAAAFU3TznKQAAAY8wggGLMA4GCisGAQQBKgIRAQEFAASCAXc0adGoYu2VcSzQzoJZFa9n8mpbULjvfZ+I/n" +
-                        "EWPMyU8AxWNQuiFcdp+1zRdxUw7mUT8zH6g6K+amyvFzD5d0JrGM2S0ozBCohYbob5LROcZ23PeWq/ikqnMgZviYHUKgihJE8h0CC3FtWYUm1lP+" +
-                        "8+Jn4nNoZaugzVlzmJzgjNc39Ha0W88/4OeH/TaxlcULQ8enZViIyWjxvIyNM9v50jhYQdhcPLJ4R/1RXEYL2PL+jBL0eUvOg3J9fHFOzRCZZE1/" +
-                        "gUdoeDFISn+MkBVClUXmar+jxciZp8a+AffqNgBdkkCc2MV4Uq22zftZYzELjo6F/umTd5MzT7UjH/M2a5/I4dwX33YimQgiKgGRP9s2GZPnqv9Y" +
-                        "endXHrvLtwR5XFApnkAUfqS8/2bhPXppDwfQZDGdtUswskgvBVIGaVS6QQQS22NsxHBoJmIPZqpimTFVzabhMlbFUOvsLb+m/sQC5jglYWMVPXcj" +
-                        "7SrRD692mTgEYVLUIAAAABAAVYLjUwOQAAAzkwggM1MIIC86ADAgECAgRtH94+MAsGByqGSM44BAMFADBsMRAwDgYDVQQGEwdVbmtub3duMRAwDg" +
-                        "YDVQQIEwdVbmtub3duMRAwDgYDVQQHEwdVbmtub3duMRAwDgYDVQQKEwdVbmtub3duMRAwDgYDVQQLEwdVbmtub3duMRAwDgYDVQQDEwdVbmtub3" +
-                        "duMB4XDTE2MDUyMzEwNTAzNloXDTE2MDgyMTEwNTAzNlowbDEQMA4GA1UEBhMHVW5rbm93bjEQMA4GA1UECBMHVW5rbm93bjEQMA4GA1UEBxMHVW" +
-                        "5rbm93bjEQMA4GA1UEChMHVW5rbm93bjEQMA4GA1UECxMHVW5rbm93bjEQMA4GA1UEAxMHVW5rbm93bjCCAbgwggEsBgcqhkjOOAQBMIIBHwKBgQ" +
-                        "D9f1OBHXUSKVLfSpwu7OTn9hG3UjzvRADDHj+AtlEmaUVdQCJR+1k9jVj6v8X1ujD2y5tVbNeBO4AdNG/yZmC3a5lQpaSfn+gEexAiwk+7qdf+t8" +
-                        "Yb+DtX58aophUPBPuD9tPFHsMCNVQTWhaRMvZ1864rYdcq7/IiAxmd0UgBxwIVAJdgUI8VIwvMspK5gqLrhAvwWBz1AoGBAPfhoIXWmz3ey7yrXD" +
-                        "a4V7l5lK+7+jrqgvlXTAs9B4JnUVlXjrrUWU/mcQcQgYC0SRZxI+hMKBYTt88JMozIpuE8FnqLVHyNKOCjrh4rs6Z1kW6jfwv6ITVi8ftiegEkO8" +
-                        "yk8b6oUZCJqIPf4VrlnwaSi2ZegHtVJWQBTDv+z0kqA4GFAAKBgQDy1P+v4aagD2bf6276UdHpk0AGxEg4kovLsaztkK2KYI1GoJ4zsOXrjxTFKE" +
-                        "3wq3VJxPQP+MBGAvgre0JKL6ccr//XNJtux87wQ/1vZDp4dBdZCumzvrJ4wrm4LP70hxOHBg8jIwxF7gcxE4ZQW1VScQhQpMRv670vJX9jLJ5meq" +
-                        "MhMB8wHQYDVR0OBBYEFBe/PBGeFmst0xCIHZyOeyRgMXcbMAsGByqGSM44BAMFAAMvADAsAhQ1VadgYg/2lmBrn/joFXFpV1uUYgIUNYn+v8ZONW" +
-                        "Nl2BbSNFyVY7y4nU2zwSwWo1yjewoT/h6v8U1iNIVyrw==";
-        private static final char[] KEYSTORE_PASSWORD = "simulator".toCharArray();
+        public Builder setResponseDuration(long duration, TimeUnit unit) {
+            return setResponseDuration(Delays.fixed(duration, unit));
+        }
 
-        static SSLContext tryToGetSslContext() {
-            try {
-                return getSslContext();
-            } catch (Exception e) {
-                e.printStackTrace();
-                System.exit(1);
-            }
-            return null;
+        /**
+         * Content is spread over the duration by the scheduler. Streaming handlers (echo, sink, setHandler) are slowed
+         * down by blocking their thread between writes.
+         */
+        public Builder setResponseDuration(Delay duration) {
+            this.responseDuration = duration;
+            return this;
         }
 
-        private static SSLContext getSslContext() throws NoSuchAlgorithmException, KeyStoreException, IOException,
-                CertificateException, UnrecoverableKeyException, KeyManagementException {
-            SSLContext sslContext = SSLContext.getInstance("TLS");
-            KeyStore keyStore = getKeyStore();
-            KeyManagerFactory keyManagerFactory = getKeyManagerFactory(keyStore);
-            TrustManagerFactory trustManagerFactory = getTrustManagerFactory(keyStore);
-            sslContext.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
-            return sslContext;
+        /**
+         * Content is paced on the scheduler. Output written by streaming handlers (echo, sink, setHandler) is paced
+         * by blocking the handler thread between writes.
+         */
+        public Builder setBandwidth(long bytesPerSecond) {
+            if (bytesPerSecond < 0)
+                throw new IllegalArgumentException("Bandwidth must not be negative");
+            this.bandwidth = bytesPerSecond;
+            return this;
         }
 
-        private static KeyStore getKeyStore() throws
-                KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException {
-            KeyStore keyStore = KeyStore.getInstance("JKS");
-            keyStore.load(getKeystoreStream(), KEYSTORE_PASSWORD);
-            return keyStore;
+        public Builder setFault(Fault fault) {
+            return setFault(fault, 1);
         }
 
-        private static KeyManagerFactory getKeyManagerFactory(KeyStore keyStore) throws
-                NoSuchAlgorithmException, KeyStoreException, UnrecoverableKeyException {
-            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
-            keyManagerFactory.init(keyStore, KEYSTORE_PASSWORD);
-            return keyManagerFactory;
+        public Builder setFault(Fault fault, double probability) {
+            if (probability < 0 || probability > 1)
+                throw new IllegalArgumentException("Fault probability must be between 0 and 1");
+            this.fault = fault;
+            this.faultProbability = probability;
+            return this;
         }
 
-        private static TrustManagerFactory getTrustManagerFactory(KeyStore keyStore) throws
-                NoSuchAlgorithmException, KeyStoreException {
-            TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("SunX509");
-            trustManagerFactory.init(keyStore);
-            return trustManagerFactory;
+        public Builder setMaxConcurrentRequests(int maxConcurrentRequests) {
+            if (maxConcurrentRequests < 0)
+                throw new IllegalArgumentException("Concurrency limit must not be negative");
+            this.maxConcurrentRequests = maxConcurrentRequests;
+            return this;
         }
 
-        private static InputStream getKeystoreStream() {
-            byte[] data = Base64.getDecoder().decode(KEYSTORE_BASE_64);
-            return new ByteArrayInputStream(data);
+        public Builder setRateLimit(double requestsPerSecond, int burst) {
+            if (requestsPerSecond < 0 || burst < 1)
+                throw new IllegalArgumentException("Rate must not be negative and burst must be at least 1");
+            this.requestsPerSecond = requestsPerSecond;
+            this.rateLimitBurst = burst;
+            return this;
+        }
+
+        public Builder setLimitQueueTimeout(long timeout, TimeUnit unit) {
+            if (timeout < 0)
+                throw new IllegalArgumentException("Queue timeout must not be negative");
+            this.limitQueueTimeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        public Builder setHandler(HttpHandler handler) {
+            this.handler = handler;
+            return this;
+        }
+
+        public String start() throws IOException {
+            return startContext().getUrl();
+        }
+
+        public ContextHandle startContext() throws IOException {
+            HttpHandler contextHandler = handler != null ? handler : BasicHandler.getHandler(new Response(this));
+            RequestJournal journal = journalCapacity > 0 ? new RequestJournal(journalCapacity, journalBodyPrefix) : null;
+            return startContext(server -> contextHandler, journal, ResponseProfile.get(this), RequestLimiter.get(this));
+        }
+
+        private ContextHandle startContext(Function<SimpleHttpServer, HttpHandler> handlers, RequestJournal journal,
+                                           ResponseProfile profile, RequestLimiter limiter) throws IOException {
+            ServerConfig config = new ServerConfig(this);
+            Eviction eviction = new Eviction(idleTimeoutMillis, maxContexts);
+            for (int attempt = 1; ; attempt++) {
+                SimpleHttpServer server = init(config);
+                try {
+                    return server.addContext(contextPath != null ? contextPath : nextContextPath(),
+                            handlers.apply(server), journal, profile, limiter, eviction, replacedContext);
+                } catch (ServerStoppedException e) {
+                    if (attempt == START_ATTEMPTS)
+                        throw e;
+                }
+            }
         }
     }
 
-    private static class MyHttpsConfigurator extends HttpsConfigurator {
+    private static class ServerStoppedException extends IOException {
 
-        MyHttpsConfigurator() {
-            super(sslContext);
+        private static final long serialVersionUID = 1L;
+
+        ServerStoppedException() {
+            super("Server stopped while the context was being started");
+        }
+    }
+
+    public static class ContextHandle implements Closeable {
+
+        private final SimpleHttpServer server;
+        private final Listener listener;
+        private final String contextPath;
+        private final String url;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final ContextMetrics metrics = new ContextMetrics();
+        private final RequestJournal journal;
+        private final ResponseProfile profile;
+        private final RequestLimiter limiter;
+        private final Eviction eviction;
+        private volatile HttpHandler handler;
+        private volatile ContextHandle replaced;
+        private volatile long lastAccess = System.nanoTime();
+
+        private ContextHandle(SimpleHttpServer server, Listener listener, String contextPath, HttpHandler handler,
+                              RequestJournal journal, ResponseProfile profile, RequestLimiter limiter,
+                              Eviction eviction) {
+            this.server = server;
+            this.listener = listener;
+            this.contextPath = contextPath;
+            this.url = listener.getOrigin() + contextPath;
+            this.handler = handler;
+            this.journal = journal;
+            this.profile = profile;
+            this.limiter = limiter;
+            this.eviction = eviction;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public boolean isClosed() {
+            return closed.get();
+        }
+
+        public ContextMetrics getMetrics() {
+            return metrics;
+        }
+
+        public RequestJournal getJournal() {
+            if (journal == null)
+                throw new IllegalStateException("Request journal is not enabled, see Builder.setRequestJournal");
+            return journal;
+        }
+
+        public TlsStatistics getTlsStatistics() {
+            if (server.tlsStatistics == null)
+                throw new IllegalStateException("TLS is not enabled, see Builder.setSsl");
+            return server.tlsStatistics;
+        }
+
+        public RequestLimiter getLimiter() {
+            if (limiter == null)
+                throw new IllegalStateException("Request limits are not enabled, see Builder.setMaxConcurrentRequests " +
+                        "and Builder.setRateLimit");
+            return limiter;
         }
 
         @Override
-        public void configure(HttpsParameters params) {
-            SSLEngine engine = sslContext.createSSLEngine();
-            params.setNeedClientAuth(false);
-            params.setCipherSuites(engine.getEnabledCipherSuites());
-            params.setProtocols(engine.getEnabledProtocols());
-            params.setSSLParameters(sslContext.getDefaultSSLParameters());
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                server.removeContext(this);
+                HttpHandler current = handler;
+                handler = null;
+                if (current instanceof Closeable)
+                    closeQuietly((Closeable) current);
+            }
+        }
+
+        private void handle(HttpExchange httpExchange) throws IOException {
+            HttpHandler current = handler;
+            if (current == null) {
+                sendNotFound(httpExchange);
+                return;
+            }
+            long start = System.nanoTime();
+            ExchangeRecording recording = metrics.startRecording(httpExchange, start);
+            try {
+                if (journal != null)
+                    journal.record(httpExchange);
+                if (ServerExecutors.isOverloaded()) {
+                    ServerExecutors.sendServiceUnavailable(httpExchange);
+                } else if (limiter != null) {
+                    access(start);
+                    limiter.admit(server, httpExchange, recording, () -> serve(httpExchange, current, recording, start));
+                    return;
+                } else {
+                    access(start);
+                    serve(httpExchange, current, recording, start);
+                }
+            } catch (IOException | RuntimeException e) {
+                recording.complete();
+                throw e;
+            }
+        }
+
+        private void access(long start) {
+            lastAccess = start;
+            if (eviction.maxContexts > 0)
+                server.touch(this);
+        }
+
+        private void serve(HttpExchange httpExchange, HttpHandler current, ExchangeRecording recording, long start)
+                throws IOException {
+            if (profile != null) {
+                new ProfiledExchange(server, profile, httpExchange, current, recording, start).start();
+                return;
+            }
+            current.handle(httpExchange);
+            recording.completeIfNoBody();
+        }
+    }
+
+    public static class RequestJournal {
+
+        private static final byte[] NO_BODY = new byte[0];
+
+        private final int capacity;
+        private final int bodyPrefixBytes;
+        private final AtomicReferenceArray<RecordedRequest> slots;
+        private final AtomicLong nextSequence = new AtomicLong();
+        private final AtomicInteger waiters = new AtomicInteger();
+        private final Object monitor = new Object();
+        private volatile long firstSequence = 0;
+
+        private RequestJournal(int capacity, int bodyPrefixBytes) {
+            this.capacity = capacity;
+            this.bodyPrefixBytes = bodyPrefixBytes;
+            this.slots = new AtomicReferenceArray<>(capacity);
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public long getTotalCount() {
+            return nextSequence.get();
+        }
+
+        public List<RecordedRequest> getRequests() {
+            return getRequests(request -> true);
+        }
+
+        public List<RecordedRequest> getRequests(Predicate<? super RecordedRequest> filter) {
+            long end = nextSequence.get();
+            long sequence = Math.max(firstSequence, end - capacity);
+            List<RecordedRequest> requests = new ArrayList<>((int) (end - sequence));
+            for (; sequence < end; sequence++) {
+                RecordedRequest request = slots.get((int) (sequence % capacity));
+                if (request != null && request.sequence == sequence && filter.test(request))
+                    requests.add(request);
+            }
+            return requests;
+        }
+
+        public List<RecordedRequest> await(int count, long timeout, TimeUnit unit)
+                throws InterruptedException, TimeoutException {
+            return await(request -> true, count, timeout, unit);
+        }
+
+        public List<RecordedRequest> await(Predicate<? super RecordedRequest> filter, int count, long timeout,
+                                           TimeUnit unit) throws InterruptedException, TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            waiters.incrementAndGet();
+            try {
+                synchronized (monitor) {
+                    List<RecordedRequest> requests;
+                    while ((requests = getRequests(filter)).size() < count) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0)
+                            throw new TimeoutException("Received " + requests.size() + " of " + count +
+                                    " expected requests");
+                        TimeUnit.NANOSECONDS.timedWait(monitor, remaining);
+                    }
+                    return requests;
+                }
+            } finally {
+                waiters.decrementAndGet();
+            }
+        }
+
+        public void clear() {
+            firstSequence = nextSequence.get();
+        }
+
+        private void record(HttpExchange httpExchange) throws IOException {
+            byte[] bodyPrefix = bodyPrefixBytes > 0 ? readBodyPrefix(httpExchange) : NO_BODY;
+            long sequence = nextSequence.getAndIncrement();
+            slots.set((int) (sequence % capacity), new RecordedRequest(sequence, httpExchange, bodyPrefix));
+            if (waiters.get() > 0)
+                synchronized (monitor) {
+                    monitor.notifyAll();
+                }
+        }
+
+        private byte[] readBodyPrefix(HttpExchange httpExchange) throws IOException {
+            InputStream body = httpExchange.getRequestBody();
+            byte[] prefix = new byte[bodyPrefixBytes];
+            int length = 0;
+            int count;
+            while (length < prefix.length && (count = body.read(prefix, length, prefix.length - length)) > 0)
+                length += count;
+            if (length == 0)
+                return NO_BODY;
+            prefix = length < prefix.length ? Arrays.copyOf(prefix, length) : prefix;
+            httpExchange.setStreams(new SequenceInputStream(new ByteArrayInputStream(prefix), body), null);
+            return prefix;
+        }
+    }
+
+    public static class RecordedRequest {
+
+        private final long sequence;
+        private final long receivedAt;
+        private final long receivedNanos;
+        private final String method;
+        private final URI uri;
+        private final Map<String, List<String>> headers;
+        private final byte[] bodyPrefix;
+
+        private RecordedRequest(long sequence, HttpExchange httpExchange, byte[] bodyPrefix) {
+            this.sequence = sequence;
+            this.receivedAt = System.currentTimeMillis();
+            this.receivedNanos = System.nanoTime();
+            this.method = httpExchange.getRequestMethod();
+            this.uri = httpExchange.getRequestURI();
+            this.headers = Collections.unmodifiableMap(httpExchange.getRequestHeaders());
+            this.bodyPrefix = bodyPrefix;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getReceivedAt() {
+            return receivedAt;
+        }
+
+        public long getReceivedNanos() {
+            return receivedNanos;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public URI getUri() {
+            return uri;
+        }
+
+        public Map<String, List<String>> getHeaders() {
+            return headers;
+        }
+
+        public String getHeader(String name) {
+            List<String> values = headers.get(name);
+            return values == null || values.isEmpty() ? null : values.get(0);
+        }
+
+        public byte[] getBodyPrefix() {
+            return bodyPrefix.clone();
+        }
+
+        @Override
+        public String toString() {
+            return sequence + ": " + method + " " + uri;
+        }
+    }
+
+    public static class RequestLimiter {
+
+        private final int maxConcurrent;
+        private final long emissionIntervalNanos;
+        private final long burstToleranceNanos;
+        private final long queueTimeoutNanos;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+        private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+        private final LongAdder accepted = new LongAdder();
+        private final LongAdder queued = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+
+        private RequestLimiter(Builder builder) {
+            maxConcurrent = builder.maxConcurrentRequests;
+            emissionIntervalNanos = builder.requestsPerSecond > 0
+                    ? Math.max(1, Math.round(1e9 / builder.requestsPerSecond))
+                    : 0;
+            burstToleranceNanos = emissionIntervalNanos * (builder.rateLimitBurst - 1);
+            queueTimeoutNanos = builder.limitQueueTimeoutNanos;
+        }
+
+        private static RequestLimiter get(Builder builder) {
+            if (builder.maxConcurrentRequests == 0 && builder.requestsPerSecond == 0)
+                return null;
+            return new RequestLimiter(builder);
+        }
+
+        public long getAccepted() {
+            return accepted.sum();
+        }
+
+        public long getQueued() {
+            return queued.sum();
+        }
+
+        public long getRejected() {
+            return rejected.sum();
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        private void admit(SimpleHttpServer server, HttpExchange httpExchange, ExchangeRecording recording,
+                           ExchangeTask task) throws IOException {
+            long wait = reserveRate();
+            if (wait > queueTimeoutNanos) {
+                reject(httpExchange, 429, wait);
+                return;
+            }
+            Waiter waiter = new Waiter(server, httpExchange, recording, task, System.nanoTime() + queueTimeoutNanos);
+            if (wait > 0) {
+                queued.increment();
+                waiter.queued = true;
+                server.schedule(() -> acquire(waiter), wait, waiter::abort);
+                return;
+            }
+            acquire(waiter);
+        }
+
+        private long reserveRate() {
+            if (emissionIntervalNanos == 0)
+                return 0;
+            while (true) {
+                long arrival = theoreticalArrival.get();
+                long now = System.nanoTime();
+                long next = Math.max(arrival, now) + emissionIntervalNanos;
+                long wait = next - emissionIntervalNanos - burstToleranceNanos - now;
+                if (wait > queueTimeoutNanos)
+                    return wait;
+                if (theoreticalArrival.compareAndSet(arrival, next))
+                    return wait;
+            }
+        }
+
+        private void acquire(Waiter waiter) {
+            if (tryAcquire()) {
+                waiter.run();
+                return;
+            }
+            long remaining = waiter.deadline - System.nanoTime();
+            if (remaining <= 0) {
+                waiter.reject();
+                return;
+            }
+            if (!waiter.queued) {
+                queued.increment();
+                waiter.queued = true;
+            }
+            waiters.add(waiter);
+            waiter.server.schedule(() -> {
+                if (waiter.claim())
+                    waiter.reject();
+            }, remaining, () -> {
+                if (waiter.claim())
+                    waiter.abort();
+            });
+            drain();
+        }
+
+        private boolean tryAcquire() {
+            if (maxConcurrent == 0) {
+                inFlight.incrementAndGet();
+                return true;
+            }
+            while (true) {
+                int current = inFlight.get();
+                if (current >= maxConcurrent)
+                    return false;
+                if (inFlight.compareAndSet(current, current + 1))
+                    return true;
+            }
+        }
+
+        private void release() {
+            inFlight.decrementAndGet();
+            drain();
+        }
+
+        private void drain() {
+            while (!waiters.isEmpty() && tryAcquire()) {
+                Waiter waiter;
+                while ((waiter = waiters.poll()) != null && !waiter.claim())
+                    ;
+                if (waiter == null) {
+                    inFlight.decrementAndGet();
+                    continue;
+                }
+                Waiter next = waiter;
+                waiter.server.execute(next::run, () -> {
+                    inFlight.decrementAndGet();
+                    next.abort();
+                });
+            }
+        }
+
+        private void reject(HttpExchange httpExchange, int responseCode, long retryAfterNanos) throws IOException {
+            rejected.increment();
+            long retryAfterSeconds = Math.max(1, (retryAfterNanos + 999_999_999) / 1_000_000_000);
+            httpExchange.getResponseHeaders().set("Retry-After", Long.toString(retryAfterSeconds));
+            httpExchange.sendResponseHeaders(responseCode, -1);
+            httpExchange.close();
+        }
+
+        private class Waiter implements Runnable {
+
+            private final SimpleHttpServer server;
+            private final HttpExchange httpExchange;
+            private final ExchangeRecording recording;
+            private final ExchangeTask task;
+            private final long deadline;
+            private final AtomicBoolean claimed = new AtomicBoolean();
+            private boolean queued;
+
+            Waiter(SimpleHttpServer server, HttpExchange httpExchange, ExchangeRecording recording, ExchangeTask task,
+                   long deadline) {
+                this.server = server;
+                this.httpExchange = httpExchange;
+                this.recording = recording;
+                this.task = task;
+                this.deadline = deadline;
+            }
+
+            private boolean claim() {
+                return claimed.compareAndSet(false, true);
+            }
+
+            @Override
+            public void run() {
+                accepted.increment();
+                recording.onComplete = RequestLimiter.this::release;
+                try {
+                    task.run();
+                } catch (IOException | RuntimeException e) {
+                    abort();
+                }
+            }
+
+            private void reject() {
+                try {
+                    RequestLimiter.this.reject(httpExchange, 503, 0);
+                } catch (IOException | RuntimeException e) {
+                    abort();
+                }
+            }
+
+            private void abort() {
+                recording.complete();
+                httpExchange.close();
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface ExchangeTask {
+
+        void run() throws IOException;
+    }
+
+    public static class ContextMetrics {
+
+        private static final int LATENCY_PRECISION_BITS = 6;
+
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final ConcurrentMap<Integer, LongAdder> responseCodes = new ConcurrentHashMap<>();
+        private final AtomicReference<LatencyHistogram> latency = new AtomicReference<>();
+
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        public long getBytesIn() {
+            return bytesIn.sum();
+        }
+
+        public long getBytesOut() {
+            return bytesOut.sum();
+        }
+
+        public Map<Integer, Long> getResponseCodes() {
+            Map<Integer, Long> counts = new TreeMap<>();
+            responseCodes.forEach((code, count) -> counts.put(code, count.sum()));
+            return counts;
+        }
+
+        public LatencyHistogram getLatency() {
+            LatencyHistogram histogram = latency.get();
+            return histogram != null ? histogram : new LatencyHistogram(LATENCY_PRECISION_BITS);
+        }
+
+        private ExchangeRecording startRecording(HttpExchange httpExchange, long start) {
+            ExchangeRecording recording = new ExchangeRecording(this, httpExchange, start);
+            if (!NioEngine.record(httpExchange, recording))
+                recording.wrapStreams();
+            return recording;
+        }
+
+        private void record(int responseCode, long requestBytes, long responseBytes, long latencyNanos) {
+            requests.increment();
+            bytesIn.add(requestBytes);
+            bytesOut.add(responseBytes);
+            if (responseCode > 0)
+                responseCodes.computeIfAbsent(responseCode, code -> new LongAdder()).increment();
+            getOrCreateLatency().record(latencyNanos);
+        }
+
+        private LatencyHistogram getOrCreateLatency() {
+            LatencyHistogram histogram = latency.get();
+            if (histogram == null) {
+                latency.compareAndSet(null, new LatencyHistogram(LATENCY_PRECISION_BITS));
+                histogram = latency.get();
+            }
+            return histogram;
+        }
+    }
+
+    public static class LatencyHistogram {
+
+        private final int precisionBits;
+        private final int subBuckets;
+        private final AtomicLongArray counts;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public LatencyHistogram(int precisionBits) {
+            if (precisionBits < 1 || precisionBits > 16)
+                throw new IllegalArgumentException("Precision must be between 1 and 16 bits");
+            this.precisionBits = precisionBits;
+            this.subBuckets = 1 << precisionBits;
+            this.counts = new AtomicLongArray(subBuckets + (64 - precisionBits) * (subBuckets / 2));
+        }
+
+        public void record(long value) {
+            long recorded = Math.max(0, value);
+            counts.incrementAndGet(getIndex(recorded));
+            count.increment();
+            sum.add(recorded);
+            long current;
+            while (recorded > (current = max.get()) && !max.compareAndSet(current, recorded))
+                ;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long total = getCount();
+            return total == 0 ? 0 : (double) getSum() / total;
+        }
+
+        public long getValueAtPercentile(double percentile) {
+            long total = getCount();
+            if (total == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * total));
+            long cumulative = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                cumulative += counts.get(i);
+                if (cumulative >= rank)
+                    return Math.min(getHighestEquivalentValue(i), getMax());
+            }
+            return getMax();
+        }
+
+        private int getIndex(long value) {
+            if (value < subBuckets)
+                return (int) value;
+            int half = subBuckets / 2;
+            int shift = 64 - Long.numberOfLeadingZeros(value) - precisionBits;
+            return subBuckets + (shift - 1) * half + (int) ((value >>> shift) - half);
+        }
+
+        private long getHighestEquivalentValue(int index) {
+            if (index < subBuckets)
+                return index;
+            int half = subBuckets / 2;
+            int shift = (index - subBuckets) / half + 1;
+            long upper = ((index - subBuckets) % half + half + 1L) << shift;
+            return upper <= 0 ? Long.MAX_VALUE : upper - 1;
+        }
+    }
+
+    private static class ExchangeRecording {
+
+        private final ContextMetrics metrics;
+        private final HttpExchange httpExchange;
+        private final long start;
+        private final AtomicBoolean completed = new AtomicBoolean();
+        private volatile Runnable onComplete;
+        private boolean streamsWrapped;
+        private long bytesIn;
+        private long bytesOut;
+
+        ExchangeRecording(ContextMetrics metrics, HttpExchange httpExchange, long start) {
+            this.metrics = metrics;
+            this.httpExchange = httpExchange;
+            this.start = start;
+        }
+
+        private void wrapStreams() {
+            httpExchange.setStreams(new RecordingInputStream(httpExchange.getRequestBody(), this),
+                    new RecordingOutputStream(httpExchange.getResponseBody(), this));
+            streamsWrapped = true;
+        }
+
+        private void completeIfNoBody() {
+            if (streamsWrapped && httpExchange.getResponseCode() != -1 && hasNoBody())
+                complete();
+        }
+
+        private boolean hasNoBody() {
+            int responseCode = httpExchange.getResponseCode();
+            return responseCode < 200 || responseCode == 204 || responseCode == 304 ||
+                    "HEAD".equals(httpExchange.getRequestMethod()) ||
+                    "0".equals(httpExchange.getResponseHeaders().getFirst("Content-length"));
+        }
+
+        private void complete() {
+            if (completed.compareAndSet(false, true)) {
+                metrics.record(httpExchange.getResponseCode(), bytesIn, bytesOut, System.nanoTime() - start);
+                Runnable callback = onComplete;
+                if (callback != null)
+                    callback.run();
+            }
+        }
+    }
+
+    private static class RecordingInputStream extends FilterInputStream {
+
+        private final ExchangeRecording recording;
+
+        RecordingInputStream(InputStream in, ExchangeRecording recording) {
+            super(in);
+            this.recording = recording;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0)
+                recording.bytesIn++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = in.read(b, off, len);
+            if (count > 0)
+                recording.bytesIn += count;
+            return count;
+        }
+    }
+
+    private static class RecordingOutputStream extends FilterOutputStream {
+
+        private final ExchangeRecording recording;
+
+        RecordingOutputStream(OutputStream out, ExchangeRecording recording) {
+            super(out);
+            this.recording = recording;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            recording.bytesOut++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            recording.bytesOut += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.close();
+            } finally {
+                recording.complete();
+            }
+        }
+    }
+
+    private static class ServerConfig {
+
+        private final boolean ssl;
+        private final SSLContext sslContext;
+        private final TlsKey tlsKey;
+        private final TlsSettings tls;
+        private final Routing routing;
+        private final ExecutorFactory executorFactory;
+        private final int shards;
+        private final Engine engine;
+        private final Path unixDomainSocket;
+        private final boolean http2;
+        private final boolean tcpNoDelay;
+        private final int port;
+
+        ServerConfig(Builder builder) {
+            if (builder.shards < 1)
+                throw new IllegalArgumentException("At least one shard is required");
+            if (builder.port > 0 && builder.port + builder.shards - 1 > 65535)
+                throw new IllegalArgumentException("The ports of all shards must be below 65536");
+            ssl = builder.ssl;
+            sslContext = builder.ssl ? builder.sslContext : null;
+            tlsKey = builder.ssl ? builder.tlsKey : null;
+            tls = builder.ssl ? new TlsSettings(builder) : null;
+            routing = builder.routing;
+            executorFactory = builder.executorFactory;
+            shards = builder.shards;
+            engine = builder.engine;
+            unixDomainSocket = builder.unixDomainSocket;
+            http2 = builder.http2;
+            tcpNoDelay = builder.tcpNoDelay;
+            port = builder.port;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ServerConfig))
+                return false;
+            ServerConfig other = (ServerConfig) o;
+            return ssl == other.ssl && sslContext == other.sslContext && tlsKey == other.tlsKey &&
+                    Objects.equals(tls, other.tls) &&
+                    routing == other.routing &&
+                    executorFactory.equals(other.executorFactory) && shards == other.shards &&
+                    engine == other.engine && Objects.equals(unixDomainSocket, other.unixDomainSocket) &&
+                    http2 == other.http2 && tcpNoDelay == other.tcpNoDelay && port == other.port;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(ssl, sslContext, tlsKey, tls, routing, executorFactory, shards, engine,
+                    unixDomainSocket, http2, tcpNoDelay, port);
+        }
+    }
+
+    private static class Eviction {
+
+        private final long idleTimeoutNanos;
+        private final int maxContexts;
+
+        Eviction(long idleTimeoutMillis, int maxContexts) {
+            this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+            this.maxContexts = maxContexts;
+        }
+    }
+
+    private interface Listener {
+
+        Router getRouter();
+
+        String getOrigin();
+
+        void stop();
+    }
+
+    private static class JdkListener implements Listener {
+
+        private static final String NODELAY_PROPERTY = "sun.net.httpserver.nodelay";
+        private static Boolean noDelay = null;
+
+        private final HttpServer httpServer;
+        private final Router router;
+        private final String origin;
+
+        JdkListener(ServerConfig config, HttpsConfigurator configurator, ExecutorService executor, int index)
+                throws IOException {
+            httpServer = createServer(config, configurator);
+            try {
+                bindPort(httpServer, getPort(config, index));
+            } catch (IOException e) {
+                httpServer.stop(0);
+                throw e;
+            }
+            httpServer.setExecutor(executor);
+            router = config.routing == Routing.DISPATCH
+                    ? new DispatchRouter(httpServer)
+                    : new ContextRouter(httpServer);
+            origin = getOrigin(httpServer);
+            httpServer.start();
+        }
+
+        @Override
+        public Router getRouter() {
+            return router;
+        }
+
+        @Override
+        public String getOrigin() {
+            return origin;
+        }
+
+        private static HttpServer createServer(ServerConfig config, HttpsConfigurator configurator)
+                throws IOException {
+            applyNoDelay(config.tcpNoDelay);
+            if (configurator == null)
+                return HttpServer.create();
+            HttpsServer httpsServer = HttpsServer.create();
+            httpsServer.setHttpsConfigurator(configurator);
+            return httpsServer;
+        }
+
+        private static synchronized void applyNoDelay(boolean requested) {
+            if (noDelay == null) {
+                if (requested && System.getProperty(NODELAY_PROPERTY) == null)
+                    System.setProperty(NODELAY_PROPERTY, "true");
+                noDelay = Boolean.parseBoolean(System.getProperty(NODELAY_PROPERTY));
+            }
+            if (requested && !noDelay)
+                throw new IllegalStateException("TCP_NODELAY can only be enabled before the first JDK engine " +
+                        "server starts, or with -D" + NODELAY_PROPERTY + "=true");
+        }
+
+        private static void bindPort(HttpServer httpServer, int port) throws IOException {
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+            httpServer.bind(address, 0);
+        }
+
+        private static String getOrigin(HttpServer httpServer) {
+            return getProtocol(httpServer) + "://" +
+                    httpServer.getAddress().getHostName() + ":" +
+                    httpServer.getAddress().getPort();
+        }
+
+        private static String getProtocol(HttpServer httpServer) {
+            return httpServer instanceof HttpsServer ? "https" : "http";
+        }
+
+        @Override
+        public void stop() {
+            httpServer.stop(0);
+        }
+    }
+
+    @FunctionalInterface
+    public interface ExecutorFactory {
+
+        ExecutorService create();
+    }
+
+    public enum RejectionPolicy {
+        OVERFLOW_THREAD,
+        SERVICE_UNAVAILABLE
+    }
+
+    public static class ServerExecutors {
+
+        private static final int OVERFLOW_QUEUE_CAPACITY = 1024;
+        private static final int REJECTION_QUEUE_CAPACITY = 1024;
+        private static final ThreadLocal<Boolean> overloaded = new ThreadLocal<>();
+
+        public static ExecutorFactory cachedThreadPool() {
+            return new ExecutorSpec(ExecutorKind.CACHED, 0, 0, null);
+        }
+
+        public static ExecutorFactory boundedThreadPool(int threads, int queueCapacity, RejectionPolicy policy) {
+            return new ExecutorSpec(ExecutorKind.BOUNDED, threads, queueCapacity, policy);
+        }
+
+        public static ExecutorFactory workStealingPool(int parallelism) {
+            return new ExecutorSpec(ExecutorKind.WORK_STEALING, parallelism, 0, null);
+        }
+
+        public static ExecutorFactory virtualThreadPerExchange() {
+            return new ExecutorSpec(ExecutorKind.VIRTUAL, 0, 0, null);
+        }
+
+        public static boolean isVirtualThreadSupported() {
+            return getVirtualThreadExecutorMethod() != null;
+        }
+
+        private static boolean isOverloaded() {
+            return overloaded.get() != null;
+        }
+
+        private static void sendServiceUnavailable(HttpExchange httpExchange) throws IOException {
+            httpExchange.getResponseHeaders().set("Retry-After", "1");
+            httpExchange.sendResponseHeaders(503, -1);
+            httpExchange.close();
+        }
+
+        private static ExecutorService newBoundedThreadPool(int threads, int queueCapacity, RejectionPolicy policy) {
+            BlockingQueue<Runnable> queue = queueCapacity > 0
+                    ? new ArrayBlockingQueue<>(queueCapacity)
+                    : new SynchronousQueue<>();
+            return new BoundedThreadPool(threads, queue, policy);
+        }
+
+        private static void runOverloaded(Runnable exchange) {
+            overloaded.set(Boolean.TRUE);
+            try {
+                exchange.run();
+            } finally {
+                overloaded.remove();
+            }
+        }
+
+        private static ThreadPoolExecutor newSingleThreadExecutor(String name, int queueCapacity) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                Thread thread = newDaemonThread(runnable);
+                thread.setName(name + "-" + thread.getId());
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+
+        private static ExecutorService newVirtualThreadPerTaskExecutor() {
+            Method method = getVirtualThreadExecutorMethod();
+            if (method == null)
+                throw new UnsupportedOperationException("Virtual threads require Java 21 or newer");
+            try {
+                return (ExecutorService) method.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static Method getVirtualThreadExecutorMethod() {
+            try {
+                return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+
+        private enum ExecutorKind {
+            CACHED,
+            BOUNDED,
+            WORK_STEALING,
+            VIRTUAL
+        }
+
+        private interface RejectableTask extends Runnable {
+
+            void reject();
+        }
+
+        private static class BoundedThreadPool extends ThreadPoolExecutor {
+
+            private final ExecutorService overflow;
+            private final ExecutorService rejections =
+                    newSingleThreadExecutor("SimpleHttpServer-rejection", REJECTION_QUEUE_CAPACITY);
+
+            BoundedThreadPool(int threads, BlockingQueue<Runnable> queue, RejectionPolicy policy) {
+                super(threads, threads, 60, TimeUnit.SECONDS, queue);
+                allowCoreThreadTimeOut(true);
+                overflow = policy == RejectionPolicy.OVERFLOW_THREAD
+                        ? newSingleThreadExecutor("SimpleHttpServer-overflow", OVERFLOW_QUEUE_CAPACITY)
+                        : null;
+                setRejectedExecutionHandler((runnable, executor) -> reject(runnable));
+            }
+
+            private void reject(Runnable runnable) {
+                if (isShutdown())
+                    throw new RejectedExecutionException("Executor has been shut down");
+                if (overflow != null) {
+                    try {
+                        overflow.execute(runnable);
+                        return;
+                    } catch (RejectedExecutionException ignored) {
+                    }
+                }
+                if (runnable instanceof RejectableTask)
+                    rejections.execute(((RejectableTask) runnable)::reject);
+                else
+                    rejections.execute(() -> runOverloaded(runnable));
+            }
+
+            @Override
+            public void shutdown() {
+                super.shutdown();
+                rejections.shutdown();
+                if (overflow != null)
+                    overflow.shutdown();
+            }
+
+            @Override
+            public List<Runnable> shutdownNow() {
+                rejections.shutdownNow();
+                if (overflow != null)
+                    overflow.shutdownNow();
+                return super.shutdownNow();
+            }
+        }
+
+        private static class ExecutorSpec implements ExecutorFactory {
+
+            private final ExecutorKind kind;
+            private final int threads;
+            private final int queueCapacity;
+            private final RejectionPolicy policy;
+
+            ExecutorSpec(ExecutorKind kind, int threads, int queueCapacity, RejectionPolicy policy) {
+                this.kind = kind;
+                this.threads = threads;
+                this.queueCapacity = queueCapacity;
+                this.policy = policy;
+            }
+
+            @Override
+            public ExecutorService create() {
+                switch (kind) {
+                    case BOUNDED:
+                        return newBoundedThreadPool(threads, queueCapacity, policy);
+                    case WORK_STEALING:
+                        return Executors.newWorkStealingPool(threads);
+                    case VIRTUAL:
+                        return newVirtualThreadPerTaskExecutor();
+                    default:
+                        return Executors.newCachedThreadPool();
+                }
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof ExecutorSpec))
+                    return false;
+                ExecutorSpec other = (ExecutorSpec) o;
+                return kind == other.kind && threads == other.threads &&
+                        queueCapacity == other.queueCapacity && policy == other.policy;
+            }
+
+            @Override
+            public int hashCode() {
+                return Objects.hash(kind, threads, queueCapacity, policy);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface Delay {
+
+        long nextDelayNanos();
+    }
+
+    public static class Delays {
+
+        public static Delay fixed(long delay, TimeUnit unit) {
+            long nanos = unit.toNanos(delay);
+            return () -> nanos;
+        }
+
+        public static Delay uniform(long min, long max, TimeUnit unit) {
+            if (min < 0 || max < min)
+                throw new IllegalArgumentException("Expected 0 <= min <= max");
+            long minNanos = unit.toNanos(min);
+            long maxNanos = unit.toNanos(max);
+            return () -> minNanos == maxNanos ? minNanos : ThreadLocalRandom.current().nextLong(minNanos, maxNanos + 1);
+        }
+
+        public static Delay normal(long mean, long standardDeviation, TimeUnit unit) {
+            long meanNanos = unit.toNanos(mean);
+            long deviationNanos = unit.toNanos(standardDeviation);
+            return () -> Math.max(0, meanNanos + Math.round(deviationNanos * ThreadLocalRandom.current().nextGaussian()));
+        }
+
+        public static Delay percentiles(double[] percentiles, long[] delays, TimeUnit unit) {
+            if (percentiles.length == 0 || percentiles.length != delays.length)
+                throw new IllegalArgumentException("Expected the same non-zero number of percentiles and delays");
+            double[] points = percentiles.clone();
+            long[] nanos = new long[delays.length];
+            for (int i = 0; i < points.length; i++) {
+                if (points[i] < 0 || points[i] > 100 || (i > 0 && (points[i] <= points[i - 1] || delays[i] < delays[i - 1])))
+                    throw new IllegalArgumentException("Percentiles and delays must be ascending, percentiles within 0-100");
+                nanos[i] = unit.toNanos(delays[i]);
+            }
+            return () -> interpolate(points, nanos, ThreadLocalRandom.current().nextDouble(100));
+        }
+
+        public static Delay replay(LatencyHistogram histogram, TimeUnit unit) {
+            return () -> unit.toNanos(histogram.getValueAtPercentile(ThreadLocalRandom.current().nextDouble(100)));
+        }
+
+        private static long interpolate(double[] points, long[] nanos, double percentile) {
+            if (percentile <= points[0])
+                return nanos[0];
+            for (int i = 1; i < points.length; i++)
+                if (percentile <= points[i]) {
+                    double fraction = (percentile - points[i - 1]) / (points[i] - points[i - 1]);
+                    return nanos[i - 1] + Math.round(fraction * (nanos[i] - nanos[i - 1]));
+                }
+            return nanos[nanos.length - 1];
+        }
+    }
+
+    public enum Fault {
+        RESET_BEFORE_RESPONSE,
+        RESET_MID_BODY,
+        STALL_BEFORE_RESPONSE,
+        STALL_MID_BODY
+    }
+
+    private static class ResponseProfile {
+
+        private final Delay responseDelay;
+        private final Delay responseDuration;
+        private final long bandwidth;
+        private final Fault fault;
+        private final double faultProbability;
+
+        private ResponseProfile(Builder builder) {
+            responseDelay = builder.responseDelay;
+            responseDuration = builder.responseDuration;
+            bandwidth = builder.bandwidth;
+            fault = builder.fault;
+            faultProbability = builder.faultProbability;
+        }
+
+        static ResponseProfile get(Builder builder) {
+            if (builder.responseDelay == null && builder.responseDuration == null && builder.bandwidth == 0 &&
+                    (builder.fault == null || builder.faultProbability == 0))
+                return null;
+            return new ResponseProfile(builder);
+        }
+
+        private Fault nextFault() {
+            if (fault == null || ThreadLocalRandom.current().nextDouble() >= faultProbability)
+                return null;
+            return fault;
+        }
+    }
+
+    private static class ProfiledExchange {
+
+        private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+        private static final long STALL_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+        private final SimpleHttpServer server;
+        private final ResponseProfile profile;
+        private final HttpExchange httpExchange;
+        private final HttpHandler handler;
+        private final ExchangeRecording recording;
+        private final Fault fault;
+        private final long deadline;
+        private PacedOutputStream paced;
+        private OutputStream out;
+        private Content content;
+        private long length;
+        private long bodyStart;
+        private long written;
+        private long chunkSize;
+        private long faultOffset = -1;
+        private boolean streaming;
+        private boolean faulted;
+        private byte[] held;
+        private int heldLength;
+
+        ProfiledExchange(SimpleHttpServer server, ResponseProfile profile, HttpExchange httpExchange,
+                         HttpHandler handler, ExchangeRecording recording, long start) {
+            this.server = server;
+            this.profile = profile;
+            this.httpExchange = httpExchange;
+            this.handler = handler;
+            this.recording = recording;
+            this.fault = profile.nextFault();
+            this.deadline = profile.responseDuration == null ? 0 : start + profile.responseDuration.nextDelayNanos();
+        }
+
+        private void start() {
+            long delay = profile.responseDelay == null ? 0 : profile.responseDelay.nextDelayNanos();
+            if (delay > 0)
+                schedule(this::respond, delay);
+            else
+                respond();
+        }
+
+        private void respond() {
+            if (fault == Fault.RESET_BEFORE_RESPONSE || fault == Fault.STALL_BEFORE_RESPONSE) {
+                fail();
+                return;
+            }
+            if (profile.bandwidth > 0 || profile.responseDuration != null || fault != null) {
+                out = httpExchange.getResponseBody();
+                paced = new PacedOutputStream(this);
+                httpExchange.setStreams(null, paced);
+            }
+            try {
+                handler.handle(httpExchange);
+                recording.completeIfNoBody();
+            } catch (IOException | RuntimeException e) {
+                if (!faulted)
+                    reset();
+            }
+        }
+
+        private void startBody(Content content) {
+            this.content = content;
+            startPacing(content.length());
+            writeBody();
+        }
+
+        private void startPacing(long length) {
+            this.length = length;
+            bodyStart = System.nanoTime();
+            chunkSize = length >= 0 ? length : Long.MAX_VALUE;
+            if (profile.bandwidth > 0)
+                chunkSize = Math.min(chunkSize, Math.max(1, profile.bandwidth * TICK_NANOS / TimeUnit.SECONDS.toNanos(1)));
+            if (length >= 0 && deadline - bodyStart > TICK_NANOS)
+                chunkSize = Math.min(chunkSize, Math.max(1, length / ((deadline - bodyStart) / TICK_NANOS)));
+            if (fault != null && length >= 0)
+                faultOffset = length / 2;
+        }
+
+        private void writeBody() {
+            try {
+                while (true) {
+                    if (written == faultOffset) {
+                        fail();
+                        return;
+                    }
+                    if (written == length) {
+                        out.close();
+                        return;
+                    }
+                    long count = Math.min(chunkSize, length - written);
+                    if (written < faultOffset)
+                        count = Math.min(count, faultOffset - written);
+                    long delay = getDueTime(written + count) - System.nanoTime();
+                    if (delay > 0) {
+                        schedule(this::writeBody, delay);
+                        return;
+                    }
+                    content.writeTo(httpExchange, out, written, count);
+                    out.flush();
+                    written += count;
+                }
+            } catch (IOException | RuntimeException e) {
+                reset();
+            }
+        }
+
+        private void writeStreamed(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return;
+            if (!streaming) {
+                streaming = true;
+                startPacing(NioEngine.getResponseLength(httpExchange));
+            }
+            if (length >= 0 || profile.responseDuration == null) {
+                writePaced(b, off, len);
+                return;
+            }
+            if (heldLength > 0)
+                writePaced(held, 0, heldLength);
+            if (held == null || held.length < len)
+                held = new byte[len];
+            System.arraycopy(b, off, held, 0, len);
+            heldLength = len;
+        }
+
+        private void writePaced(byte[] b, int off, int len) throws IOException {
+            while (true) {
+                if (written == faultOffset)
+                    throw injectFault();
+                if (len == 0)
+                    return;
+                int count = (int) Math.min(len, Math.max(1, chunkSize));
+                if (written < faultOffset)
+                    count = (int) Math.min(count, faultOffset - written);
+                long delay = getDueTime(written + count) - System.nanoTime();
+                if (delay > 0) {
+                    LockSupport.parkNanos(delay);
+                    if (Thread.interrupted())
+                        throw new InterruptedIOException();
+                    continue;
+                }
+                out.write(b, off, count);
+                out.flush();
+                written += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        private void finishStreamed() throws IOException {
+            if (fault != null && faultOffset < 0)
+                throw injectFault();
+            long delay = profile.responseDuration == null ? 0 : deadline - System.nanoTime();
+            if (delay > 0) {
+                schedule(this::closeStreamed, delay);
+                return;
+            }
+            if (heldLength > 0)
+                writePaced(held, 0, heldLength);
+            out.close();
+        }
+
+        private void closeStreamed() {
+            try {
+                if (heldLength > 0)
+                    writePaced(held, 0, heldLength);
+                out.close();
+            } catch (IOException e) {
+                if (!faulted)
+                    reset();
+            }
+        }
+
+        private IOException injectFault() {
+            faulted = true;
+            fail();
+            return new IOException("Connection reset by fault injection");
+        }
+
+        private long getDueTime(long bytes) {
+            long due = bodyStart;
+            if (profile.bandwidth > 0)
+                due = Math.max(due, bodyStart + (long) (bytes * 1e9 / profile.bandwidth));
+            if (deadline - bodyStart > 0 && length > 0)
+                due = Math.max(due, bodyStart + (long) ((double) bytes / length * (deadline - bodyStart)));
+            return due;
+        }
+
+        private void fail() {
+            if (fault == Fault.STALL_BEFORE_RESPONSE || fault == Fault.STALL_MID_BODY)
+                schedule(this::reset, STALL_NANOS);
+            else
+                reset();
+        }
+
+        private void reset() {
+            recording.complete();
+            if (NioEngine.reset(httpExchange))
+                return;
+            if (paced != null)
+                paced.reset = true;
+            httpExchange.close();
+        }
+
+        private void schedule(Runnable step, long delayNanos) {
+            server.schedule(step, delayNanos, this::reset);
+        }
+    }
+
+    private static class PacedOutputStream extends OutputStream {
+
+        private final ProfiledExchange exchange;
+        private Content content;
+        private boolean closed;
+        private volatile boolean reset;
+
+        PacedOutputStream(ProfiledExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        private void setContent(Content content) throws IOException {
+            if (exchange.streaming)
+                throw new IOException("Response body already started");
+            this.content = content;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (reset || exchange.faulted)
+                throw new IOException("Connection reset by fault injection");
+            if (closed || content != null)
+                throw new IOException("Response body already sent");
+            exchange.writeStreamed(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (reset)
+                throw new IOException("Connection reset by fault injection");
+            if (closed || exchange.faulted)
+                return;
+            closed = true;
+            if (content != null)
+                exchange.startBody(content);
+            else
+                exchange.finishStreamed();
+        }
+    }
+
+    private interface Router {
+
+        void add(String contextPath, HttpHandler handler);
+
+        void remove(String contextPath);
+    }
+
+    private static class ContextRouter implements Router {
+
+        private final HttpServer httpServer;
+
+        ContextRouter(HttpServer httpServer) {
+            this.httpServer = httpServer;
+        }
+
+        @Override
+        public void add(String contextPath, HttpHandler handler) {
+            httpServer.createContext(contextPath, httpExchange -> {
+                if (contextPath.equals(getContextPath(httpExchange)))
+                    handler.handle(httpExchange);
+                else
+                    sendNotFound(httpExchange);
+            });
+        }
+
+        @Override
+        public void remove(String contextPath) {
+            httpServer.removeContext(contextPath);
+        }
+    }
+
+    private static class DispatchRouter implements Router {
+
+        private final Map<String, HttpHandler> handlers = new ConcurrentHashMap<>();
+
+        DispatchRouter() {
+        }
+
+        DispatchRouter(HttpServer httpServer) {
+            httpServer.createContext("/", this::dispatch);
+        }
+
+        @Override
+        public void add(String contextPath, HttpHandler handler) {
+            handlers.put(contextPath, handler);
+        }
+
+        @Override
+        public void remove(String contextPath) {
+            handlers.remove(contextPath);
+        }
+
+        private void dispatch(HttpExchange httpExchange) throws IOException {
+            HttpHandler handler = handlers.get(getContextPath(httpExchange));
+            if (handler != null)
+                handler.handle(httpExchange);
+            else
+                sendNotFound(httpExchange);
+        }
+    }
+
+    private static class NioEngine {
+
+        private static final int BUFFER_SIZE = 16 * 1024;
+        private static final long MAX_DRAINED_REQUEST_BYTES = 1024 * 1024;
+        private static final BufferPool buffers = new BufferPool(BUFFER_SIZE, 1024);
+        private static final SelectorPool selectors = new SelectorPool();
+
+        private static boolean write(HttpExchange httpExchange, ByteBuffer... sources) throws IOException {
+            ConnectionOutputStream target = getDirectTarget(httpExchange);
+            if (target == null)
+                return false;
+            ((NioExchange) httpExchange).bytesWritten += remaining(sources);
+            target.write(sources);
+            return true;
+        }
+
+        private static boolean record(HttpExchange httpExchange, ExchangeRecording recording) {
+            if (!(httpExchange instanceof NioExchange))
+                return false;
+            ((NioExchange) httpExchange).recording = recording;
+            return true;
+        }
+
+        private static long getResponseLength(HttpExchange httpExchange) {
+            if (httpExchange instanceof Http2Exchange)
+                return ((Http2Exchange) httpExchange).responseLength;
+            if (httpExchange instanceof NioExchange)
+                return ((NioExchange) httpExchange).responseLength;
+            try {
+                return getContentLength(httpExchange.getResponseHeaders());
+            } catch (IllegalArgumentException e) {
+                return -1;
+            }
+        }
+
+        private static boolean reset(HttpExchange httpExchange) {
+            if (httpExchange instanceof Http2Exchange) {
+                ((Http2Exchange) httpExchange).reset(Http2Session.INTERNAL_ERROR);
+                return true;
+            }
+            if (!(httpExchange instanceof NioExchange))
+                return false;
+            NioExchange exchange = (NioExchange) httpExchange;
+            try {
+                exchange.connection.channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+            } catch (IOException | UnsupportedOperationException ignored) {
+            }
+            exchange.connection.close();
+            exchange.abort();
+            return true;
+        }
+
+        private static boolean sendResponseHeaders(HttpExchange httpExchange, Response response) throws IOException {
+            if (!(httpExchange instanceof NioExchange))
+                return false;
+            NioExchange exchange = (NioExchange) httpExchange;
+            if (response.closesConnection)
+                exchange.keepAlive = false;
+            exchange.sendResponseHeaders(response.responseCode, response.getResponseLength(), response.encodedHeaders);
+            return true;
+        }
+
+        private static boolean sendResponseHeaders(HttpExchange httpExchange, int responseCode, long responseLength,
+                                                   byte[] encodedHeaders) throws IOException {
+            if (!(httpExchange instanceof NioExchange))
+                return false;
+            ((NioExchange) httpExchange).sendResponseHeaders(responseCode, responseLength, encodedHeaders);
+            return true;
+        }
+
+        private static boolean canWriteDirectly(HttpExchange httpExchange) {
+            return getDirectTarget(httpExchange) != null;
+        }
+
+        private static ConnectionOutputStream getDirectTarget(HttpExchange httpExchange) {
+            if (!(httpExchange instanceof NioExchange))
+                return null;
+            NioExchange exchange = (NioExchange) httpExchange;
+            if (exchange.out != exchange.responseBody)
+                return null;
+            return exchange.responseBody.target;
+        }
+
+        private static class NioListener implements Listener, Runnable {
+
+            private final ExecutorService executor;
+            private final DispatchRouter router = new DispatchRouter();
+            private final NioContext context = new NioContext(router, new NioServerView(this));
+            private final Selector selector;
+            private final ServerSocketChannel serverChannel;
+            private final Queue<NioConnection> resumedConnections = new ConcurrentLinkedQueue<>();
+            private final Set<NioConnection> connections = ConcurrentHashMap.newKeySet();
+            private final Path socketPath;
+            private final InetSocketAddress address;
+            private final String origin;
+            private final boolean http2;
+            private volatile boolean running = true;
+
+            NioListener(ServerConfig config, ExecutorService executor, int index) throws IOException {
+                if (config.ssl)
+                    throw new UnsupportedOperationException("The NIO engine does not support SSL");
+                this.executor = executor;
+                this.http2 = config.http2;
+                String name;
+                ServerSocketChannel channel = config.unixDomainSocket != null
+                        ? UnixDomainSockets.openServerChannel()
+                        : ServerSocketChannel.open();
+                Selector channelSelector = null;
+                try {
+                    if (config.unixDomainSocket != null) {
+                        socketPath = config.shards == 1
+                                ? config.unixDomainSocket
+                                : config.unixDomainSocket.resolveSibling(config.unixDomainSocket.getFileName() + "." + index);
+                        channel.bind(UnixDomainSockets.getAddress(socketPath));
+                        address = null;
+                        origin = "http+unix://" + URLEncoder.encode(socketPath.toString(), "UTF-8");
+                        name = socketPath.getFileName().toString();
+                    } else {
+                        socketPath = null;
+                        channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), getPort(config, index)));
+                        address = (InetSocketAddress) channel.getLocalAddress();
+                        origin = "http://" + address.getHostName() + ":" + address.getPort();
+                        name = Integer.toString(address.getPort());
+                    }
+                    channelSelector = Selector.open();
+                    channel.configureBlocking(false);
+                    channel.register(channelSelector, SelectionKey.OP_ACCEPT);
+                } catch (IOException | RuntimeException e) {
+                    if (channelSelector != null)
+                        closeQuietly(channelSelector);
+                    closeQuietly(channel);
+                    throw e;
+                }
+                serverChannel = channel;
+                selector = channelSelector;
+                new Thread(this, "SimpleHttpServer-nio-" + name).start();
+            }
+
+            @Override
+            public Router getRouter() {
+                return router;
+            }
+
+            @Override
+            public String getOrigin() {
+                return origin;
+            }
+
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        selector.select();
+                        resumeConnections();
+                        processSelectedKeys();
+                    } catch (ClosedSelectorException e) {
+                        return;
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+
+            private void processSelectedKeys() throws IOException {
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept();
+                    else
+                        ((NioConnection) key.attachment()).readRequestHead();
+                }
+            }
+
+            private void accept() throws IOException {
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    channel.configureBlocking(false);
+                    if (socketPath == null)
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    NioConnection connection = new NioConnection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connections.add(connection);
+                }
+            }
+
+            private void resume(NioConnection connection) {
+                resumedConnections.add(connection);
+                selector.wakeup();
+            }
+
+            private void resumeConnections() {
+                NioConnection connection;
+                while ((connection = resumedConnections.poll()) != null)
+                    try {
+                        connection.key.interestOps(SelectionKey.OP_READ);
+                    } catch (CancelledKeyException e) {
+                        connection.close();
+                    }
+            }
+
+            private void dispatch(NioConnection connection, RequestHead head) {
+                try {
+                    executor.execute(new ServeTask(connection, head));
+                } catch (RejectedExecutionException e) {
+                    connection.rejectRequestHead(503);
+                }
+            }
+
+            @Override
+            public void stop() {
+                running = false;
+                selector.wakeup();
+                closeQuietly(serverChannel);
+                connections.forEach(NioConnection::close);
+                closeQuietly(selector);
+                if (socketPath != null)
+                    closeQuietly(() -> Files.deleteIfExists(socketPath));
+            }
+        }
+
+        private static class ServeTask implements ServerExecutors.RejectableTask {
+
+            private final NioConnection connection;
+            private final RequestHead head;
+
+            ServeTask(NioConnection connection, RequestHead head) {
+                this.connection = connection;
+                this.head = head;
+            }
+
+            @Override
+            public void run() {
+                connection.serve(head);
+            }
+
+            @Override
+            public void reject() {
+                connection.rejectRequestHead(503);
+            }
+        }
+
+        private static class NioConnection {
+
+            private final NioListener listener;
+            private final SocketChannel channel;
+            private SelectionKey key;
+            private ByteBuffer input;
+            private ByteBuffer output;
+            private int scannedHeadBytes;
+
+            NioConnection(NioListener listener, SocketChannel channel) {
+                this.listener = listener;
+                this.channel = channel;
+            }
+
+            private void readRequestHead() {
+                try {
+                    if (input == null)
+                        input = buffers.acquire();
+                    if (fill() < 0) {
+                        close();
+                        return;
+                    }
+                    RequestHead head = parseRequestHead();
+                    if (head != null) {
+                        key.interestOps(0);
+                        listener.dispatch(this, head);
+                    } else if (input.remaining() == input.capacity()) {
+                        rejectRequestHead(431);
+                    } else if (!input.hasRemaining()) {
+                        releaseInput();
+                    }
+                } catch (BadRequestException e) {
+                    rejectRequestHead(400);
+                } catch (IOException | CancelledKeyException e) {
+                    close();
+                }
+            }
+
+            private RequestHead parseRequestHead() throws IOException {
+                int start = input.position();
+                for (int i = start + Math.max(scannedHeadBytes - 3, 0); i + 3 < input.limit(); i++)
+                    if (input.get(i) == '\r' && input.get(i + 1) == '\n' &&
+                            input.get(i + 2) == '\r' && input.get(i + 3) == '\n') {
+                        byte[] head = new byte[i - start];
+                        input.get(head);
+                        input.position(i + 4);
+                        scannedHeadBytes = 0;
+                        return RequestHead.parse(new String(head, StandardCharsets.ISO_8859_1));
+                    }
+                scannedHeadBytes = input.remaining();
+                return null;
+            }
+
+            private void rejectRequestHead(int responseCode) {
+                try {
+                    String response = "HTTP/1.1 " + responseCode + " " + getReasonPhrase(responseCode) +
+                            (responseCode == 503 ? "\r\nRetry-After: 1" : "") +
+                            "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+                    channel.write(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+                } catch (IOException ignored) {
+                }
+                close();
+            }
+
+            private void serve(RequestHead head) {
+                if (listener.http2 && (Http2Session.isPreface(head) || Http2Session.isUpgrade(head))) {
+                    Http2Session.start(this, head);
+                    return;
+                }
+                NioExchange exchange = null;
+                try {
+                    exchange = new NioExchange(this, head);
+                    listener.router.dispatch(exchange);
+                } catch (Throwable e) {
+                    if (exchange != null)
+                        exchange.abort();
+                    else
+                        close();
+                }
+            }
+
+            private void finish(boolean keepAlive) {
+                releaseOutput();
+                if (!keepAlive || !channel.isOpen()) {
+                    close();
+                    return;
+                }
+                try {
+                    RequestHead head = parseRequestHead();
+                    if (head != null) {
+                        listener.dispatch(this, head);
+                        return;
+                    }
+                } catch (BadRequestException e) {
+                    rejectRequestHead(400);
+                    return;
+                } catch (IOException e) {
+                    close();
+                    return;
+                }
+                if (!input.hasRemaining())
+                    releaseInput();
+                listener.resume(this);
+            }
+
+            private int fill() throws IOException {
+                input.compact();
+                try {
+                    return channel.read(input);
+                } finally {
+                    input.flip();
+                }
+            }
+
+            private int read() throws IOException {
+                return awaitInput() ? input.get() & 0xff : -1;
+            }
+
+            private int read(byte[] b, int off, int len) throws IOException {
+                if (!awaitInput())
+                    return -1;
+                int count = Math.min(len, input.remaining());
+                input.get(b, off, count);
+                return count;
+            }
+
+            private boolean awaitInput() throws IOException {
+                while (!input.hasRemaining()) {
+                    int count = fill();
+                    if (count < 0)
+                        return false;
+                    if (count == 0)
+                        await(SelectionKey.OP_READ);
+                }
+                return true;
+            }
+
+            private void write(byte[] b, int off, int len) throws IOException {
+                if (output == null)
+                    output = buffers.acquireForWriting();
+                if (len <= output.remaining()) {
+                    output.put(b, off, len);
+                    return;
+                }
+                output.flip();
+                writeFully(output, ByteBuffer.wrap(b, off, len));
+                output.clear();
+            }
+
+            private void write(ByteBuffer... sources) throws IOException {
+                if (output == null || output.position() == 0) {
+                    writeFully(sources);
+                    return;
+                }
+                ByteBuffer[] gathered = new ByteBuffer[sources.length + 1];
+                gathered[0] = output;
+                System.arraycopy(sources, 0, gathered, 1, sources.length);
+                output.flip();
+                writeFully(gathered);
+                output.clear();
+            }
+
+            private void flush() throws IOException {
+                if (output == null || output.position() == 0)
+                    return;
+                output.flip();
+                writeFully(output);
+                output.clear();
+            }
+
+            private void writeFully(ByteBuffer... sources) throws IOException {
+                long remaining = remaining(sources);
+                while (remaining > 0) {
+                    long count = channel.write(sources);
+                    if (count == 0)
+                        await(SelectionKey.OP_WRITE);
+                    remaining -= count;
+                }
+            }
+
+            private void await(int operation) throws IOException {
+                Selector selector = selectors.acquire();
+                try {
+                    SelectionKey temporaryKey = channel.register(selector, operation);
+                    try {
+                        while (selector.select(1000) == 0)
+                            if (!channel.isOpen() || !listener.running)
+                                throw new IOException("Connection closed");
+                    } finally {
+                        temporaryKey.cancel();
+                        selector.selectNow();
+                    }
+                } finally {
+                    selectors.release(selector);
+                }
+            }
+
+            private InetSocketAddress getSocketAddress(boolean remote) {
+                try {
+                    SocketAddress address = remote ? channel.getRemoteAddress() : channel.getLocalAddress();
+                    return address instanceof InetSocketAddress ? (InetSocketAddress) address : null;
+                } catch (IOException e) {
+                    return null;
+                }
+            }
+
+            private void releaseInput() {
+                buffers.release(input);
+                input = null;
+            }
+
+            private void releaseOutput() {
+                if (output != null)
+                    buffers.release(output);
+                output = null;
+            }
+
+            private void close() {
+                listener.connections.remove(this);
+                if (key != null)
+                    key.cancel();
+                closeQuietly(channel);
+                if (key != null)
+                    listener.selector.wakeup();
+            }
+        }
+
+        private static class RequestHead {
+
+            private final String method;
+            private final URI uri;
+            private final String protocol;
+            private final Headers headers = new Headers();
+            private long contentLength;
+
+            private RequestHead(String method, URI uri, String protocol) {
+                this.method = method;
+                this.uri = uri;
+                this.protocol = protocol;
+            }
+
+            static RequestHead parse(String head) throws IOException {
+                String[] lines = head.split("\r\n");
+                int first = 0;
+                while (first < lines.length - 1 && lines[first].isEmpty())
+                    first++;
+                String[] requestLine = lines[first].split(" ");
+                if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/"))
+                    throw new BadRequestException("Malformed request line: " + lines[first]);
+                RequestHead requestHead;
+                try {
+                    requestHead = new RequestHead(requestLine[0], new URI(requestLine[1]), requestLine[2]);
+                } catch (URISyntaxException e) {
+                    throw new BadRequestException(e.getMessage());
+                }
+                for (int i = first + 1; i < lines.length; i++)
+                    requestHead.addHeader(lines[i]);
+                try {
+                    requestHead.contentLength = Math.max(0, SimpleHttpServer.getContentLength(requestHead.headers));
+                } catch (IllegalArgumentException e) {
+                    throw new BadRequestException(e.getMessage());
+                }
+                if (requestHead.isChunked() && requestHead.headers.containsKey("Content-Length"))
+                    throw new BadRequestException("Both Content-Length and chunked Transfer-Encoding");
+                return requestHead;
+            }
+
+            private void addHeader(String line) {
+                int colon = line.indexOf(':');
+                if (colon > 0)
+                    headers.add(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            }
+
+            private boolean isKeepAlive() {
+                String connection = headers.getFirst("Connection");
+                if ("HTTP/1.0".equals(protocol))
+                    return "keep-alive".equalsIgnoreCase(connection);
+                return !"close".equalsIgnoreCase(connection);
+            }
+
+            private boolean isChunked() {
+                String transferEncoding = headers.getFirst("Transfer-Encoding");
+                return transferEncoding != null && transferEncoding.toLowerCase().contains("chunked");
+            }
+
+            private long getContentLength() {
+                return contentLength;
+            }
+        }
+
+        private static class BadRequestException extends IOException {
+
+            private static final long serialVersionUID = 1L;
+
+            BadRequestException(String message) {
+                super(message);
+            }
+        }
+
+        private static class NioExchange extends HttpExchange {
+
+            private final NioConnection connection;
+            private final RequestHead head;
+            private final Headers responseHeaders = new Headers();
+            private final Map<String, Object> attributes = new HashMap<>();
+            private final RequestBodyStream requestBody;
+            private final ResponseBodyStream responseBody = new ResponseBodyStream(this);
+            private InputStream in;
+            private OutputStream out;
+            private boolean keepAlive;
+            private int responseCode = -1;
+            private long responseLength = -1;
+            private boolean closed;
+            private long bytesWritten;
+            private ExchangeRecording recording;
+
+            NioExchange(NioConnection connection, RequestHead head) {
+                this.connection = connection;
+                this.head = head;
+                this.keepAlive = head.isKeepAlive();
+                this.requestBody = new RequestBodyStream(connection, head);
+                this.in = requestBody;
+                this.out = responseBody;
+            }
+
+            @Override
+            public Headers getRequestHeaders() {
+                return head.headers;
+            }
+
+            @Override
+            public Headers getResponseHeaders() {
+                return responseHeaders;
+            }
+
+            @Override
+            public URI getRequestURI() {
+                return head.uri;
+            }
+
+            @Override
+            public String getRequestMethod() {
+                return head.method;
+            }
+
+            @Override
+            public HttpContext getHttpContext() {
+                return connection.listener.context;
+            }
+
+            @Override
+            public InputStream getRequestBody() {
+                return in;
+            }
+
+            @Override
+            public OutputStream getResponseBody() {
+                return out;
+            }
+
+            @Override
+            public void sendResponseHeaders(int responseCode, long responseLength) throws IOException {
+                sendResponseHeaders(responseCode, responseLength, null);
+            }
+
+            private void sendResponseHeaders(int responseCode, long responseLength, byte[] encodedHeaders)
+                    throws IOException {
+                if (this.responseCode != -1)
+                    throw new IOException("Response headers already sent");
+                this.responseCode = responseCode;
+                if ("close".equalsIgnoreCase(responseHeaders.getFirst("Connection")))
+                    keepAlive = false;
+                boolean noBody = responseLength == -1 || hasNoBody(responseCode) || "HEAD".equals(head.method);
+                this.responseLength = noBody ? 0 : responseLength > 0 ? responseLength : -1;
+                StringBuilder responseHead = new StringBuilder(256)
+                        .append("HTTP/1.1 ").append(responseCode).append(' ')
+                        .append(getReasonPhrase(responseCode)).append("\r\n");
+                appendResponseHeaders(responseHead);
+                if (encodedHeaders != null) {
+                    writeResponseHead(responseHead);
+                    connection.write(encodedHeaders, 0, encodedHeaders.length);
+                }
+                if (noBody) {
+                    appendFramingHeader(responseHead, responseLength > 0 ? responseLength : 0);
+                    responseBody.target = new DiscardingOutputStream(connection);
+                } else if (responseLength > 0) {
+                    appendFramingHeader(responseHead, responseLength);
+                    responseBody.target = new FixedLengthOutputStream(connection, responseLength);
+                } else if ("HTTP/1.0".equals(head.protocol)) {
+                    keepAlive = false;
+                    responseBody.target = new ConnectionOutputStream(connection);
+                } else {
+                    responseHead.append("Transfer-Encoding: chunked\r\n");
+                    responseBody.target = new ChunkedOutputStream(connection);
+                }
+                if (!keepAlive)
+                    responseHead.append("Connection: close\r\n");
+                responseHead.append("\r\n");
+                writeResponseHead(responseHead);
+            }
+
+            private void writeResponseHead(StringBuilder responseHead) throws IOException {
+                byte[] bytes = responseHead.toString().getBytes(StandardCharsets.ISO_8859_1);
+                connection.write(bytes, 0, bytes.length);
+                responseHead.setLength(0);
+            }
+
+            private static boolean hasNoBody(int responseCode) {
+                return responseCode < 200 || responseCode == 204 || responseCode == 304;
+            }
+
+            private void appendResponseHeaders(StringBuilder responseHead) {
+                for (Map.Entry<String, List<String>> header : responseHeaders.entrySet())
+                    if (!isFramingHeader(header.getKey()))
+                        for (String value : header.getValue())
+                            responseHead.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+
+            private static boolean isFramingHeader(String name) {
+                return "Content-length".equalsIgnoreCase(name) || "Transfer-encoding".equalsIgnoreCase(name) ||
+                        "Connection".equalsIgnoreCase(name);
+            }
+
+            private void appendFramingHeader(StringBuilder responseHead, long contentLength) {
+                if (responseCode != 304 && responseCode != 204 && responseCode >= 200)
+                    responseHead.append("Content-Length: ").append(contentLength).append("\r\n");
+            }
+
+            @Override
+            public void close() {
+                if (closed)
+                    return;
+                closed = true;
+                try {
+                    if (responseCode == -1)
+                        keepAlive = false;
+                    else
+                        responseBody.target.close();
+                    connection.flush();
+                    if (keepAlive && !requestBody.drain(MAX_DRAINED_REQUEST_BYTES))
+                        keepAlive = false;
+                } catch (IOException e) {
+                    keepAlive = false;
+                }
+                if (recording != null) {
+                    recording.bytesIn = requestBody.bytesRead;
+                    recording.bytesOut = bytesWritten;
+                    recording.complete();
+                }
+                connection.finish(keepAlive);
+            }
+
+            private void abort() {
+                keepAlive = false;
+                close();
+            }
+
+            @Override
+            public InetSocketAddress getRemoteAddress() {
+                return connection.getSocketAddress(true);
+            }
+
+            @Override
+            public InetSocketAddress getLocalAddress() {
+                return connection.getSocketAddress(false);
+            }
+
+            @Override
+            public int getResponseCode() {
+                return responseCode;
+            }
+
+            @Override
+            public String getProtocol() {
+                return head.protocol;
+            }
+
+            @Override
+            public Object getAttribute(String name) {
+                return attributes.get(name);
+            }
+
+            @Override
+            public void setAttribute(String name, Object value) {
+                attributes.put(name, value);
+            }
+
+            @Override
+            public void setStreams(InputStream in, OutputStream out) {
+                if (in != null)
+                    this.in = in;
+                if (out != null)
+                    this.out = out;
+            }
+
+            @Override
+            public HttpPrincipal getPrincipal() {
+                return null;
+            }
+        }
+
+        private static class NioContext extends HttpContext {
+
+            private final DispatchRouter router;
+            private final HttpServer server;
+            private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+
+            NioContext(DispatchRouter router, HttpServer server) {
+                this.router = router;
+                this.server = server;
+            }
+
+            @Override
+            public HttpHandler getHandler() {
+                return router::dispatch;
+            }
+
+            @Override
+            public void setHandler(HttpHandler handler) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public String getPath() {
+                return "/";
+            }
+
+            @Override
+            public HttpServer getServer() {
+                return server;
+            }
+
+            @Override
+            public Map<String, Object> getAttributes() {
+                return attributes;
+            }
+
+            @Override
+            public List<Filter> getFilters() {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public Authenticator setAuthenticator(Authenticator authenticator) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public Authenticator getAuthenticator() {
+                return null;
+            }
+        }
+
+        private static class NioServerView extends HttpServer {
+
+            private final NioListener listener;
+
+            NioServerView(NioListener listener) {
+                this.listener = listener;
+            }
+
+            @Override
+            public InetSocketAddress getAddress() {
+                return listener.address;
+            }
+
+            @Override
+            public Executor getExecutor() {
+                return listener.executor;
+            }
+
+            @Override
+            public void bind(InetSocketAddress address, int backlog) {
+                throw unsupported();
+            }
+
+            @Override
+            public void start() {
+                throw unsupported();
+            }
+
+            @Override
+            public void setExecutor(Executor executor) {
+                throw unsupported();
+            }
+
+            @Override
+            public void stop(int delay) {
+                throw unsupported();
+            }
+
+            @Override
+            public HttpContext createContext(String path, HttpHandler handler) {
+                throw unsupported();
+            }
+
+            @Override
+            public HttpContext createContext(String path) {
+                throw unsupported();
+            }
+
+            @Override
+            public void removeContext(String path) {
+                throw unsupported();
+            }
+
+            @Override
+            public void removeContext(HttpContext context) {
+                throw unsupported();
+            }
+
+            private static UnsupportedOperationException unsupported() {
+                return new UnsupportedOperationException("The NIO engine's server is read-only, it is started and " +
+                        "stopped by SimpleHttpServer");
+            }
+        }
+
+        private static class RequestBodyStream extends InputStream {
+
+            private final NioConnection connection;
+            private final boolean expectContinue;
+            private final boolean chunked;
+            private long remaining;
+            private long bytesRead;
+            private boolean continueSent;
+            private boolean finished;
+
+            RequestBodyStream(NioConnection connection, RequestHead head) {
+                this.connection = connection;
+                this.expectContinue = "100-continue".equalsIgnoreCase(head.headers.getFirst("Expect"));
+                this.chunked = head.isChunked();
+                this.remaining = chunked ? 0 : head.getContentLength();
+                this.finished = !chunked && remaining == 0;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int count = readBody(b, off, len);
+                if (count > 0)
+                    bytesRead += count;
+                return count;
+            }
+
+            private int readBody(byte[] b, int off, int len) throws IOException {
+                if (finished)
+                    return -1;
+                if (len == 0)
+                    return 0;
+                sendContinue();
+                if (remaining == 0 && !nextChunk())
+                    return -1;
+                int count = connection.read(b, off, (int) Math.min(len, remaining));
+                if (count < 0)
+                    throw new IOException("Unexpected end of request body");
+                remaining -= count;
+                if (remaining == 0 && !chunked)
+                    finished = true;
+                return count;
+            }
+
+            private void sendContinue() throws IOException {
+                if (expectContinue && !continueSent) {
+                    continueSent = true;
+                    byte[] response = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+                    connection.write(response, 0, response.length);
+                    connection.flush();
+                }
+            }
+
+            private boolean nextChunk() throws IOException {
+                String line = readLine();
+                if (line.isEmpty())
+                    line = readLine();
+                int extension = line.indexOf(';');
+                try {
+                    remaining = Long.parseLong((extension < 0 ? line : line.substring(0, extension)).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed chunk size: " + line);
+                }
+                if (remaining < 0)
+                    throw new IOException("Malformed chunk size: " + line);
+                if (remaining == 0) {
+                    while (!readLine().isEmpty())
+                        ;
+                    finished = true;
+                }
+                return !finished;
+            }
+
+            private String readLine() throws IOException {
+                StringBuilder line = new StringBuilder();
+                int b;
+                while ((b = connection.read()) != '\n') {
+                    if (b < 0)
+                        throw new IOException("Unexpected end of chunked request body");
+                    if (b != '\r')
+                        line.append((char) b);
+                }
+                return line.toString();
+            }
+
+            private boolean drain(long limit) throws IOException {
+                if (expectContinue && !continueSent)
+                    return finished;
+                byte[] buffer = new byte[4096];
+                long drained = 0;
+                int count;
+                while (drained <= limit && (count = readBody(buffer, 0, buffer.length)) > 0)
+                    drained += count;
+                return finished;
+            }
+
+            @Override
+            public void close() {
+            }
+        }
+
+        private static class ResponseBodyStream extends OutputStream {
+
+            private final NioExchange exchange;
+            private ConnectionOutputStream target;
+
+            ResponseBodyStream(NioExchange exchange) {
+                this.exchange = exchange;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                getTarget().write(b);
+                exchange.bytesWritten++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                getTarget().write(b, off, len);
+                exchange.bytesWritten += len;
+            }
+
+            @Override
+            public void flush() throws IOException {
+                getTarget().flush();
+            }
+
+            private ConnectionOutputStream getTarget() throws IOException {
+                if (target == null)
+                    throw new IOException("Response headers not sent yet");
+                return target;
+            }
+
+            @Override
+            public void close() {
+                exchange.close();
+            }
+        }
+
+        private static class ConnectionOutputStream extends OutputStream {
+
+            final NioConnection connection;
+
+            ConnectionOutputStream(NioConnection connection) {
+                this.connection = connection;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                connection.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                connection.flush();
+            }
+
+            void write(ByteBuffer... sources) throws IOException {
+                connection.write(sources);
+            }
+        }
+
+        private static class FixedLengthOutputStream extends ConnectionOutputStream {
+
+            private long remaining;
+
+            FixedLengthOutputStream(NioConnection connection, long length) {
+                super(connection);
+                this.remaining = length;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                count(len);
+                super.write(b, off, len);
+            }
+
+            @Override
+            void write(ByteBuffer... sources) throws IOException {
+                count(remaining(sources));
+                super.write(sources);
+            }
+
+            private void count(long length) throws IOException {
+                if (length > remaining)
+                    throw new IOException("Too many bytes to write to stream");
+                remaining -= length;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (remaining > 0)
+                    throw new IOException("Insufficient bytes written to stream");
+            }
+        }
+
+        private static class ChunkedOutputStream extends ConnectionOutputStream {
+
+            private static final byte[] CRLF = {'\r', '\n'};
+            private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+
+            ChunkedOutputStream(NioConnection connection) {
+                super(connection);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (len == 0)
+                    return;
+                writeChunkSize(len);
+                connection.write(b, off, len);
+                connection.write(CRLF, 0, CRLF.length);
+            }
+
+            @Override
+            void write(ByteBuffer... sources) throws IOException {
+                long size = remaining(sources);
+                if (size == 0)
+                    return;
+                writeChunkSize(size);
+                connection.write(sources);
+                connection.write(CRLF, 0, CRLF.length);
+            }
+
+            private void writeChunkSize(long size) throws IOException {
+                byte[] chunkSize = (Long.toHexString(size) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                connection.write(chunkSize, 0, chunkSize.length);
+            }
+
+            @Override
+            public void close() throws IOException {
+                connection.write(LAST_CHUNK, 0, LAST_CHUNK.length);
+            }
+        }
+
+        private static class DiscardingOutputStream extends ConnectionOutputStream {
+
+            DiscardingOutputStream(NioConnection connection) {
+                super(connection);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+
+            @Override
+            void write(ByteBuffer... sources) {
+            }
+        }
+
+        private static class Http2Session implements Runnable {
+
+            private static final byte[] PREFACE =
+                    "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+            private static final byte[] SWITCHING_PROTOCOLS =
+                    "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n"
+                            .getBytes(StandardCharsets.ISO_8859_1);
+            private static final byte[] NO_PAYLOAD = new byte[0];
+            private static final int DATA = 0x0;
+            private static final int HEADERS = 0x1;
+            private static final int PRIORITY = 0x2;
+            private static final int RST_STREAM = 0x3;
+            private static final int SETTINGS = 0x4;
+            private static final int PUSH_PROMISE = 0x5;
+            private static final int PING = 0x6;
+            private static final int GOAWAY = 0x7;
+            private static final int WINDOW_UPDATE = 0x8;
+            private static final int CONTINUATION = 0x9;
+            private static final int FLAG_END_STREAM = 0x1;
+            private static final int FLAG_ACK = 0x1;
+            private static final int FLAG_END_HEADERS = 0x4;
+            private static final int FLAG_PADDED = 0x8;
+            private static final int FLAG_PRIORITY = 0x20;
+            private static final int NO_ERROR = 0x0;
+            private static final int PROTOCOL_ERROR = 0x1;
+            private static final int INTERNAL_ERROR = 0x2;
+            private static final int FLOW_CONTROL_ERROR = 0x3;
+            private static final int FRAME_SIZE_ERROR = 0x6;
+            private static final int REFUSED_STREAM = 0x7;
+            private static final int COMPRESSION_ERROR = 0x9;
+            private static final int ENHANCE_YOUR_CALM = 0xb;
+            private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+            private static final int SETTINGS_ENABLE_PUSH = 0x2;
+            private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+            private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+            private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+            private static final int DEFAULT_WINDOW_SIZE = 65535;
+            private static final int DEFAULT_FRAME_SIZE = 16384;
+            private static final int MAX_FRAME_SIZE = 16777215;
+            private static final int MAX_CONCURRENT_STREAMS = 256;
+            private static final int STREAM_WINDOW_SIZE = 1024 * 1024;
+            private static final int CONNECTION_WINDOW_SIZE = 16 * 1024 * 1024;
+            private static final int MAX_HEADER_BLOCK_SIZE = 64 * 1024;
+            private static final int MAX_SESSIONS = 512;
+            private static final AtomicInteger sessions = new AtomicInteger();
+            private static final Set<String> CONNECTION_HEADERS = new HashSet<>(Arrays.asList(
+                    "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "http2-settings"));
+
+            private final NioConnection connection;
+            private final RequestHead upgrade;
+            private final Map<Integer, Http2Exchange> streams = new ConcurrentHashMap<>();
+            private final Hpack.Decoder decoder = new Hpack.Decoder();
+            private final Hpack.Encoder encoder = new Hpack.Encoder();
+            private final Object writeLock = new Object();
+            private final byte[] frameHeader = new byte[9];
+            private final byte[] readHeader = new byte[9];
+            private long sendWindow = DEFAULT_WINDOW_SIZE;
+            private int initialStreamWindow = DEFAULT_WINDOW_SIZE;
+            private volatile int maxFrameSize = DEFAULT_FRAME_SIZE;
+            private volatile boolean closed;
+            private long receiveWindow = CONNECTION_WINDOW_SIZE;
+            private int lastStreamId;
+            private ByteArrayOutputStream headerBlock;
+            private int headerBlockStreamId;
+            private boolean headerBlockEndsStream;
+
+            private Http2Session(NioConnection connection, RequestHead upgrade) {
+                this.connection = connection;
+                this.upgrade = upgrade;
+            }
+
+            static boolean isPreface(RequestHead head) {
+                return "PRI".equals(head.method) && "HTTP/2.0".equals(head.protocol) && "*".equals(head.uri.toString());
+            }
+
+            static boolean isUpgrade(RequestHead head) {
+                String upgrade = head.headers.getFirst("Upgrade");
+                if (upgrade == null || head.headers.getFirst("HTTP2-Settings") == null ||
+                        head.isChunked() || head.getContentLength() != 0)
+                    return false;
+                for (String protocol : upgrade.split(","))
+                    if ("h2c".equalsIgnoreCase(protocol.trim()))
+                        return true;
+                return false;
+            }
+
+            static void start(NioConnection connection, RequestHead head) {
+                Http2Session session = new Http2Session(connection, isPreface(head) ? null : head);
+                if (sessions.incrementAndGet() > MAX_SESSIONS) {
+                    sessions.decrementAndGet();
+                    session.refuse();
+                    return;
+                }
+                Thread thread = newDaemonThread(session);
+                thread.setName("SimpleHttpServer-h2-" + thread.getId());
+                thread.start();
+            }
+
+            private void refuse() {
+                if (upgrade != null) {
+                    connection.rejectRequestHead(503);
+                    return;
+                }
+                try {
+                    writeSettings();
+                    writeGoAwayQuietly(REFUSED_STREAM);
+                } catch (IOException ignored) {
+                } finally {
+                    shutdown();
+                }
+            }
+
+            @Override
+            public void run() {
+                try {
+                    if (upgrade != null) {
+                        byte[] settings = decodeSettings(upgrade.headers.getFirst("HTTP2-Settings"));
+                        writeRaw(SWITCHING_PROTOCOLS);
+                        applySettings(settings);
+                    }
+                    writeSettings();
+                    readPreface();
+                    if (upgrade != null)
+                        openUpgradedStream();
+                    while (readFrame())
+                        ;
+                } catch (Http2Exception e) {
+                    writeGoAwayQuietly(e.errorCode);
+                } catch (IOException | RuntimeException ignored) {
+                } finally {
+                    shutdown();
+                    sessions.decrementAndGet();
+                }
+            }
+
+            private byte[] decodeSettings(String settings) throws IOException {
+                try {
+                    return Base64.getUrlDecoder().decode(settings.trim());
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Malformed HTTP2-Settings header", e);
+                }
+            }
+
+            private void readPreface() throws IOException {
+                byte[] preface = new byte[upgrade != null ? PREFACE.length : "SM\r\n\r\n".length()];
+                if (!readFully(preface))
+                    throw new IOException("Missing connection preface");
+                byte[] expected = Arrays.copyOfRange(PREFACE, PREFACE.length - preface.length, PREFACE.length);
+                if (!Arrays.equals(preface, expected))
+                    throw new Http2Exception(PROTOCOL_ERROR, "Invalid connection preface");
+            }
+
+            private void openUpgradedStream() {
+                Headers headers = new Headers();
+                for (Map.Entry<String, List<String>> header : upgrade.headers.entrySet())
+                    if (!CONNECTION_HEADERS.contains(header.getKey().toLowerCase(Locale.ROOT)))
+                        headers.put(header.getKey(), header.getValue());
+                lastStreamId = 1;
+                open(new Http2Exchange(this, 1, upgrade.method, upgrade.uri, headers, true));
+            }
+
+            private boolean readFrame() throws IOException {
+                if (!readFully(readHeader))
+                    return false;
+                int length = (readHeader[0] & 0xff) << 16 | (readHeader[1] & 0xff) << 8 | readHeader[2] & 0xff;
+                int type = readHeader[3] & 0xff;
+                int flags = readHeader[4] & 0xff;
+                int streamId = getInt(readHeader, 5) & 0x7fffffff;
+                if (length > DEFAULT_FRAME_SIZE)
+                    throw new Http2Exception(FRAME_SIZE_ERROR, "Frame of " + length + " bytes exceeds the maximum");
+                byte[] payload = length == 0 ? NO_PAYLOAD : new byte[length];
+                if (!readFully(payload))
+                    throw new IOException("Unexpected end of frame");
+                if (headerBlock != null && (type != CONTINUATION || streamId != headerBlockStreamId))
+                    throw new Http2Exception(PROTOCOL_ERROR, "Header block interrupted");
+                switch (type) {
+                    case DATA:
+                        onData(flags, streamId, payload);
+                        break;
+                    case HEADERS:
+                        onHeaders(flags, streamId, payload);
+                        break;
+                    case PRIORITY:
+                        if (streamId == 0 || length != 5)
+                            throw new Http2Exception(PROTOCOL_ERROR, "Invalid PRIORITY frame");
+                        break;
+                    case RST_STREAM:
+                        onReset(streamId, payload);
+                        break;
+                    case SETTINGS:
+                        onSettings(flags, streamId, payload);
+                        break;
+                    case PUSH_PROMISE:
+                        throw new Http2Exception(PROTOCOL_ERROR, "Clients must not push");
+                    case PING:
+                        onPing(flags, streamId, payload);
+                        break;
+                    case GOAWAY:
+                        if (streamId != 0)
+                            throw new Http2Exception(PROTOCOL_ERROR, "Invalid GOAWAY frame");
+                        break;
+                    case WINDOW_UPDATE:
+                        onWindowUpdate(streamId, payload);
+                        break;
+                    case CONTINUATION:
+                        onContinuation(flags, streamId, payload);
+                        break;
+                    default:
+                        break;
+                }
+                return true;
+            }
+
+            private boolean readFully(byte[] b) throws IOException {
+                int offset = 0;
+                while (offset < b.length) {
+                    int count = connection.read(b, offset, b.length - offset);
+                    if (count < 0) {
+                        if (offset == 0)
+                            return false;
+                        throw new IOException("Unexpected end of stream");
+                    }
+                    offset += count;
+                }
+                return true;
+            }
+
+            private void onData(int flags, int streamId, byte[] payload) throws IOException {
+                if (streamId == 0)
+                    throw new Http2Exception(PROTOCOL_ERROR, "DATA frame on stream 0");
+                if (streamId > lastStreamId)
+                    throw new Http2Exception(PROTOCOL_ERROR, "DATA frame on idle stream " + streamId);
+                int offset = getPadding(flags, payload);
+                int length = payload.length - offset - ((flags & FLAG_PADDED) != 0 ? payload[0] & 0xff : 0);
+                receiveWindow -= payload.length;
+                if (receiveWindow < 0)
+                    throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection window exceeded");
+                if (receiveWindow <= CONNECTION_WINDOW_SIZE / 2) {
+                    writeWindowUpdate(0, (int) (CONNECTION_WINDOW_SIZE - receiveWindow));
+                    receiveWindow = CONNECTION_WINDOW_SIZE;
+                }
+                Http2Exchange stream = streams.get(streamId);
+                if (stream != null && !stream.receive(payload, offset, length, payload.length,
+                        (flags & FLAG_END_STREAM) != 0))
+                    stream.reset(FLOW_CONTROL_ERROR);
+            }
+
+            private void onHeaders(int flags, int streamId, byte[] payload) throws IOException {
+                if (streamId == 0 || streamId % 2 == 0)
+                    throw new Http2Exception(PROTOCOL_ERROR, "Invalid stream id " + streamId);
+                int offset = getPadding(flags, payload);
+                int length = payload.length - offset - ((flags & FLAG_PADDED) != 0 ? payload[0] & 0xff : 0);
+                if ((flags & FLAG_PRIORITY) != 0) {
+                    offset += 5;
+                    length -= 5;
+                }
+                if (length < 0)
+                    throw new Http2Exception(PROTOCOL_ERROR, "Invalid HEADERS frame");
+                headerBlock = new ByteArrayOutputStream(length);
+                headerBlock.write(payload, offset, length);
+                headerBlockStreamId = streamId;
+                headerBlockEndsStream = (flags & FLAG_END_STREAM) != 0;
+                if ((flags & FLAG_END_HEADERS) != 0)
+                    endHeaderBlock();
+            }
+
+            private void onContinuation(int flags, int streamId, byte[] payload) throws IOException {
+                if (headerBlock == null)
+                    throw new Http2Exception(PROTOCOL_ERROR, "Unexpected CONTINUATION frame");
+                headerBlock.write(payload, 0, payload.length);
+                if (headerBlock.size() > MAX_HEADER_BLOCK_SIZE)
+                    throw new Http2Exception(ENHANCE_YOUR_CALM, "Header block too large");
+                if ((flags & FLAG_END_HEADERS) != 0)
+                    endHeaderBlock();
+            }
+
+            private void endHeaderBlock() throws IOException {
+                int streamId = headerBlockStreamId;
+                List<String[]> fields = decoder.decode(headerBlock.toByteArray());
+                headerBlock = null;
+                if (streamId <= lastStreamId) {
+                    Http2Exchange stream = streams.get(streamId);
+                    if (stream != null && !headerBlockEndsStream)
+                        stream.reset(PROTOCOL_ERROR);
+                    else if (stream != null)
+                        stream.receive(NO_PAYLOAD, 0, 0, 0, true);
+                    return;
+                }
+                lastStreamId = streamId;
+                Http2Exchange stream = Http2Exchange.create(this, streamId, fields, headerBlockEndsStream);
+                if (stream == null)
+                    writeReset(streamId, PROTOCOL_ERROR);
+                else if (streams.size() >= MAX_CONCURRENT_STREAMS)
+                    writeReset(streamId, REFUSED_STREAM);
+                else
+                    open(stream);
+            }
+
+            private void open(Http2Exchange stream) {
+                synchronized (this) {
+                    stream.sendWindow = initialStreamWindow;
+                }
+                streams.put(stream.id, stream);
+                try {
+                    connection.listener.executor.execute(stream::serve);
+                } catch (RejectedExecutionException e) {
+                    stream.reset(REFUSED_STREAM);
+                }
+            }
+
+            private static int getPadding(int flags, byte[] payload) throws Http2Exception {
+                if ((flags & FLAG_PADDED) == 0)
+                    return 0;
+                if (payload.length == 0 || (payload[0] & 0xff) >= payload.length)
+                    throw new Http2Exception(PROTOCOL_ERROR, "Invalid padding");
+                return 1;
+            }
+
+            private void onReset(int streamId, byte[] payload) throws IOException {
+                if (streamId == 0)
+                    throw new Http2Exception(PROTOCOL_ERROR, "RST_STREAM frame on stream 0");
+                if (payload.length != 4)
+                    throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid RST_STREAM frame");
+                Http2Exchange stream = streams.remove(streamId);
+                if (stream != null)
+                    stream.cancel();
+            }
+
+            private void onSettings(int flags, int streamId, byte[] payload) throws IOException {
+                if (streamId != 0)
+                    throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS frame on stream " + streamId);
+                if ((flags & FLAG_ACK) != 0) {
+                    if (payload.length != 0)
+                        throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid SETTINGS acknowledgement");
+                    return;
+                }
+                applySettings(payload);
+                writeFrame(SETTINGS, FLAG_ACK, 0, NO_PAYLOAD, 0, 0, true);
+            }
+
+            private void applySettings(byte[] payload) throws IOException {
+                if (payload.length % 6 != 0)
+                    throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid SETTINGS frame");
+                for (int i = 0; i < payload.length; i += 6) {
+                    int id = (payload[i] & 0xff) << 8 | payload[i + 1] & 0xff;
+                    long value = getInt(payload, i + 2) & 0xffffffffL;
+                    switch (id) {
+                        case SETTINGS_HEADER_TABLE_SIZE:
+                            synchronized (writeLock) {
+                                encoder.setMaxTableSize((int) Math.min(value, Hpack.DEFAULT_TABLE_SIZE));
+                            }
+                            break;
+                        case SETTINGS_ENABLE_PUSH:
+                            if (value > 1)
+                                throw new Http2Exception(PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH");
+                            break;
+                        case SETTINGS_INITIAL_WINDOW_SIZE:
+                            if (value > Integer.MAX_VALUE)
+                                throw new Http2Exception(FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                            setInitialStreamWindow((int) value);
+                            break;
+                        case SETTINGS_MAX_FRAME_SIZE:
+                            if (value < DEFAULT_FRAME_SIZE || value > MAX_FRAME_SIZE)
+                                throw new Http2Exception(PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE");
+                            maxFrameSize = (int) value;
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            }
+
+            private synchronized void setInitialStreamWindow(int size) throws Http2Exception {
+                int delta = size - initialStreamWindow;
+                initialStreamWindow = size;
+                for (Http2Exchange stream : streams.values()) {
+                    stream.sendWindow += delta;
+                    if (stream.sendWindow > Integer.MAX_VALUE)
+                        throw new Http2Exception(FLOW_CONTROL_ERROR, "Stream window overflow");
+                }
+                notifyAll();
+            }
+
+            private void onPing(int flags, int streamId, byte[] payload) throws IOException {
+                if (streamId != 0)
+                    throw new Http2Exception(PROTOCOL_ERROR, "PING frame on stream " + streamId);
+                if (payload.length != 8)
+                    throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid PING frame");
+                if ((flags & FLAG_ACK) == 0)
+                    writeFrame(PING, FLAG_ACK, 0, payload, 0, payload.length, true);
+            }
+
+            private void onWindowUpdate(int streamId, byte[] payload) throws IOException {
+                if (payload.length != 4)
+                    throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE frame");
+                int increment = getInt(payload, 0) & 0x7fffffff;
+                if (streamId == 0) {
+                    if (increment == 0)
+                        throw new Http2Exception(PROTOCOL_ERROR, "Invalid connection window increment");
+                    synchronized (this) {
+                        sendWindow += increment;
+                        if (sendWindow > Integer.MAX_VALUE)
+                            throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection window overflow");
+                        notifyAll();
+                    }
+                    return;
+                }
+                Http2Exchange stream = streams.get(streamId);
+                if (stream == null)
+                    return;
+                boolean overflow;
+                synchronized (this) {
+                    stream.sendWindow += increment;
+                    overflow = increment == 0 || stream.sendWindow > Integer.MAX_VALUE;
+                    notifyAll();
+                }
+                if (overflow)
+                    stream.reset(increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR);
+            }
+
+            private void writeSettings() throws IOException {
+                byte[] settings = new byte[18];
+                putSetting(settings, 0, SETTINGS_ENABLE_PUSH, 0);
+                putSetting(settings, 6, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+                putSetting(settings, 12, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW_SIZE);
+                writeFrame(SETTINGS, 0, 0, settings, 0, settings.length, false);
+                writeWindowUpdate(0, CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+            }
+
+            private static void putSetting(byte[] settings, int offset, int id, int value) {
+                settings[offset] = (byte) (id >>> 8);
+                settings[offset + 1] = (byte) id;
+                putInt(settings, offset + 2, value);
+            }
+
+            private void writeHeaders(int streamId, List<String[]> fields, boolean endStream) throws IOException {
+                synchronized (writeLock) {
+                    byte[] block = encoder.encode(fields);
+                    int length = Math.min(block.length, maxFrameSize);
+                    int flags = (endStream ? FLAG_END_STREAM : 0) | (length == block.length ? FLAG_END_HEADERS : 0);
+                    writeFrame(HEADERS, flags, streamId, block, 0, length, endStream);
+                    for (int offset = length; offset < block.length; offset += length) {
+                        length = Math.min(block.length - offset, maxFrameSize);
+                        flags = offset + length == block.length ? FLAG_END_HEADERS : 0;
+                        writeFrame(CONTINUATION, flags, streamId, block, offset, length, endStream);
+                    }
+                }
+            }
+
+            private void writeData(Http2Exchange stream, byte[] b, int off, int len, boolean endStream)
+                    throws IOException {
+                do {
+                    int count = acquireWindow(stream, len);
+                    boolean last = endStream && count == len;
+                    writeFrame(DATA, last ? FLAG_END_STREAM : 0, stream.id, b, off, count, last);
+                    off += count;
+                    len -= count;
+                } while (len > 0);
+            }
+
+            private int acquireWindow(Http2Exchange stream, int len) throws IOException {
+                while (true) {
+                    synchronized (this) {
+                        if (stream.isReset() || closed)
+                            throw new IOException("Stream " + stream.id + " was reset");
+                        long window = Math.min(sendWindow, stream.sendWindow);
+                        if (len == 0 || window > 0) {
+                            int count = (int) Math.min(Math.min(len, window), maxFrameSize);
+                            sendWindow -= count;
+                            stream.sendWindow -= count;
+                            return count;
+                        }
+                    }
+                    flush();
+                    synchronized (this) {
+                        try {
+                            while (!stream.isReset() && !closed && Math.min(sendWindow, stream.sendWindow) <= 0)
+                                wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("Interrupted while waiting for the flow control window");
+                        }
+                    }
+                }
+            }
+
+            private void writeWindowUpdate(int streamId, int increment) throws IOException {
+                byte[] payload = new byte[4];
+                putInt(payload, 0, increment);
+                writeFrame(WINDOW_UPDATE, 0, streamId, payload, 0, payload.length, true);
+            }
+
+            private void writeReset(int streamId, int errorCode) throws IOException {
+                byte[] payload = new byte[4];
+                putInt(payload, 0, errorCode);
+                writeFrame(RST_STREAM, 0, streamId, payload, 0, payload.length, true);
+            }
+
+            private void writeGoAwayQuietly(int errorCode) {
+                byte[] payload = new byte[8];
+                putInt(payload, 0, lastStreamId);
+                putInt(payload, 4, errorCode);
+                try {
+                    writeFrame(GOAWAY, 0, 0, payload, 0, payload.length, true);
+                } catch (IOException ignored) {
+                }
+            }
+
+            private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length,
+                                    boolean flush) throws IOException {
+                synchronized (writeLock) {
+                    if (closed)
+                        throw new IOException("Connection closed");
+                    frameHeader[0] = (byte) (length >>> 16);
+                    frameHeader[1] = (byte) (length >>> 8);
+                    frameHeader[2] = (byte) length;
+                    frameHeader[3] = (byte) type;
+                    frameHeader[4] = (byte) flags;
+                    putInt(frameHeader, 5, streamId);
+                    connection.write(frameHeader, 0, frameHeader.length);
+                    if (length > 0)
+                        connection.write(payload, offset, length);
+                    if (flush)
+                        connection.flush();
+                }
+            }
+
+            private void writeRaw(byte[] bytes) throws IOException {
+                synchronized (writeLock) {
+                    connection.write(bytes, 0, bytes.length);
+                    connection.flush();
+                }
+            }
+
+            private void flush() throws IOException {
+                synchronized (writeLock) {
+                    if (!closed)
+                        connection.flush();
+                }
+            }
+
+            private void shutdown() {
+                synchronized (writeLock) {
+                    closed = true;
+                    connection.close();
+                    connection.releaseOutput();
+                }
+                synchronized (this) {
+                    notifyAll();
+                }
+                for (Http2Exchange stream : streams.values())
+                    stream.cancel();
+                streams.clear();
+                if (connection.input != null)
+                    connection.releaseInput();
+            }
+
+            private static int getInt(byte[] b, int offset) {
+                return (b[offset] & 0xff) << 24 | (b[offset + 1] & 0xff) << 16 | (b[offset + 2] & 0xff) << 8 |
+                        b[offset + 3] & 0xff;
+            }
+
+            private static void putInt(byte[] b, int offset, int value) {
+                b[offset] = (byte) (value >>> 24);
+                b[offset + 1] = (byte) (value >>> 16);
+                b[offset + 2] = (byte) (value >>> 8);
+                b[offset + 3] = (byte) value;
+            }
+        }
+
+        private static class Http2Exception extends IOException {
+
+            private static final long serialVersionUID = 1L;
+
+            private final int errorCode;
+
+            Http2Exception(int errorCode, String message) {
+                super(message);
+                this.errorCode = errorCode;
+            }
+        }
+
+        private static class Http2Exchange extends HttpExchange {
+
+            private final Http2Session session;
+            private final int id;
+            private final String method;
+            private final URI uri;
+            private final Headers requestHeaders;
+            private final Headers responseHeaders = new Headers();
+            private final Map<String, Object> attributes = new HashMap<>();
+            private final Deque<ByteBuffer> received = new ArrayDeque<>();
+            private final boolean expectContinue;
+            private final Http2OutputStream responseBody = new Http2OutputStream(this);
+            private InputStream in = new Http2InputStream(this);
+            private OutputStream out = responseBody;
+            private long sendWindow;
+            private int receiveWindow = Http2Session.STREAM_WINDOW_SIZE;
+            private int consumed;
+            private boolean remoteClosed;
+            private boolean reset;
+            private boolean continueSent;
+            private int responseCode = -1;
+            private long responseLength = -1;
+            private long remaining;
+            private boolean localClosed;
+            private boolean closed;
+
+            Http2Exchange(Http2Session session, int id, String method, URI uri, Headers requestHeaders,
+                          boolean remoteClosed) {
+                this.session = session;
+                this.id = id;
+                this.method = method;
+                this.uri = uri;
+                this.requestHeaders = requestHeaders;
+                this.remoteClosed = remoteClosed;
+                this.expectContinue = "100-continue".equalsIgnoreCase(requestHeaders.getFirst("Expect"));
+            }
+
+            static Http2Exchange create(Http2Session session, int id, List<String[]> fields, boolean endStream) {
+                Map<String, String> pseudoHeaders = new HashMap<>();
+                Headers headers = new Headers();
+                List<String> cookies = new ArrayList<>();
+                for (String[] field : fields) {
+                    String name = field[0];
+                    if (name.startsWith(":")) {
+                        if (!headers.isEmpty() || !cookies.isEmpty() || pseudoHeaders.put(name, field[1]) != null)
+                            return null;
+                    } else if (!name.equals(name.toLowerCase(Locale.ROOT)) ||
+                            Http2Session.CONNECTION_HEADERS.contains(name)) {
+                        return null;
+                    } else if ("cookie".equals(name)) {
+                        cookies.add(field[1]);
+                    } else {
+                        headers.add(name, field[1]);
+                    }
+                }
+                String method = pseudoHeaders.remove(":method");
+                String path = pseudoHeaders.remove(":path");
+                String scheme = pseudoHeaders.remove(":scheme");
+                String authority = pseudoHeaders.remove(":authority");
+                if (method == null || path == null || scheme == null || !pseudoHeaders.isEmpty())
+                    return null;
+                if (authority != null && !headers.containsKey("Host"))
+                    headers.add("Host", authority);
+                if (!cookies.isEmpty())
+                    headers.add("Cookie", String.join("; ", cookies));
+                try {
+                    return new Http2Exchange(session, id, method, new URI(path), headers, endStream);
+                } catch (URISyntaxException e) {
+                    return null;
+                }
+            }
+
+            private void serve() {
+                try {
+                    session.connection.listener.router.dispatch(this);
+                } catch (Throwable e) {
+                    reset(Http2Session.INTERNAL_ERROR);
+                    closed = true;
+                }
+            }
+
+            private synchronized boolean receive(byte[] b, int off, int len, int flowControlled, boolean endStream) {
+                if (reset || remoteClosed)
+                    return true;
+                receiveWindow -= flowControlled;
+                if (receiveWindow < 0)
+                    return false;
+                consumed += flowControlled - len;
+                if (len > 0)
+                    received.add(ByteBuffer.wrap(b, off, len));
+                if (endStream)
+                    remoteClosed = true;
+                notifyAll();
+                return true;
+            }
+
+            private int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0)
+                    return 0;
+                sendContinue();
+                int count;
+                int increment = 0;
+                synchronized (this) {
+                    try {
+                        while (received.isEmpty()) {
+                            if (remoteClosed)
+                                return -1;
+                            if (reset)
+                                throw new IOException("Stream " + id + " was reset");
+                            wait();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while reading the request body");
+                    }
+                    ByteBuffer data = received.peek();
+                    count = Math.min(len, data.remaining());
+                    data.get(b, off, count);
+                    if (!data.hasRemaining())
+                        received.poll();
+                    consumed += count;
+                    if (consumed >= Http2Session.STREAM_WINDOW_SIZE / 2 && !remoteClosed) {
+                        increment = consumed;
+                        receiveWindow += consumed;
+                        consumed = 0;
+                    }
+                }
+                if (increment > 0)
+                    session.writeWindowUpdate(id, increment);
+                return count;
+            }
+
+            private void sendContinue() throws IOException {
+                if (expectContinue && !continueSent && responseCode == -1 && !isRemoteClosed()) {
+                    continueSent = true;
+                    session.writeHeaders(id, Collections.singletonList(new String[]{":status", "100"}), false);
+                    session.flush();
+                }
+            }
+
+            private synchronized boolean isReset() {
+                return reset;
+            }
+
+            private synchronized boolean isRemoteClosed() {
+                return remoteClosed;
+            }
+
+            private void reset(int errorCode) {
+                synchronized (this) {
+                    if (reset)
+                        return;
+                    reset = true;
+                    notifyAll();
+                }
+                session.streams.remove(id);
+                synchronized (session) {
+                    session.notifyAll();
+                }
+                try {
+                    session.writeReset(id, errorCode);
+                } catch (IOException ignored) {
+                }
+            }
+
+            private void cancel() {
+                synchronized (this) {
+                    reset = true;
+                    notifyAll();
+                }
+                synchronized (session) {
+                    session.notifyAll();
+                }
+            }
+
+            @Override
+            public Headers getRequestHeaders() {
+                return requestHeaders;
+            }
+
+            @Override
+            public Headers getResponseHeaders() {
+                return responseHeaders;
+            }
+
+            @Override
+            public URI getRequestURI() {
+                return uri;
+            }
+
+            @Override
+            public String getRequestMethod() {
+                return method;
+            }
+
+            @Override
+            public HttpContext getHttpContext() {
+                return session.connection.listener.context;
+            }
+
+            @Override
+            public InputStream getRequestBody() {
+                return in;
+            }
+
+            @Override
+            public OutputStream getResponseBody() {
+                return out;
+            }
+
+            @Override
+            public void sendResponseHeaders(int responseCode, long responseLength) throws IOException {
+                if (this.responseCode != -1)
+                    throw new IOException("Response headers already sent");
+                if (responseCode >= 200 && responseCode < 300)
+                    sendContinue();
+                this.responseCode = responseCode;
+                boolean noBody = responseLength == -1 || NioExchange.hasNoBody(responseCode) || "HEAD".equals(method);
+                List<String[]> fields = new ArrayList<>();
+                fields.add(new String[]{":status", Integer.toString(responseCode)});
+                for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+                    String name = header.getKey().toLowerCase(Locale.ROOT);
+                    if (!Http2Session.CONNECTION_HEADERS.contains(name) && !"content-length".equals(name))
+                        for (String value : header.getValue())
+                            fields.add(new String[]{name, value});
+                }
+                if (!NioExchange.hasNoBody(responseCode) && responseLength != 0)
+                    fields.add(new String[]{"content-length", Long.toString(Math.max(responseLength, 0))});
+                remaining = noBody ? 0 : responseLength > 0 ? responseLength : -1;
+                this.responseLength = remaining;
+                localClosed = noBody;
+                session.writeHeaders(id, fields, noBody);
+            }
+
+            @Override
+            public void close() {
+                if (closed)
+                    return;
+                closed = true;
+                try {
+                    if (responseCode == -1) {
+                        reset(Http2Session.INTERNAL_ERROR);
+                        return;
+                    }
+                    responseBody.finish();
+                    if (!isRemoteClosed())
+                        reset(Http2Session.NO_ERROR);
+                } catch (IOException e) {
+                    reset(Http2Session.INTERNAL_ERROR);
+                } finally {
+                    session.streams.remove(id);
+                }
+            }
+
+            @Override
+            public InetSocketAddress getRemoteAddress() {
+                return session.connection.getSocketAddress(true);
+            }
+
+            @Override
+            public InetSocketAddress getLocalAddress() {
+                return session.connection.getSocketAddress(false);
+            }
+
+            @Override
+            public int getResponseCode() {
+                return responseCode;
+            }
+
+            @Override
+            public String getProtocol() {
+                return "HTTP/2.0";
+            }
+
+            @Override
+            public Object getAttribute(String name) {
+                return attributes.get(name);
+            }
+
+            @Override
+            public void setAttribute(String name, Object value) {
+                attributes.put(name, value);
+            }
+
+            @Override
+            public void setStreams(InputStream in, OutputStream out) {
+                if (in != null)
+                    this.in = in;
+                if (out != null)
+                    this.out = out;
+            }
+
+            @Override
+            public HttpPrincipal getPrincipal() {
+                return null;
+            }
+        }
+
+        private static class Http2InputStream extends InputStream {
+
+            private final Http2Exchange exchange;
+
+            Http2InputStream(Http2Exchange exchange) {
+                this.exchange = exchange;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return exchange.read(b, off, len);
+            }
+
+            @Override
+            public void close() {
+            }
+        }
+
+        private static class Http2OutputStream extends OutputStream {
+
+            private final Http2Exchange exchange;
+            private byte[] pending;
+            private int pendingCount;
+
+            Http2OutputStream(Http2Exchange exchange) {
+                this.exchange = exchange;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (exchange.responseCode == -1)
+                    throw new IOException("Response headers not sent yet");
+                if (exchange.localClosed || len == 0)
+                    return;
+                if (exchange.remaining >= 0) {
+                    if (len > exchange.remaining)
+                        throw new IOException("Too many bytes to write to stream");
+                    exchange.remaining -= len;
+                }
+                if (pending == null)
+                    pending = new byte[Http2Session.DEFAULT_FRAME_SIZE];
+                if (pendingCount + len <= pending.length) {
+                    System.arraycopy(b, off, pending, pendingCount, len);
+                    pendingCount += len;
+                    return;
+                }
+                writePending(false);
+                if (len >= pending.length) {
+                    exchange.session.writeData(exchange, b, off, len, false);
+                } else {
+                    System.arraycopy(b, off, pending, 0, len);
+                    pendingCount = len;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (exchange.localClosed)
+                    return;
+                writePending(false);
+                exchange.session.flush();
+            }
+
+            private void writePending(boolean endStream) throws IOException {
+                if (pendingCount > 0 || endStream)
+                    exchange.session.writeData(exchange, pending, 0, pendingCount, endStream);
+                pendingCount = 0;
+            }
+
+            private void finish() throws IOException {
+                if (exchange.localClosed)
+                    return;
+                exchange.localClosed = true;
+                if (exchange.remaining > 0)
+                    throw new IOException("Response body truncated");
+                writePending(true);
+            }
+
+            @Override
+            public void close() {
+                exchange.close();
+            }
+        }
+
+        private static class Hpack {
+
+            private static final int DEFAULT_TABLE_SIZE = 4096;
+            private static final String[][] STATIC_TABLE = {
+                    {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+                    {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+                    {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+                    {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+                    {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""},
+                    {"accept", ""}, {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""},
+                    {"authorization", ""}, {"cache-control", ""}, {"content-disposition", ""},
+                    {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+                    {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+                    {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""},
+                    {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+                    {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""},
+                    {"max-forwards", ""}, {"proxy-authenticate", ""}, {"proxy-authorization", ""}, {"range", ""},
+                    {"referer", ""}, {"refresh", ""}, {"retry-after", ""}, {"server", ""}, {"set-cookie", ""},
+                    {"strict-transport-security", ""}, {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""},
+                    {"via", ""}, {"www-authenticate", ""}
+            };
+            private static final byte[] HUFFMAN_CODE_LENGTHS = {
+                    13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28,
+                    28, 28, 28, 28, 28, 28, 28, 28, 6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+                    5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10, 13, 6, 7, 7, 7, 7, 7, 7,
+                    7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+                    15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7,
+                    7, 7, 7, 15, 11, 14, 13, 28, 20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+                    24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24, 22, 21, 20, 22, 22, 23, 23, 21,
+                    23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+                    26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24,
+                    21, 21, 26, 26, 28, 27, 27, 27, 20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+                    26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26, 30
+            };
+            private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+            private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+            private static final Set<String> UNINDEXED_NAMES = new HashSet<>(Arrays.asList(
+                    "content-length", "content-range", "date", "etag", "last-modified", "age", "expires", "location"));
+            private static final Set<String> SENSITIVE_NAMES = new HashSet<>(Arrays.asList(
+                    "authorization", "proxy-authorization", "cookie", "set-cookie"));
+            private static final int[] HUFFMAN_FIRST_CODE = new int[31];
+            private static final int[] HUFFMAN_FIRST_INDEX = new int[31];
+            private static final int[] HUFFMAN_COUNT = new int[31];
+            private static final int[] HUFFMAN_SYMBOLS = new int[257];
+
+            static {
+                for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+                    STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\n' + STATIC_TABLE[i][1], i + 1);
+                    STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+                }
+                int code = 0;
+                int index = 0;
+                for (int length = 1; length < HUFFMAN_COUNT.length; length++) {
+                    HUFFMAN_FIRST_CODE[length] = code;
+                    HUFFMAN_FIRST_INDEX[length] = index;
+                    for (int symbol = 0; symbol < HUFFMAN_CODE_LENGTHS.length; symbol++)
+                        if (HUFFMAN_CODE_LENGTHS[symbol] == length)
+                            HUFFMAN_SYMBOLS[index++] = symbol;
+                    HUFFMAN_COUNT[length] = index - HUFFMAN_FIRST_INDEX[length];
+                    code = (code + HUFFMAN_COUNT[length]) << 1;
+                }
+            }
+
+            private static String decodeHuffman(byte[] data, int offset, int length) throws Http2Exception {
+                StringBuilder decoded = new StringBuilder(length * 8 / 5);
+                int code = 0;
+                int codeLength = 0;
+                for (int i = offset; i < offset + length; i++)
+                    for (int bit = 7; bit >= 0; bit--) {
+                        code = code << 1 | data[i] >> bit & 1;
+                        codeLength++;
+                        int symbolIndex = code - HUFFMAN_FIRST_CODE[codeLength];
+                        if (symbolIndex >= 0 && symbolIndex < HUFFMAN_COUNT[codeLength]) {
+                            int symbol = HUFFMAN_SYMBOLS[HUFFMAN_FIRST_INDEX[codeLength] + symbolIndex];
+                            if (symbol == 256)
+                                throw new Http2Exception(Http2Session.COMPRESSION_ERROR, "EOS in Huffman string");
+                            decoded.append((char) symbol);
+                            code = 0;
+                            codeLength = 0;
+                        } else if (codeLength == HUFFMAN_COUNT.length - 1) {
+                            throw new Http2Exception(Http2Session.COMPRESSION_ERROR, "Invalid Huffman code");
+                        }
+                    }
+                if (codeLength > 7 || code != (1 << codeLength) - 1)
+                    throw new Http2Exception(Http2Session.COMPRESSION_ERROR, "Invalid Huffman padding");
+                return decoded.toString();
+            }
+
+            private static class DynamicTable {
+
+                private final List<String[]> entries = new ArrayList<>();
+                private int size;
+                private int maxSize = DEFAULT_TABLE_SIZE;
+
+                String[] get(int index) throws Http2Exception {
+                    if (index > 0 && index <= STATIC_TABLE.length)
+                        return STATIC_TABLE[index - 1];
+                    if (index > STATIC_TABLE.length && index - STATIC_TABLE.length <= entries.size())
+                        return entries.get(index - STATIC_TABLE.length - 1);
+                    throw new Http2Exception(Http2Session.COMPRESSION_ERROR, "Invalid header index " + index);
+                }
+
+                int indexOf(String name, String value) {
+                    Integer index = STATIC_FIELDS.get(name + '\n' + value);
+                    if (index != null)
+                        return index;
+                    for (int i = 0; i < entries.size(); i++)
+                        if (entries.get(i)[0].equals(name) && entries.get(i)[1].equals(value))
+                            return STATIC_TABLE.length + i + 1;
+                    return 0;
+                }
+
+                int indexOfName(String name) {
+                    Integer index = STATIC_NAMES.get(name);
+                    if (index != null)
+                        return index;
+                    for (int i = 0; i < entries.size(); i++)
+                        if (entries.get(i)[0].equals(name))
+                            return STATIC_TABLE.length + i + 1;
+                    return 0;
+                }
+
+                boolean fits(String name, String value) {
+                    return 32 + name.length() + value.length() <= maxSize;
+                }
+
+                void add(String name, String value) {
+                    entries.add(0, new String[]{name, value});
+                    size += 32 + name.length() + value.length();
+                    evict();
+                }
+
+                void setMaxSize(int maxSize) {
+                    this.maxSize = maxSize;
+                    evict();
+                }
+
+                private void evict() {
+                    while (size > maxSize) {
+                        String[] entry = entries.remove(entries.size() - 1);
+                        size -= 32 + entry[0].length() + entry[1].length();
+                    }
+                }
+            }
+
+            private static class Decoder {
+
+                private final DynamicTable table = new DynamicTable();
+                private byte[] block;
+                private int position;
+
+                List<String[]> decode(byte[] block) throws Http2Exception {
+                    this.block = block;
+                    position = 0;
+                    List<String[]> fields = new ArrayList<>();
+                    boolean sizeUpdateAllowed = true;
+                    while (position < block.length) {
+                        int b = block[position] & 0xff;
+                        if ((b & 0x80) != 0) {
+                            fields.add(table.get(readInteger(7)));
+                        } else if ((b & 0xc0) == 0x40) {
+                            String[] field = readLiteral(6);
+                            table.add(field[0], field[1]);
+                            fields.add(field);
+                        } else if ((b & 0xe0) == 0x20) {
+                            int maxSize = readInteger(5);
+                            if (!sizeUpdateAllowed || maxSize > DEFAULT_TABLE_SIZE)
+                                throw new Http2Exception(Http2Session.COMPRESSION_ERROR, "Invalid table size update");
+                            table.setMaxSize(maxSize);
+                            continue;
+                        } else {
+                            fields.add(readLiteral(4));
+                        }
+                        sizeUpdateAllowed = false;
+                    }
+                    this.block = null;
+                    return fields;
+                }
+
+                private String[] readLiteral(int prefix) throws Http2Exception {
+                    int nameIndex = readInteger(prefix);
+                    String name = nameIndex == 0 ? readString() : table.get(nameIndex)[0];
+                    return new String[]{name, readString()};
+                }
+
+                private String readString() throws Http2Exception {
+                    if (position >= block.length)
+                        throw new Http2Exception(Http2Session.COMPRESSION_ERROR, "Truncated header block");
+                    boolean huffman = (block[position] & 0x80) != 0;
+                    int length = readInteger(7);
+                    if (length > block.length - position)
+                        throw new Http2Exception(Http2Session.COMPRESSION_ERROR, "Truncated header block");
+                    String value = huffman
+                            ? decodeHuffman(block, position, length)
+                            : new String(block, position, length, StandardCharsets.ISO_8859_1);
+                    position += length;
+                    return value;
+                }
+
+                private int readInteger(int prefix) throws Http2Exception {
+                    int mask = (1 << prefix) - 1;
+                    int value = next() & mask;
+                    if (value < mask)
+                        return value;
+                    int b;
+                    int shift = 0;
+                    do {
+                        b = next();
+                        if (shift > 21)
+                            throw new Http2Exception(Http2Session.COMPRESSION_ERROR, "Integer overflow");
+                        value += (b & 0x7f) << shift;
+                        shift += 7;
+                    } while ((b & 0x80) != 0);
+                    return value;
+                }
+
+                private int next() throws Http2Exception {
+                    if (position >= block.length)
+                        throw new Http2Exception(Http2Session.COMPRESSION_ERROR, "Truncated header block");
+                    return block[position++] & 0xff;
+                }
+            }
+
+            private static class Encoder {
+
+                private final DynamicTable table = new DynamicTable();
+                private int pendingSizeUpdate = -1;
+
+                void setMaxTableSize(int maxSize) {
+                    if (maxSize == table.maxSize)
+                        return;
+                    table.setMaxSize(maxSize);
+                    pendingSizeUpdate = maxSize;
+                }
+
+                byte[] encode(List<String[]> fields) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+                    if (pendingSizeUpdate >= 0) {
+                        writeInteger(out, 0x20, 5, pendingSizeUpdate);
+                        pendingSizeUpdate = -1;
+                    }
+                    for (String[] field : fields) {
+                        String name = field[0];
+                        String value = field[1];
+                        boolean indexable = !UNINDEXED_NAMES.contains(name) && !SENSITIVE_NAMES.contains(name);
+                        int index = indexable ? table.indexOf(name, value) : 0;
+                        if (index > 0) {
+                            writeInteger(out, 0x80, 7, index);
+                            continue;
+                        }
+                        int nameIndex = table.indexOfName(name);
+                        if (SENSITIVE_NAMES.contains(name)) {
+                            writeInteger(out, 0x10, 4, nameIndex);
+                        } else if (indexable && table.fits(name, value)) {
+                            writeInteger(out, 0x40, 6, nameIndex);
+                            table.add(name, value);
+                        } else {
+                            writeInteger(out, 0x00, 4, nameIndex);
+                        }
+                        if (nameIndex == 0)
+                            writeString(out, name);
+                        writeString(out, value);
+                    }
+                    return out.toByteArray();
+                }
+
+                private static void writeInteger(ByteArrayOutputStream out, int flags, int prefix, int value) {
+                    int mask = (1 << prefix) - 1;
+                    if (value < mask) {
+                        out.write(flags | value);
+                        return;
+                    }
+                    out.write(flags | mask);
+                    value -= mask;
+                    while (value >= 0x80) {
+                        out.write(value & 0x7f | 0x80);
+                        value >>>= 7;
+                    }
+                    out.write(value);
+                }
+
+                private static void writeString(ByteArrayOutputStream out, String value) {
+                    byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+                    writeInteger(out, 0x00, 7, bytes.length);
+                    out.write(bytes, 0, bytes.length);
+                }
+            }
+        }
+
+        private static class BufferPool {
+
+            private final int bufferSize;
+            private final int maxPooled;
+            private final Queue<ByteBuffer> pooled = new ConcurrentLinkedQueue<>();
+            private final AtomicInteger size = new AtomicInteger();
+
+            BufferPool(int bufferSize, int maxPooled) {
+                this.bufferSize = bufferSize;
+                this.maxPooled = maxPooled;
+            }
+
+            ByteBuffer acquire() {
+                ByteBuffer buffer = acquireForWriting();
+                buffer.flip();
+                return buffer;
+            }
+
+            ByteBuffer acquireForWriting() {
+                ByteBuffer buffer = pooled.poll();
+                if (buffer == null)
+                    return ByteBuffer.allocateDirect(bufferSize);
+                size.decrementAndGet();
+                buffer.clear();
+                return buffer;
+            }
+
+            void release(ByteBuffer buffer) {
+                if (size.incrementAndGet() <= maxPooled)
+                    pooled.add(buffer);
+                else
+                    size.decrementAndGet();
+            }
+        }
+
+        private static class SelectorPool {
+
+            private final Queue<Selector> pooled = new ConcurrentLinkedQueue<>();
+
+            Selector acquire() throws IOException {
+                Selector selector = pooled.poll();
+                return selector != null ? selector : Selector.open();
+            }
+
+            void release(Selector selector) {
+                pooled.add(selector);
+            }
+        }
+
+        private static long remaining(ByteBuffer... buffers) {
+            long remaining = 0;
+            for (ByteBuffer buffer : buffers)
+                remaining += buffer.remaining();
+            return remaining;
+        }
+
+        private static String getReasonPhrase(int responseCode) {
+            switch (responseCode) {
+                case 100: return "Continue";
+                case 200: return "OK";
+                case 201: return "Created";
+                case 204: return "No Content";
+                case 206: return "Partial Content";
+                case 301: return "Moved Permanently";
+                case 302: return "Found";
+                case 304: return "Not Modified";
+                case 400: return "Bad Request";
+                case 401: return "Unauthorized";
+                case 403: return "Forbidden";
+                case 404: return "Not Found";
+                case 429: return "Too Many Requests";
+                case 431: return "Request Header Fields Too Large";
+                case 500: return "Internal Server Error";
+                case 502: return "Bad Gateway";
+                case 503: return "Service Unavailable";
+                default: return "";
+            }
+        }
+    }
+
+    private static class Response {
+
+        private final int responseCode;
+        private final Map<String, List<String>> headers;
+        private final byte[] encodedHeaders;
+        private final boolean closesConnection;
+        private final Content content;
+        private final boolean cacheable;
+        private final String entityTag;
+        private final long lastModified;
+        private final List<Encoding> encodings;
+        private final Map<Encoding, Response> encoded = new EnumMap<>(Encoding.class);
+
+        Response(Builder builder) throws IOException {
+            responseCode = builder.responseCode;
+            content = builder.content;
+            cacheable = builder.conditionalRequests && responseCode == 200;
+            Map<String, List<String>> headers = copyHeaders(builder.headers);
+            encodings = containsHeader(headers, "Content-Encoding") ? Collections.emptyList() : builder.encodings;
+            if (!encodings.isEmpty() && !containsHeader(headers, "Vary"))
+                headers.put("Vary", Collections.singletonList("Accept-Encoding"));
+            if (cacheable)
+                addValidators(headers);
+            this.headers = Collections.unmodifiableMap(headers);
+            encodedHeaders = encodeHeaders(this.headers);
+            closesConnection = this.headers.getOrDefault("Connection", Collections.emptyList()).stream()
+                    .anyMatch("close"::equalsIgnoreCase);
+            entityTag = getHeader(this.headers, "ETag");
+            lastModified = HttpDates.parse(getHeader(this.headers, "Last-Modified"));
+            for (Encoding encoding : encodings)
+                encoded.put(encoding, new Response(this, encoding));
+        }
+
+        private Response(Response identity, Encoding encoding) throws IOException {
+            responseCode = identity.responseCode;
+            content = EncodedContent.get(identity.content, encoding);
+            cacheable = identity.cacheable;
+            Map<String, List<String>> headers = new LinkedHashMap<>(identity.headers);
+            headers.keySet().removeIf(name -> name.equalsIgnoreCase("ETag") || name.equalsIgnoreCase("Accept-Ranges"));
+            headers.put("Content-Encoding", Collections.singletonList(encoding.getToken()));
+            entityTag = identity.entityTag == null ? null : addSuffix(identity.entityTag, encoding.getToken());
+            if (entityTag != null)
+                headers.put("ETag", Collections.singletonList(entityTag));
+            this.headers = Collections.unmodifiableMap(headers);
+            encodedHeaders = encodeHeaders(this.headers);
+            closesConnection = identity.closesConnection;
+            lastModified = identity.lastModified;
+            encodings = Collections.emptyList();
+        }
+
+        private void addValidators(Map<String, List<String>> headers) {
+            if (!containsHeader(headers, "ETag"))
+                headers.put("ETag", Collections.singletonList("\"" + content.entityTag() + "\""));
+            if (!containsHeader(headers, "Last-Modified") && content.lastModified() >= 0)
+                headers.put("Last-Modified", Collections.singletonList(HttpDates.format(content.lastModified())));
+            if (!containsHeader(headers, "Accept-Ranges"))
+                headers.put("Accept-Ranges", Collections.singletonList("bytes"));
+        }
+
+        private static String addSuffix(String entityTag, String suffix) {
+            return entityTag.endsWith("\"")
+                    ? entityTag.substring(0, entityTag.length() - 1) + "-" + suffix + "\""
+                    : entityTag + "-" + suffix;
+        }
+
+        Response negotiate(HttpExchange httpExchange) {
+            Encoding encoding = ContentNegotiation.getEncoding(httpExchange, encodings);
+            return encoding == null ? this : encoded.get(encoding);
+        }
+
+        long getResponseLength() {
+            return Math.max(0, content.length());
+        }
+
+        boolean isNotModified(HttpExchange httpExchange) {
+            if (!cacheable || !isGetOrHead(httpExchange))
+                return false;
+            Headers requestHeaders = httpExchange.getRequestHeaders();
+            String ifNoneMatch = requestHeaders.getFirst("If-None-Match");
+            if (ifNoneMatch != null)
+                return entityTag != null && EntityTags.matchesAny(ifNoneMatch, entityTag);
+            long ifModifiedSince = HttpDates.parse(requestHeaders.getFirst("If-Modified-Since"));
+            return ifModifiedSince >= 0 && lastModified >= 0 && lastModified <= ifModifiedSince;
+        }
+
+        boolean isRangeRequest(HttpExchange httpExchange) {
+            if (!cacheable || content.length() <= 0 || !"GET".equals(httpExchange.getRequestMethod()))
+                return false;
+            Headers requestHeaders = httpExchange.getRequestHeaders();
+            if (requestHeaders.getFirst("Range") == null)
+                return false;
+            String ifRange = requestHeaders.getFirst("If-Range");
+            if (ifRange == null)
+                return true;
+            if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+                return entityTag != null && EntityTags.matchesStrongly(ifRange.trim(), entityTag);
+            long date = HttpDates.parse(ifRange);
+            return date >= 0 && date == lastModified;
+        }
+
+        private static boolean isGetOrHead(HttpExchange httpExchange) {
+            return "GET".equals(httpExchange.getRequestMethod()) || "HEAD".equals(httpExchange.getRequestMethod());
+        }
+
+        private static boolean containsHeader(Map<String, List<String>> headers, String name) {
+            return headers.keySet().stream().anyMatch(name::equalsIgnoreCase);
+        }
+
+        private static String getHeader(Map<String, List<String>> headers, String name) {
+            return headers.entrySet().stream()
+                    .filter(header -> header.getKey().equalsIgnoreCase(name) && !header.getValue().isEmpty())
+                    .map(header -> header.getValue().get(0))
+                    .findFirst()
+                    .orElse(null);
+        }
+
+        private static Map<String, List<String>> copyHeaders(Map<String, List<String>> headers) {
+            Map<String, List<String>> copy = new LinkedHashMap<>();
+            if (headers != null)
+                headers.forEach((name, values) -> copy
+                        .computeIfAbsent(normalizeHeaderName(name), key -> new ArrayList<>())
+                        .addAll(validateHeaderValues(values)));
+            copy.replaceAll((name, values) -> Collections.unmodifiableList(values));
+            return copy;
+        }
+
+        private static String normalizeHeaderName(String name) {
+            if (name == null || name.isEmpty() || !name.chars().allMatch(c -> c > ' ' && c < 127 && c != ':'))
+                throw new IllegalArgumentException("Illegal header name: " + name);
+            return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        }
+
+        private static List<String> validateHeaderValues(List<String> values) {
+            for (String value : values)
+                if (value == null || value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0)
+                    throw new IllegalArgumentException("Illegal header value: " + value);
+            return values;
+        }
+
+        private static byte[] encodeHeaders(Map<String, List<String>> headers) {
+            StringBuilder encoded = new StringBuilder();
+            headers.forEach((name, values) -> {
+                if (!NioEngine.NioExchange.isFramingHeader(name))
+                    values.forEach(value -> encoded.append(name).append(": ").append(value).append("\r\n"));
+            });
+            return encoded.toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static class BasicHandler {
+
+        private static HttpHandler getHandler(Response identity) {
+            return httpExchange -> {
+                boolean rangeRequest = identity.isRangeRequest(httpExchange);
+                Response response = rangeRequest ? identity : identity.negotiate(httpExchange);
+                if (response.isNotModified(httpExchange)) {
+                    sendNotModified(response, httpExchange);
+                    return;
+                }
+                if (rangeRequest && ByteRanges.send(response, httpExchange))
+                    return;
+                if (!NioEngine.sendResponseHeaders(httpExchange, response)) {
+                    fillHeaders(response.headers, httpExchange);
+                    httpExchange.sendResponseHeaders(response.responseCode, response.getResponseLength());
+                }
+                sendResponse(response.content, httpExchange);
+            };
+        }
+
+        private static void sendNotModified(Response response, HttpExchange httpExchange) throws IOException {
+            fillHeaders(response.headers, httpExchange);
+            httpExchange.sendResponseHeaders(304, -1);
+            httpExchange.close();
+        }
+
+        private static void fillHeaders(Map<String, List<String>> headers, HttpExchange httpExchange) {
+            if (!headers.isEmpty())
+                httpExchange.getResponseHeaders().putAll(headers);
+        }
+
+        private static void sendResponse(Content content, HttpExchange httpExchange) throws IOException {
+            OutputStream os = httpExchange.getResponseBody();
+            if (os instanceof PacedOutputStream && content.length() >= 0)
+                ((PacedOutputStream) os).setContent(content);
+            else
+                content.writeTo(httpExchange, os, 0, content.length());
+            os.close();
+        }
+    }
+
+    private interface Content {
+
+        int COPY_BUFFER_SIZE = 64 * 1024;
+
+        long length();
+
+        String entityTag();
+
+        long lastModified();
+
+        void writeTo(HttpExchange httpExchange, OutputStream os, long offset, long length) throws IOException;
+
+        static String toEntityTag(long length, long checksum) {
+            return Long.toHexString(length) + "-" + Long.toHexString(checksum);
+        }
+    }
+
+    private static class EncodedContent implements Content {
+
+        private static final long PRECOMPRESSION_LIMIT = 4 * 1024 * 1024;
+
+        private final Content content;
+        private final Encoding encoding;
+
+        private EncodedContent(Content content, Encoding encoding) {
+            this.content = content;
+            this.encoding = encoding;
+        }
+
+        static Content get(Content content, Encoding encoding) throws IOException {
+            if (content.length() > PRECOMPRESSION_LIMIT)
+                return new EncodedContent(content, encoding);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (OutputStream os = encoding.compress(compressed, Deflater.BEST_COMPRESSION)) {
+                content.writeTo(null, os, 0, content.length());
+            }
+            return new ByteArrayContent(compressed.toByteArray(), content.entityTag() + "-" + encoding.getToken(),
+                    content.lastModified());
+        }
+
+        @Override
+        public long length() {
+            return -1;
+        }
+
+        @Override
+        public String entityTag() {
+            return content.entityTag() + "-" + encoding.getToken();
+        }
+
+        @Override
+        public long lastModified() {
+            return content.lastModified();
+        }
+
+        @Override
+        public void writeTo(HttpExchange httpExchange, OutputStream os, long offset, long length) throws IOException {
+            OutputStream compressor = encoding.compress(new NonClosingOutputStream(os), Deflater.BEST_SPEED);
+            content.writeTo(null, compressor, 0, content.length());
+            compressor.close();
+        }
+    }
+
+    private static class NonClosingOutputStream extends FilterOutputStream {
+
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class EntityTags {
+
+        static boolean matchesAny(String entityTags, String entityTag) {
+            String opaqueTag = getOpaqueTag(entityTag);
+            for (String candidate : entityTags.split(",")) {
+                String trimmed = candidate.trim();
+                if (trimmed.equals("*") || getOpaqueTag(trimmed).equals(opaqueTag))
+                    return true;
+            }
+            return false;
+        }
+
+        static boolean matchesStrongly(String candidate, String entityTag) {
+            return !candidate.startsWith("W/") && !entityTag.startsWith("W/") && candidate.equals(entityTag);
+        }
+
+        private static String getOpaqueTag(String entityTag) {
+            return entityTag.startsWith("W/") ? entityTag.substring(2) : entityTag;
+        }
+    }
+
+    private static class HttpDates {
+
+        private static final String[] DAYS = {"Mon", "Tue", "Wed", "Thu", "Fri", "Sat", "Sun"};
+        private static final String[] MONTHS = {"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct",
+                "Nov", "Dec"};
+
+        static String format(long epochMillis) {
+            LocalDateTime time = LocalDateTime.ofEpochSecond(Math.floorDiv(epochMillis, 1000), 0, ZoneOffset.UTC);
+            StringBuilder date = new StringBuilder(29).append(DAYS[time.getDayOfWeek().ordinal()]).append(", ");
+            appendTwoDigits(date, time.getDayOfMonth()).append(' ').append(MONTHS[time.getMonthValue() - 1])
+                    .append(' ').append(time.getYear()).append(' ');
+            appendTwoDigits(date, time.getHour()).append(':');
+            appendTwoDigits(date, time.getMinute()).append(':');
+            return appendTwoDigits(date, time.getSecond()).append(" GMT").toString();
+        }
+
+        private static StringBuilder appendTwoDigits(StringBuilder date, int value) {
+            return date.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+        }
+
+        static long parse(String date) {
+            if (date == null)
+                return -1;
+            try {
+                return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond() * 1000;
+            } catch (DateTimeParseException e) {
+                return -1;
+            }
+        }
+    }
+
+    private static class ByteRanges {
+
+        private static final int MAX_RANGES = 32;
+        private static final String RANGE_UNIT = "bytes=";
+
+        static boolean send(Response response, HttpExchange httpExchange) throws IOException {
+            long length = response.content.length();
+            List<long[]> ranges = parse(httpExchange.getRequestHeaders().getFirst("Range"), length);
+            if (ranges == null)
+                return false;
+            if (ranges.isEmpty())
+                sendNotSatisfiable(httpExchange, length);
+            else if (ranges.size() == 1)
+                sendSingleRange(response, httpExchange, ranges.get(0));
+            else
+                sendMultipleRanges(response, httpExchange, ranges);
+            return true;
+        }
+
+        private static List<long[]> parse(String range, long length) {
+            if (!range.regionMatches(true, 0, RANGE_UNIT, 0, RANGE_UNIT.length()))
+                return null;
+            String[] specs = range.substring(RANGE_UNIT.length()).split(",");
+            if (specs.length > MAX_RANGES)
+                return null;
+            List<long[]> ranges = new ArrayList<>(specs.length);
+            try {
+                for (String spec : specs) {
+                    long[] parsed = parseSpec(spec.trim(), length);
+                    if (parsed == null)
+                        return null;
+                    if (parsed[0] < length && parsed[0] <= parsed[1])
+                        ranges.add(parsed);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            return ranges;
+        }
+
+        private static long[] parseSpec(String spec, long length) {
+            int dash = spec.indexOf('-');
+            if (dash < 0)
+                return null;
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                long suffix = parsePosition(last);
+                return new long[]{Math.max(0, length - suffix), length - 1};
+            }
+            long start = parsePosition(first);
+            long end = last.isEmpty() ? Long.MAX_VALUE : parsePosition(last);
+            if (end < start)
+                return null;
+            return new long[]{start, Math.min(end, length - 1)};
+        }
+
+        private static long parsePosition(String digits) {
+            if (digits.isEmpty() || !digits.chars().allMatch(c -> c >= '0' && c <= '9'))
+                throw new NumberFormatException("Invalid range position: " + digits);
+            return Long.parseLong(digits);
+        }
+
+        private static void sendNotSatisfiable(HttpExchange httpExchange, long length) throws IOException {
+            httpExchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+            httpExchange.sendResponseHeaders(416, -1);
+            httpExchange.close();
+        }
+
+        private static void sendSingleRange(Response response, HttpExchange httpExchange, long[] range)
+                throws IOException {
+            BasicHandler.fillHeaders(response.headers, httpExchange);
+            long count = range[1] - range[0] + 1;
+            setHeader(httpExchange, "Content-Range", getContentRange(range, response.content.length()));
+            httpExchange.sendResponseHeaders(206, count);
+            OutputStream os = httpExchange.getResponseBody();
+            response.content.writeTo(httpExchange, os, range[0], count);
+            os.close();
+        }
+
+        private static void sendMultipleRanges(Response response, HttpExchange httpExchange, List<long[]> ranges)
+                throws IOException {
+            String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+            String contentType = Response.getHeader(response.headers, "Content-Type");
+            List<byte[]> partHeads = new ArrayList<>(ranges.size());
+            byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            long responseLength = closing.length;
+            for (long[] range : ranges) {
+                String partHead = "\r\n--" + boundary + "\r\n" +
+                        (contentType == null ? "" : "Content-Type: " + contentType + "\r\n") +
+                        "Content-Range: " + getContentRange(range, response.content.length()) + "\r\n\r\n";
+                partHeads.add(partHead.getBytes(StandardCharsets.ISO_8859_1));
+                responseLength += partHeads.get(partHeads.size() - 1).length + range[1] - range[0] + 1;
+            }
+            BasicHandler.fillHeaders(response.headers, httpExchange);
+            setHeader(httpExchange, "Content-Type", "multipart/byteranges; boundary=" + boundary);
+            httpExchange.sendResponseHeaders(206, responseLength);
+            OutputStream os = httpExchange.getResponseBody();
+            for (int i = 0; i < ranges.size(); i++) {
+                long[] range = ranges.get(i);
+                os.write(partHeads.get(i));
+                response.content.writeTo(httpExchange, os, range[0], range[1] - range[0] + 1);
+            }
+            os.write(closing);
+            os.close();
+        }
+
+        private static void setHeader(HttpExchange httpExchange, String name, String value) {
+            Headers headers = httpExchange.getResponseHeaders();
+            headers.keySet().removeIf(name::equalsIgnoreCase);
+            headers.set(name, value);
+        }
+
+        private static String getContentRange(long[] range, long length) {
+            return "bytes " + range[0] + "-" + range[1] + "/" + length;
+        }
+    }
+
+    private static class ContentNegotiation {
+
+        private static Encoding getEncoding(HttpExchange httpExchange, List<Encoding> encodings) {
+            if (encodings.isEmpty() || !hasBody(httpExchange))
+                return null;
+            String acceptEncoding = httpExchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (acceptEncoding == null)
+                return null;
+            Encoding selected = null;
+            double selectedQuality = 0;
+            for (Encoding encoding : encodings) {
+                double quality = getQuality(acceptEncoding, encoding.getToken());
+                if (quality > selectedQuality) {
+                    selected = encoding;
+                    selectedQuality = quality;
+                }
+            }
+            return selected;
+        }
+
+        private static boolean hasBody(HttpExchange httpExchange) {
+            return !"HEAD".equals(httpExchange.getRequestMethod());
+        }
+
+        private static double getQuality(String acceptEncoding, String token) {
+            double wildcard = 0;
+            for (String element : acceptEncoding.split(",")) {
+                String[] parameters = element.split(";");
+                String coding = parameters[0].trim();
+                double quality = parseQuality(parameters);
+                if (coding.equalsIgnoreCase(token))
+                    return quality;
+                if (coding.equals("*"))
+                    wildcard = quality;
+            }
+            return wildcard;
+        }
+
+        private static double parseQuality(String[] parameters) {
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.startsWith("q=") || parameter.startsWith("Q="))
+                    try {
+                        return Double.parseDouble(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+            }
+            return 1;
+        }
+    }
+
+    private static class ByteArrayContent implements Content {
+
+        private final byte[] bytes;
+        private final String entityTag;
+        private final long lastModified;
+
+        ByteArrayContent(byte[] bytes) {
+            this(bytes, Content.toEntityTag(bytes.length, checksum(bytes)), -1);
+        }
+
+        private ByteArrayContent(byte[] bytes, String entityTag, long lastModified) {
+            this.bytes = bytes;
+            this.entityTag = entityTag;
+            this.lastModified = lastModified;
+        }
+
+        private static long checksum(byte[] bytes) {
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length);
+            return crc.getValue();
+        }
+
+        @Override
+        public long length() {
+            return bytes.length;
+        }
+
+        @Override
+        public String entityTag() {
+            return entityTag;
+        }
+
+        @Override
+        public long lastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public void writeTo(HttpExchange httpExchange, OutputStream os, long offset, long length) throws IOException {
+            os.write(bytes, (int) offset, (int) length);
+        }
+    }
+
+    private static class ByteBufferContent implements Content {
+
+        private final ByteBuffer buffer;
+        private final String entityTag;
+
+        ByteBufferContent(ByteBuffer buffer) {
+            this.buffer = buffer;
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate());
+            this.entityTag = Content.toEntityTag(buffer.remaining(), crc.getValue());
+        }
+
+        @Override
+        public long length() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public String entityTag() {
+            return entityTag;
+        }
+
+        @Override
+        public long lastModified() {
+            return -1;
+        }
+
+        @Override
+        public void writeTo(HttpExchange httpExchange, OutputStream os, long offset, long length) throws IOException {
+            writeBuffer(httpExchange, os, slice(buffer, offset, length));
+        }
+
+        private static ByteBuffer slice(ByteBuffer buffer, long offset, long length) {
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(slice.position() + (int) offset);
+            slice.limit(slice.position() + (int) length);
+            return slice;
+        }
+
+        private static void writeBuffer(HttpExchange httpExchange, OutputStream os, ByteBuffer buffer)
+                throws IOException {
+            if (NioEngine.write(httpExchange, buffer))
+                return;
+            byte[] chunk = new byte[Math.min(COPY_BUFFER_SIZE, buffer.remaining())];
+            while (buffer.hasRemaining()) {
+                int count = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, count);
+                os.write(chunk, 0, count);
+            }
+        }
+    }
+
+    private static class FileContent implements Content {
+
+        private final MappedFile file;
+        private final long offset;
+        private final long length;
+
+        FileContent(MappedFile file) {
+            this(file, 0, file.size);
+        }
+
+        FileContent(MappedFile file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public String entityTag() {
+            return Content.toEntityTag(length, lastModified() ^ offset);
+        }
+
+        @Override
+        public long lastModified() {
+            return file.lastModified.toMillis();
+        }
+
+        @Override
+        public void writeTo(HttpExchange httpExchange, OutputStream os, long offset, long length) throws IOException {
+            long position = this.offset + offset;
+            long end = position + length;
+            while (position < end) {
+                ByteBuffer segment = file.segments[(int) (position / MappedFile.SEGMENT_SIZE)];
+                long segmentOffset = position % MappedFile.SEGMENT_SIZE;
+                long count = Math.min(end - position, segment.capacity() - segmentOffset);
+                ByteBufferContent.writeBuffer(httpExchange, os,
+                        ByteBufferContent.slice(segment, segmentOffset, count));
+                position += count;
+            }
+        }
+    }
+
+    private static class GeneratedContent implements Content {
+
+        private static final int BLOCK_SIZE = 64 * 1024;
+        private static final int BLOCKS_PER_WRITE = 16;
+
+        private final long length;
+        private final long seed;
+        private final byte[] block;
+        private final ByteBuffer directBlock;
+
+        GeneratedContent(long length, long seed) {
+            this.length = length;
+            this.seed = seed;
+            this.block = generateBlock(seed);
+            this.directBlock = ByteBuffer.allocateDirect(BLOCK_SIZE).put(block);
+            directBlock.flip();
+        }
+
+        static byte[] generateBlock(long seed) {
+            byte[] block = new byte[BLOCK_SIZE];
+            long state = seed;
+            for (int i = 0; i < BLOCK_SIZE; i += 8) {
+                state += 0x9E3779B97F4A7C15L;
+                long value = state;
+                value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+                value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+                value = value ^ (value >>> 31);
+                for (int j = 0; j < 8; j++)
+                    block[i + j] = (byte) (value >>> (8 * j));
+            }
+            return block;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public String entityTag() {
+            return Content.toEntityTag(length, seed);
+        }
+
+        @Override
+        public long lastModified() {
+            return -1;
+        }
+
+        @Override
+        public void writeTo(HttpExchange httpExchange, OutputStream os, long offset, long length) throws IOException {
+            boolean direct = NioEngine.canWriteDirectly(httpExchange);
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                int blockOffset = (int) (position % BLOCK_SIZE);
+                long count = Math.min(end - position, (direct ? BLOCKS_PER_WRITE : 1L) * BLOCK_SIZE - blockOffset);
+                if (direct)
+                    NioEngine.write(httpExchange, getDirectBlocks(blockOffset, count));
+                else
+                    os.write(block, blockOffset, (int) count);
+                position += count;
+            }
+        }
+
+        private ByteBuffer[] getDirectBlocks(int blockOffset, long count) {
+            ByteBuffer[] blocks = new ByteBuffer[(int) ((blockOffset + count + BLOCK_SIZE - 1) / BLOCK_SIZE)];
+            long left = count;
+            for (int i = 0; i < blocks.length; i++) {
+                int start = i == 0 ? blockOffset : 0;
+                ByteBuffer slice = directBlock.duplicate();
+                slice.position(start);
+                slice.limit((int) Math.min(BLOCK_SIZE, start + left));
+                left -= slice.remaining();
+                blocks[i] = slice;
+            }
+            return blocks;
+        }
+    }
+
+    private static class GeneratedContentStream extends InputStream {
+
+        private final byte[] block;
+        private final long length;
+        private long position;
+
+        GeneratedContentStream(long length, long seed) {
+            this.block = GeneratedContent.generateBlock(seed);
+            this.length = length;
+        }
+
+        @Override
+        public int read() {
+            return position < length ? block[(int) (position++ % block.length)] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= length)
+                return -1;
+            int blockOffset = (int) (position % block.length);
+            int count = (int) Math.min(Math.min(len, block.length - blockOffset), length - position);
+            System.arraycopy(block, blockOffset, b, off, count);
+            position += count;
+            return count;
+        }
+    }
+
+    private static class MappedFile {
+
+        private static final long SEGMENT_SIZE = 1L << 30;
+        private static final Map<Path, MappedFileReference> mappedFiles = new ConcurrentHashMap<>();
+        private static final ReferenceQueue<MappedFile> collected = new ReferenceQueue<>();
+
+        private final Path path;
+        private final long size;
+        private final FileTime lastModified;
+        private final ByteBuffer[] segments;
+
+        private MappedFile(Path path) throws IOException {
+            this.path = path;
+            this.lastModified = Files.getLastModifiedTime(path);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                this.size = channel.size();
+                this.segments = new ByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+                for (int i = 0; i < segments.length; i++) {
+                    long position = i * SEGMENT_SIZE;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(SEGMENT_SIZE, size - position)).asReadOnlyBuffer();
+                }
+            }
+        }
+
+        static MappedFile get(Path path) throws IOException {
+            expungeCollected();
+            Path realPath = path.toRealPath();
+            MappedFileReference reference = mappedFiles.get(realPath);
+            MappedFile mappedFile = reference == null ? null : reference.get();
+            if (mappedFile != null && mappedFile.isCurrent())
+                return mappedFile;
+            mappedFile = new MappedFile(realPath);
+            mappedFiles.put(realPath, new MappedFileReference(mappedFile, collected));
+            return mappedFile;
+        }
+
+        private static void expungeCollected() {
+            Reference<? extends MappedFile> reference;
+            while ((reference = collected.poll()) != null)
+                mappedFiles.remove(((MappedFileReference) reference).path, reference);
+        }
+
+        private static class MappedFileReference extends WeakReference<MappedFile> {
+
+            private final Path path;
+
+            MappedFileReference(MappedFile mappedFile, ReferenceQueue<MappedFile> queue) {
+                super(mappedFile, queue);
+                this.path = mappedFile.path;
+            }
+        }
+
+        private boolean isCurrent() throws IOException {
+            return Files.size(path) == size && Files.getLastModifiedTime(path).equals(lastModified);
+        }
+
+        ByteBuffer slice(long position, int length) {
+            ByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)];
+            long segmentOffset = position % SEGMENT_SIZE;
+            if (segmentOffset + length <= segment.capacity())
+                return ByteBufferContent.slice(segment, segmentOffset, length);
+            ByteBuffer copy = ByteBuffer.allocate(length);
+            long current = position;
+            while (copy.hasRemaining()) {
+                segment = segments[(int) (current / SEGMENT_SIZE)];
+                segmentOffset = current % SEGMENT_SIZE;
+                int count = (int) Math.min(copy.remaining(), segment.capacity() - segmentOffset);
+                copy.put(ByteBufferContent.slice(segment, segmentOffset, count));
+                current += count;
+            }
+            copy.flip();
+            return copy;
+        }
+    }
+
+    private static class EchoHandler {
+
+        private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+        private static HttpHandler getHandler(long bodyLimit, List<Encoding> encodings) {
+            return httpExchange -> {
+                long bodyLength;
+                try {
+                    bodyLength = getEchoedBodyLength(httpExchange, bodyLimit);
+                } catch (IllegalArgumentException e) {
+                    httpExchange.sendResponseHeaders(400, -1);
+                    httpExchange.close();
+                    return;
+                }
+                byte[] head = getEchoHead(httpExchange).getBytes(StandardCharsets.ISO_8859_1);
+                Encoding encoding = ContentNegotiation.getEncoding(httpExchange, encodings);
+                OutputStream os;
+                if (encoding == null) {
+                    httpExchange.sendResponseHeaders(200, bodyLength < 0 ? 0 : head.length + bodyLength);
+                    os = httpExchange.getResponseBody();
+                } else {
+                    httpExchange.getResponseHeaders().set("Content-Encoding", encoding.getToken());
+                    httpExchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+                    httpExchange.sendResponseHeaders(200, 0);
+                    os = encoding.compress(httpExchange.getResponseBody(), Deflater.BEST_SPEED);
+                }
+                os.write(head);
+                copyRequestBody(httpExchange, os, bodyLimit);
+                os.close();
+            };
+        }
+
+        private static String getEchoHead(HttpExchange httpExchange) {
+            return getFirstLineOfRequest(httpExchange) +
+                    getRequestHeaders(httpExchange) +
+                    "\nREQUEST BODY:\n";
+        }
+
+        private static long getEchoedBodyLength(HttpExchange httpExchange, long bodyLimit) {
+            Headers requestHeaders = httpExchange.getRequestHeaders();
+            if (requestHeaders.containsKey("Transfer-Encoding"))
+                return -1;
+            return Math.min(Math.max(0, getContentLength(requestHeaders)), bodyLimit);
+        }
+
+        private static String getFirstLineOfRequest(HttpExchange httpExchange) {
+            String head = httpExchange.getRequestMethod() + " ";
+            head += httpExchange.getRequestURI() + " ";
+            return head + httpExchange.getProtocol() + "\n";
+        }
+
+        private static String getRequestHeaders(HttpExchange httpExchange) {
+            return httpExchange.getRequestHeaders().entrySet().stream()
+                    .map(EchoHandler::formatHeader)
+                    .collect(Collectors.joining("\n"));
+        }
+
+        private static void copyRequestBody(HttpExchange httpExchange, OutputStream os, long bodyLimit)
+                throws IOException {
+            InputStream is = httpExchange.getRequestBody();
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            long remaining = bodyLimit;
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                if (remaining > 0)
+                    os.write(buffer, 0, (int) Math.min(count, remaining));
+                remaining -= Math.min(count, remaining);
+            }
+            is.close();
+        }
+
+        private static String formatHeader(Map.Entry<String, List<String>> header) {
+            return header.getKey() + ": " +
+                    header.getValue().stream()
+                            .map(String::trim)
+                            .collect(Collectors.joining("; "));
+        }
+    }
+
+    private static class SinkHandler {
+
+        private static final int BUFFER_SIZE = 256 * 1024;
+        private static final int MAX_POOLED_BUFFERS = 64;
+        private static final Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+        private static final AtomicInteger pooledBuffers = new AtomicInteger();
+        private static final Constructor<?> crc32c = getCrc32cConstructor();
+
+        private static HttpHandler getHandler(Digest digest) {
+            return httpExchange -> {
+                long start = System.nanoTime();
+                Checksum checksum = digest == Digest.CRC32C ? newCrc32c() : null;
+                MessageDigest messageDigest = digest == Digest.SHA_256 ? newSha256() : null;
+                long bytes = 0;
+                byte[] buffer = acquire();
+                try (InputStream is = httpExchange.getRequestBody()) {
+                    int count;
+                    while ((count = is.read(buffer)) != -1) {
+                        if (checksum != null)
+                            checksum.update(buffer, 0, count);
+                        else
+                            messageDigest.update(buffer, 0, count);
+                        bytes += count;
+                    }
+                } finally {
+                    release(buffer);
+                }
+                String algorithm = checksum != null ? getAlgorithm(checksum) : "SHA-256";
+                String value = checksum != null
+                        ? String.format("%08x", checksum.getValue())
+                        : toHex(messageDigest.digest());
+                sendSummary(httpExchange, bytes, algorithm, value, System.nanoTime() - start);
+            };
+        }
+
+        private static void sendSummary(HttpExchange httpExchange, long bytes, String algorithm, String value,
+                                        long nanos) throws IOException {
+            byte[] body = ("{\"bytes\":" + bytes + ",\"algorithm\":\"" + algorithm + "\",\"checksum\":\"" + value +
+                    "\",\"nanos\":" + nanos + "}").getBytes(StandardCharsets.UTF_8);
+            Headers headers = httpExchange.getResponseHeaders();
+            headers.set("Content-Type", "application/json");
+            headers.set("X-Sink-Bytes", Long.toString(bytes));
+            headers.set("X-Sink-Algorithm", algorithm);
+            headers.set("X-Sink-Checksum", value);
+            httpExchange.sendResponseHeaders(200, body.length);
+            OutputStream os = httpExchange.getResponseBody();
+            os.write(body);
+            os.close();
+        }
+
+        private static Checksum newCrc32c() {
+            if (crc32c == null)
+                return new CRC32();
+            try {
+                return (Checksum) crc32c.newInstance();
+            } catch (ReflectiveOperationException e) {
+                return new CRC32();
+            }
+        }
+
+        private static Constructor<?> getCrc32cConstructor() {
+            try {
+                return Class.forName("java.util.zip.CRC32C").getConstructor();
+            } catch (ReflectiveOperationException e) {
+                return null;
+            }
+        }
+
+        private static String getAlgorithm(Checksum checksum) {
+            return checksum instanceof CRC32 ? "CRC32" : "CRC32C";
+        }
+
+        private static MessageDigest newSha256() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static String toHex(byte[] bytes) {
+            StringBuilder hex = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes)
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            return hex.toString();
+        }
+
+        private static byte[] acquire() {
+            byte[] buffer = buffers.poll();
+            if (buffer == null)
+                return new byte[BUFFER_SIZE];
+            pooledBuffers.decrementAndGet();
+            return buffer;
+        }
+
+        private static void release(byte[] buffer) {
+            if (pooledBuffers.incrementAndGet() <= MAX_POOLED_BUFFERS)
+                buffers.add(buffer);
+            else
+                pooledBuffers.decrementAndGet();
+        }
+    }
+
+    private static class RecordArchive {
+
+        private static final long ARCHIVE_MAGIC = 0x5348534152433031L;
+        private static final long INDEX_MAGIC = 0x5348534944583031L;
+        private static final int MAGIC_SIZE = 8;
+        private static final int INDEX_ENTRY_SIZE = 16;
+        private static final int RECORD_HEADER_SIZE = 40;
+        private static final Set<String> HOP_BY_HOP_HEADERS = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+
+        static {
+            HOP_BY_HOP_HEADERS.addAll(Arrays.asList("Connection", "Keep-Alive", "Proxy-Authenticate",
+                    "Proxy-Authorization", "TE", "Trailer", "Transfer-Encoding", "Upgrade", "Content-Length", "Host"));
+        }
+
+        static Path getIndexPath(Path archive) {
+            return archive.resolveSibling(archive.getFileName() + ".idx");
+        }
+
+        static FileChannel open(Path path, long magic) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            ByteBuffer head = ByteBuffer.allocate(MAGIC_SIZE);
+            if (channel.size() == 0) {
+                head.putLong(magic).flip();
+                write(channel, head, 0);
+            } else if (channel.read(head, 0) < MAGIC_SIZE || head.getLong(0) != magic) {
+                channel.close();
+                throw new IOException("Not a recording archive: " + path);
+            }
+            return channel;
+        }
+
+        static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            long current = position;
+            while (buffer.hasRemaining())
+                current += channel.write(buffer, current);
+        }
+
+        static boolean isHopByHop(String name) {
+            return HOP_BY_HOP_HEADERS.contains(name);
+        }
+
+        static String getUri(HttpExchange httpExchange) {
+            URI uri = httpExchange.getRequestURI();
+            String path = uri.getRawPath().substring(getContextPath(httpExchange).length());
+            return (path.isEmpty() ? "/" : path) + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+        }
+
+        static byte[] getKey(HttpExchange httpExchange, String uri) {
+            return (httpExchange.getRequestMethod() + " " + uri).getBytes(StandardCharsets.UTF_8);
+        }
+
+        static long hash(byte[] key, long requestChecksum) {
+            long hash = 0xcbf29ce484222325L;
+            for (byte b : key)
+                hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+            hash ^= requestChecksum * 0x9e3779b97f4a7c15L;
+            hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            return hash == 0 ? 1 : hash;
+        }
+
+        static void sendResponseHeaders(HttpExchange httpExchange, int responseCode, byte[] headers, long bodyLength)
+                throws IOException {
+            long responseLength = bodyLength > 0 ? bodyLength : -1;
+            if (NioEngine.sendResponseHeaders(httpExchange, responseCode, responseLength, headers))
+                return;
+            Headers responseHeaders = httpExchange.getResponseHeaders();
+            for (String line : new String(headers, StandardCharsets.ISO_8859_1).split("\r\n")) {
+                int colon = line.indexOf(':');
+                if (colon > 0)
+                    responseHeaders.add(line.substring(0, colon), line.substring(colon + 1).trim());
+            }
+            httpExchange.sendResponseHeaders(responseCode, responseLength);
+        }
+    }
+
+    private static class ArchivedResponse {
+
+        private final long offset;
+        private final int recordLength;
+        private final long hash;
+        private final long requestChecksum;
+        private final int responseCode;
+        private final int keyLength;
+        private final int headersLength;
+        private final long bodyLength;
+
+        ArchivedResponse(MappedFile archive, long offset) {
+            ByteBuffer header = archive.slice(offset, RecordArchive.RECORD_HEADER_SIZE);
+            this.offset = offset;
+            recordLength = header.getInt();
+            hash = header.getLong();
+            requestChecksum = header.getLong();
+            responseCode = header.getInt();
+            keyLength = header.getInt();
+            headersLength = header.getInt();
+            bodyLength = header.getLong();
+        }
+
+        static ByteBuffer encode(byte[] key, long requestChecksum, int responseCode, byte[] headers, byte[] body) {
+            ByteBuffer record = ByteBuffer.allocate(RecordArchive.RECORD_HEADER_SIZE + key.length + headers.length +
+                    body.length);
+            record.putInt(record.capacity() - Integer.BYTES)
+                    .putLong(RecordArchive.hash(key, requestChecksum))
+                    .putLong(requestChecksum)
+                    .putInt(responseCode)
+                    .putInt(key.length)
+                    .putInt(headers.length)
+                    .putLong(body.length)
+                    .put(key)
+                    .put(headers)
+                    .put(body)
+                    .flip();
+            return record;
+        }
+
+        boolean isComplete(long hash, long archiveSize) {
+            return this.hash == hash && keyLength >= 0 && headersLength >= 0 && bodyLength >= 0 &&
+                    recordLength == RecordArchive.RECORD_HEADER_SIZE - Integer.BYTES + keyLength + headersLength +
+                            bodyLength &&
+                    offset + Integer.BYTES + recordLength <= archiveSize;
+        }
+
+        boolean matches(MappedFile archive, byte[] key, long requestChecksum) {
+            return this.requestChecksum == requestChecksum && keyLength == key.length &&
+                    archive.slice(offset + RecordArchive.RECORD_HEADER_SIZE, keyLength).equals(ByteBuffer.wrap(key));
+        }
+
+        long getHeadersPosition() {
+            return offset + RecordArchive.RECORD_HEADER_SIZE + keyLength;
+        }
+
+        long getBodyPosition() {
+            return getHeadersPosition() + headersLength;
+        }
+    }
+
+    private static class ArchiveRecorder implements HttpHandler, Closeable {
+
+        private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+        private final String target;
+        private final FileChannel archive;
+        private final FileChannel index;
+        private final AtomicLong archiveEnd;
+        private final AtomicLong indexEnd;
+
+        ArchiveRecorder(String targetUrl, Path path) throws IOException {
+            target = new URL(targetUrl.endsWith("/") ? targetUrl.substring(0, targetUrl.length() - 1) : targetUrl)
+                    .toString();
+            archive = RecordArchive.open(path, RecordArchive.ARCHIVE_MAGIC);
+            try {
+                index = RecordArchive.open(RecordArchive.getIndexPath(path), RecordArchive.INDEX_MAGIC);
+            } catch (IOException e) {
+                archive.close();
+                throw e;
+            }
+            archiveEnd = new AtomicLong(archive.size());
+            indexEnd = new AtomicLong(index.size());
+        }
+
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            String uri = RecordArchive.getUri(httpExchange);
+            byte[] requestBody = readFully(httpExchange.getRequestBody());
+            int responseCode;
+            byte[] headers;
+            byte[] body;
+            try {
+                HttpURLConnection connection = forward(httpExchange, target + uri, requestBody);
+                responseCode = connection.getResponseCode();
+                headers = getResponseHeaders(connection);
+                InputStream is = responseCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+                body = is == null ? new byte[0] : readFully(is);
+            } catch (IOException e) {
+                httpExchange.sendResponseHeaders(502, -1);
+                httpExchange.close();
+                return;
+            }
+            CRC32 requestChecksum = new CRC32();
+            requestChecksum.update(requestBody, 0, requestBody.length);
+            append(ArchivedResponse.encode(RecordArchive.getKey(httpExchange, uri), requestChecksum.getValue(),
+                    responseCode, headers, body));
+            RecordArchive.sendResponseHeaders(httpExchange, responseCode, headers, body.length);
+            OutputStream os = httpExchange.getResponseBody();
+            os.write(body);
+            os.close();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                archive.close();
+            } finally {
+                index.close();
+            }
+        }
+
+        private void append(ByteBuffer record) throws IOException {
+            long hash = record.getLong(Integer.BYTES);
+            long position = archiveEnd.getAndAdd(record.remaining());
+            RecordArchive.write(archive, record, position);
+            ByteBuffer entry = ByteBuffer.allocate(RecordArchive.INDEX_ENTRY_SIZE);
+            entry.putLong(hash).putLong(position).flip();
+            RecordArchive.write(index, entry, indexEnd.getAndAdd(RecordArchive.INDEX_ENTRY_SIZE));
+        }
+
+        private static HttpURLConnection forward(HttpExchange httpExchange, String url, byte[] body)
+                throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setInstanceFollowRedirects(false);
+            connection.setUseCaches(false);
+            connection.setRequestMethod(httpExchange.getRequestMethod());
+            httpExchange.getRequestHeaders().forEach((name, values) -> {
+                if (!RecordArchive.isHopByHop(name))
+                    values.forEach(value -> connection.addRequestProperty(name, value));
+            });
+            if (body.length > 0) {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(body.length);
+                try (OutputStream os = connection.getOutputStream()) {
+                    os.write(body);
+                }
+            }
+            return connection;
+        }
+
+        private static byte[] getResponseHeaders(HttpURLConnection connection) {
+            StringBuilder headers = new StringBuilder();
+            String name;
+            for (int i = 1; (name = connection.getHeaderFieldKey(i)) != null; i++)
+                if (!RecordArchive.isHopByHop(name))
+                    headers.append(name).append(": ").append(connection.getHeaderField(i)).append("\r\n");
+            return headers.toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        private static byte[] readFully(InputStream is) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int count;
+            while ((count = is.read(buffer)) != -1)
+                bytes.write(buffer, 0, count);
+            is.close();
+            return bytes.toByteArray();
+        }
+    }
+
+    private static class ArchiveReplayer implements HttpHandler {
+
+        private final MappedFile archive;
+        private final long[] hashes;
+        private final long[] offsets;
+
+        ArchiveReplayer(Path path) throws IOException {
+            archive = MappedFile.get(path);
+            if (archive.size < RecordArchive.MAGIC_SIZE ||
+                    archive.slice(0, RecordArchive.MAGIC_SIZE).getLong() != RecordArchive.ARCHIVE_MAGIC)
+                throw new IOException("Not a recording archive: " + path);
+            ByteBuffer entries = mapIndex(RecordArchive.getIndexPath(path));
+            int count = entries.remaining() / RecordArchive.INDEX_ENTRY_SIZE;
+            int capacity = Integer.highestOneBit(Math.max(1, 2 * count - 1)) << 1;
+            hashes = new long[capacity];
+            offsets = new long[capacity];
+            while (entries.remaining() >= RecordArchive.INDEX_ENTRY_SIZE) {
+                long hash = entries.getLong();
+                long offset = entries.getLong();
+                if (offset >= RecordArchive.MAGIC_SIZE && offset <= archive.size - RecordArchive.RECORD_HEADER_SIZE &&
+                        new ArchivedResponse(archive, offset).isComplete(hash, archive.size))
+                    put(hash, offset);
+            }
+        }
+
+        @Override
+        public void handle(HttpExchange httpExchange) throws IOException {
+            byte[] key = RecordArchive.getKey(httpExchange, RecordArchive.getUri(httpExchange));
+            long requestChecksum = getChecksum(httpExchange.getRequestBody());
+            long offset = find(RecordArchive.hash(key, requestChecksum));
+            ArchivedResponse response = offset < 0 ? null : new ArchivedResponse(archive, offset);
+            if (response == null || !response.matches(archive, key, requestChecksum)) {
+                sendNotFound(httpExchange);
+                return;
+            }
+            byte[] headers = new byte[response.headersLength];
+            archive.slice(response.getHeadersPosition(), headers.length).get(headers);
+            RecordArchive.sendResponseHeaders(httpExchange, response.responseCode, headers, response.bodyLength);
+            if (response.bodyLength > 0)
+                BasicHandler.sendResponse(new FileContent(archive, response.getBodyPosition(), response.bodyLength),
+                        httpExchange);
+            else
+                httpExchange.close();
+        }
+
+        private static ByteBuffer mapIndex(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (index.remaining() < RecordArchive.MAGIC_SIZE || index.getLong() != RecordArchive.INDEX_MAGIC)
+                    throw new IOException("Not a recording archive index: " + path);
+                return index;
+            }
+        }
+
+        private static long getChecksum(InputStream is) throws IOException {
+            CRC32 checksum = new CRC32();
+            byte[] buffer = SinkHandler.acquire();
+            try {
+                int count;
+                while ((count = is.read(buffer)) != -1)
+                    checksum.update(buffer, 0, count);
+            } finally {
+                SinkHandler.release(buffer);
+                is.close();
+            }
+            return checksum.getValue();
+        }
+
+        private void put(long hash, long offset) {
+            int mask = hashes.length - 1;
+            int slot = (int) hash & mask;
+            while (hashes[slot] != 0 && hashes[slot] != hash)
+                slot = (slot + 1) & mask;
+            hashes[slot] = hash;
+            offsets[slot] = offset;
+        }
+
+        private long find(long hash) {
+            int mask = hashes.length - 1;
+            for (int slot = (int) hash & mask; hashes[slot] != 0; slot = (slot + 1) & mask)
+                if (hashes[slot] == hash)
+                    return offsets[slot];
+            return -1;
+        }
+    }
+
+    private static class MetricsHandler {
+
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+        private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+        private static HttpHandler getHandler(SimpleHttpServer server) {
+            return httpExchange -> {
+                List<ContextHandle> contexts = new ArrayList<>(server.contexts.values());
+                contexts.sort(Comparator.comparing(context -> context.contextPath));
+                boolean prometheus = isPrometheusRequested(httpExchange);
+                byte[] body = (prometheus ? toPrometheus(contexts) : toJson(contexts))
+                        .getBytes(StandardCharsets.UTF_8);
+                httpExchange.getResponseHeaders().set("Content-Type", prometheus
+                        ? "text/plain; version=0.0.4; charset=utf-8"
+                        : "application/json");
+                httpExchange.sendResponseHeaders(200, body.length);
+                OutputStream os = httpExchange.getResponseBody();
+                os.write(body);
+                os.close();
+            };
+        }
+
+        private static boolean isPrometheusRequested(HttpExchange httpExchange) {
+            String query = httpExchange.getRequestURI().getRawQuery();
+            if (query != null && query.contains("format=prometheus"))
+                return true;
+            String accept = httpExchange.getRequestHeaders().getFirst("Accept");
+            return accept != null && (accept.startsWith("text/plain") || accept.contains("openmetrics-text"));
+        }
+
+        private static String toJson(List<ContextHandle> contexts) {
+            return contexts.stream()
+                    .map(MetricsHandler::toJson)
+                    .collect(Collectors.joining(",", "{\"contexts\":[", "]}"));
+        }
+
+        private static String toJson(ContextHandle context) {
+            ContextMetrics metrics = context.getMetrics();
+            LatencyHistogram latency = metrics.getLatency();
+            StringBuilder json = new StringBuilder(256)
+                    .append("{\"path\":\"").append(escape(context.contextPath)).append('"')
+                    .append(",\"requests\":").append(metrics.getRequests())
+                    .append(",\"bytesIn\":").append(metrics.getBytesIn())
+                    .append(",\"bytesOut\":").append(metrics.getBytesOut())
+                    .append(",\"responseCodes\":{")
+                    .append(metrics.getResponseCodes().entrySet().stream()
+                            .map(code -> "\"" + code.getKey() + "\":" + code.getValue())
+                            .collect(Collectors.joining(",")))
+                    .append("},\"latencyMicros\":{\"mean\":").append(toMicros(latency.getMean()));
+            for (int i = 0; i < QUANTILES.length; i++)
+                json.append(",\"").append(QUANTILE_NAMES[i]).append("\":")
+                        .append(toMicros(latency.getValueAtPercentile(QUANTILES[i] * 100)));
+            json.append(",\"max\":").append(toMicros(latency.getMax())).append('}');
+            if (context.limiter != null)
+                json.append(",\"limiter\":{\"accepted\":").append(context.limiter.getAccepted())
+                        .append(",\"queued\":").append(context.limiter.getQueued())
+                        .append(",\"rejected\":").append(context.limiter.getRejected())
+                        .append(",\"inFlight\":").append(context.limiter.getInFlight()).append('}');
+            return json.append('}').toString();
+        }
+
+        private static double toMicros(double nanos) {
+            return Math.round(nanos) / 1000.0;
+        }
+
+        private static String toPrometheus(List<ContextHandle> contexts) {
+            StringBuilder text = new StringBuilder(1024);
+            appendCounter(text, contexts, "requests_total", "Completed requests.", ContextMetrics::getRequests);
+            appendCounter(text, contexts, "received_bytes_total", "Request body bytes read.",
+                    ContextMetrics::getBytesIn);
+            appendCounter(text, contexts, "sent_bytes_total", "Response body bytes written.",
+                    ContextMetrics::getBytesOut);
+            appendHeader(text, "responses_total", "Responses by status code.", "counter");
+            for (ContextHandle context : contexts)
+                context.getMetrics().getResponseCodes().forEach((code, count) ->
+                        text.append("simple_http_server_responses_total{context=\"")
+                                .append(escape(context.contextPath)).append("\",code=\"").append(code)
+                                .append("\"} ").append(count).append('\n'));
+            appendHeader(text, "request_duration_seconds", "Time from dispatch to response completion.",
+                    "summary");
+            for (ContextHandle context : contexts)
+                appendLatency(text, context);
+            appendHeader(text, "limited_requests_total", "Requests by request limiter outcome.", "counter");
+            for (ContextHandle context : contexts)
+                if (context.limiter != null) {
+                    appendLimited(text, context, "accepted", context.limiter.getAccepted());
+                    appendLimited(text, context, "queued", context.limiter.getQueued());
+                    appendLimited(text, context, "rejected", context.limiter.getRejected());
+                }
+            return text.toString();
+        }
+
+        private static void appendCounter(StringBuilder text, List<ContextHandle> contexts, String name,
+                                          String help, ToLongFunction<ContextMetrics> value) {
+            appendHeader(text, name, help, "counter");
+            for (ContextHandle context : contexts)
+                text.append("simple_http_server_").append(name).append("{context=\"")
+                        .append(escape(context.contextPath)).append("\"} ")
+                        .append(value.applyAsLong(context.getMetrics())).append('\n');
+        }
+
+        private static void appendLimited(StringBuilder text, ContextHandle context, String outcome, long count) {
+            text.append("simple_http_server_limited_requests_total{context=\"").append(escape(context.contextPath))
+                    .append("\",outcome=\"").append(outcome).append("\"} ").append(count).append('\n');
+        }
+
+        private static void appendHeader(StringBuilder text, String name, String help, String type) {
+            text.append("# HELP simple_http_server_").append(name).append(' ').append(help).append('\n')
+                    .append("# TYPE simple_http_server_").append(name).append(' ').append(type).append('\n');
+        }
+
+        private static void appendLatency(StringBuilder text, ContextHandle context) {
+            LatencyHistogram latency = context.getMetrics().getLatency();
+            String name = "simple_http_server_request_duration_seconds";
+            String label = "context=\"" + escape(context.contextPath) + "\"";
+            for (double quantile : QUANTILES)
+                text.append(name).append('{').append(label).append(",quantile=\"").append(quantile).append("\"} ")
+                        .append(latency.getValueAtPercentile(quantile * 100) / 1e9).append('\n');
+            text.append(name).append("_sum{").append(label).append("} ").append(latency.getSum() / 1e9).append('\n')
+                    .append(name).append("_count{").append(label).append("} ").append(latency.getCount())
+                    .append('\n');
+        }
+
+        private static String escape(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+    }
+
+    private static class UnixDomainSockets {
+
+        private static final Method addressFactory = getMethod("java.net.UnixDomainSocketAddress", "of", Path.class);
+        private static final Method serverChannelFactory = getMethod("java.nio.channels.ServerSocketChannel", "open",
+                ProtocolFamily.class);
+
+        static boolean isSupported() {
+            return addressFactory != null && serverChannelFactory != null;
+        }
+
+        static SocketAddress getAddress(Path path) throws IOException {
+            checkSupported();
+            return (SocketAddress) invoke(addressFactory, path);
+        }
+
+        static ServerSocketChannel openServerChannel() throws IOException {
+            checkSupported();
+            return (ServerSocketChannel) invoke(serverChannelFactory, StandardProtocolFamily.valueOf("UNIX"));
+        }
+
+        private static void checkSupported() {
+            if (!isSupported())
+                throw new UnsupportedOperationException("Unix domain sockets require Java 16 or newer");
+        }
+
+        private static Object invoke(Method method, Object argument) throws IOException {
+            try {
+                return method.invoke(null, argument);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IllegalStateException(e.getCause());
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static Method getMethod(String className, String name, Class<?> parameterType) {
+            try {
+                return Class.forName(className).getMethod(name, parameterType);
+            } catch (ReflectiveOperationException e) {
+                return null;
+            }
+        }
+    }
+
+    private static class HttpsInitializer {
+
+        private static final String KEYSTORE_BASE_64 =
+                "MIIDfgIBAzCCAzcGCSqGSIb3DQEHAaCCAygEggMkMIIDIDCB5QYJKoZIhvcNAQcBoIHXBIHUMIHRMIHOBgsqhkiG9w0BDAoBAqB3MHUwKQYKKoZI" +
+                        "hvcNAQwBAzAbBBQg2KrZs28n/VAn3v94rE1IJEOl3gIDAMNQBEjvUcScWfR2N8312h/AlriuaF8SZihDDQIVF58pCntskxszyL4aAPxd2D2KjhsD" +
+                        "5neXBRn8baUUibuhuyXqVcmkSWFB1i3/hj8xRjAhBgkqhkiG9w0BCRQxFB4SAGwAbwBjAGEAbABoAG8AcwB0MCEGCSqGSIb3DQEJFTEUBBJUaW1l" +
+                        "IDE3OTIxOTczODcyOTkwggI0BgkqhkiG9w0BBwagggIlMIICIQIBADCCAhoGCSqGSIb3DQEHATApBgoqhkiG9w0BDAEGMBsEFKffEt5OyL2G8LSz" +
+                        "C0WnahCWFKAgAgMAw1CAggHgOl9lNY3oOpaXP402fess6tjcbSyYuEHdEYUHiJq0EX0DkCMkDoMQyVsNja8R3nuxoMbKsZOdgCSw+0C/v2dsDh/W" +
+                        "7y+aEvP2GR3sKbl4XjSg0FkaG5gjYFlw1bThXAmrtbJIZMSgkKUVV6rGT4ybxqz5XN7ecBga3Pv1q033IaDwjugOMzzJ9z6+7Bxk75dPKIqbl/uT" +
+                        "TiXWzL/poFPWVSr57qh8VCccMx7a14x/L60tBZ4MG2wJevA2eaAe5da8Aj8Rg+sLqYRVgRZvwhvvlG1GfHDT0/XQ3hAbv+EGVpgZYSU0DvdqkIc6" +
+                        "xaDTwqBHSK+Z4+nyp3Gp5lVFn5ElH17z22iFupRO7gOLPjrW61XGDqunBMpYOzE3fxxppdVnot6ZVUw1UKr1PV2s84ieXXlu5HnqHJxYPxY1ZCza" +
+                        "MXZ8HRFpvhHzDgGpjNN/4HvhO69mrmv8R804+V4kE6aTeuiV9dSGO6OUhhD/agnUtwdnvDWXMgf8/XdUQLxd5ex207sWpNPtRmzEYDbRMaYr+CRJ" +
+                        "yag7WK46nwj3rFkCEFcxHQ8YdXdd3DDR+9zJSi7ltr8BkdIu4JVn2V2rmaio+ZRxy3u8xh/skLj/j4MzLXRAha/D9UU9kqvl0S/jZYIGMD4wITAJ" +
+                        "BgUrDgMCGgUABBQMbKSe9KzIjLzBi0Er9g4renrqlQQUqihihoWz5xplKOF/H8Cilr3q7O4CAwGGoA==";
+        private static final char[] KEYSTORE_PASSWORD = "simulator".toCharArray();
+        private static volatile TlsKey embeddedKey;
+
+        static SSLContext getDefaultSslContext() {
+            try {
+                return createSslContext(getEmbeddedKey(), null);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Unable to initialize the embedded TLS key", e);
+            }
+        }
+
+        static SSLContext createServerSslContext(TlsKey tlsKey, TlsStatistics statistics) {
+            try {
+                return createSslContext(tlsKey != null ? tlsKey : getEmbeddedKey(), statistics);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Unable to initialize the TLS context", e);
+            }
+        }
+
+        static TlsKey createTlsKey(KeyStore keyStore, char[] password) throws GeneralSecurityException {
+            return new TlsKey(getKeyManagerFactory(keyStore, password), getTrustManagerFactory(keyStore));
+        }
+
+        private static TlsKey getEmbeddedKey() throws GeneralSecurityException {
+            TlsKey tlsKey = embeddedKey;
+            if (tlsKey == null) {
+                synchronized (HttpsInitializer.class) {
+                    tlsKey = embeddedKey;
+                    if (tlsKey == null) {
+                        try {
+                            embeddedKey = tlsKey = createTlsKey(getKeyStore(), KEYSTORE_PASSWORD);
+                        } catch (IOException e) {
+                            throw new IllegalStateException("Unable to initialize the embedded TLS key", e);
+                        }
+                    }
+                }
+            }
+            return tlsKey;
+        }
+
+        private static SSLContext createSslContext(TlsKey tlsKey, TlsStatistics statistics)
+                throws GeneralSecurityException {
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            KeyManager[] keyManagers = tlsKey.keyManagerFactory.getKeyManagers();
+            sslContext.init(statistics != null ? countFullHandshakes(keyManagers, statistics) : keyManagers,
+                    tlsKey.trustManagerFactory.getTrustManagers(), null);
+            return sslContext;
+        }
+
+        private static KeyManager[] countFullHandshakes(KeyManager[] keyManagers, TlsStatistics statistics) {
+            KeyManager[] counting = new KeyManager[keyManagers.length];
+            for (int i = 0; i < keyManagers.length; i++)
+                counting[i] = keyManagers[i] instanceof X509ExtendedKeyManager
+                        ? new FullHandshakeCountingKeyManager((X509ExtendedKeyManager) keyManagers[i], statistics)
+                        : keyManagers[i];
+            return counting;
+        }
+
+        private static KeyStore getKeyStore() throws GeneralSecurityException, IOException {
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(getKeystoreStream(), KEYSTORE_PASSWORD);
+            return keyStore;
+        }
+
+        private static KeyManagerFactory getKeyManagerFactory(KeyStore keyStore, char[] password) throws
+                GeneralSecurityException {
+            KeyManagerFactory keyManagerFactory =
+                    KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, password);
+            return keyManagerFactory;
+        }
+
+        private static TrustManagerFactory getTrustManagerFactory(KeyStore keyStore) throws
+                GeneralSecurityException {
+            TrustManagerFactory trustManagerFactory =
+                    TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagerFactory.init(keyStore);
+            return trustManagerFactory;
+        }
+
+        private static InputStream getKeystoreStream() {
+            byte[] data = Base64.getDecoder().decode(KEYSTORE_BASE_64);
+            return new ByteArrayInputStream(data);
+        }
+    }
+
+    private static class TlsKey {
+
+        private final KeyManagerFactory keyManagerFactory;
+        private final TrustManagerFactory trustManagerFactory;
+
+        TlsKey(KeyManagerFactory keyManagerFactory, TrustManagerFactory trustManagerFactory) {
+            this.keyManagerFactory = keyManagerFactory;
+            this.trustManagerFactory = trustManagerFactory;
+        }
+    }
+
+    private static class MyHttpsConfigurator extends HttpsConfigurator {
+
+        private final SSLParameters sslParameters;
+        private final TlsStatistics statistics;
+
+        MyHttpsConfigurator(SSLContext sslContext, TlsSettings tls, TlsStatistics statistics) {
+            super(sslContext);
+            sslParameters = tls.getSslParameters(sslContext);
+            this.statistics = statistics;
+        }
+
+        @Override
+        public void configure(HttpsParameters params) {
+            statistics.handshakes.increment();
+            params.setSSLParameters(sslParameters);
+        }
+    }
+
+    private static class TlsSettings {
+
+        private static final List<String> PREFERRED_PROTOCOLS = Arrays.asList("TLSv1.3", "TLSv1.2");
+        private static final String SESSION_TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+        private static Boolean sessionTicketsInUse = null;
+
+        private final List<String> protocols;
+        private final List<String> cipherSuites;
+        private final int sessionCacheSize;
+        private final int sessionTimeoutSeconds;
+        private final Boolean sessionTickets;
+
+        TlsSettings(Builder builder) {
+            protocols = builder.tlsProtocols;
+            cipherSuites = builder.tlsCipherSuites;
+            sessionCacheSize = builder.tlsSessionCacheSize;
+            sessionTimeoutSeconds = builder.tlsSessionTimeoutSeconds;
+            sessionTickets = builder.tlsSessionTickets;
+        }
+
+        void applySessionTickets() {
+            synchronized (TlsSettings.class) {
+                if (sessionTicketsInUse == null) {
+                    if (sessionTickets != null)
+                        System.setProperty(SESSION_TICKETS_PROPERTY, sessionTickets.toString());
+                    sessionTicketsInUse = Boolean.parseBoolean(System.getProperty(SESSION_TICKETS_PROPERTY, "true"));
+                } else if (sessionTickets != null && sessionTickets != sessionTicketsInUse) {
+                    throw new IllegalStateException("Session tickets are already " +
+                            (sessionTicketsInUse ? "enabled" : "disabled") + " for all https servers of this JVM");
+                }
+            }
+        }
+
+        void applySessionCache(SSLContext sslContext) {
+            SSLSessionContext sessionContext = sslContext.getServerSessionContext();
+            if (sessionCacheSize >= 0)
+                sessionContext.setSessionCacheSize(sessionCacheSize);
+            if (sessionTimeoutSeconds >= 0)
+                sessionContext.setSessionTimeout(sessionTimeoutSeconds);
+        }
+
+        SSLParameters getSslParameters(SSLContext sslContext) {
+            SSLParameters supported = sslContext.getSupportedSSLParameters();
+            SSLParameters parameters = sslContext.getDefaultSSLParameters();
+            parameters.setProtocols(select(protocols != null ? protocols : getDefaultProtocols(parameters),
+                    supported.getProtocols()));
+            if (cipherSuites != null)
+                parameters.setCipherSuites(select(cipherSuites, supported.getCipherSuites()));
+            parameters.setUseCipherSuitesOrder(true);
+            parameters.setNeedClientAuth(false);
+            return parameters;
+        }
+
+        private static List<String> getDefaultProtocols(SSLParameters defaults) {
+            List<String> enabled = Arrays.asList(defaults.getProtocols());
+            List<String> preferred = PREFERRED_PROTOCOLS.stream()
+                    .filter(enabled::contains)
+                    .collect(Collectors.toList());
+            return preferred.isEmpty() ? enabled : preferred;
+        }
+
+        private static String[] select(List<String> requested, String[] supported) {
+            List<String> supportedList = Arrays.asList(supported);
+            String[] selected = requested.stream()
+                    .filter(supportedList::contains)
+                    .toArray(String[]::new);
+            if (selected.length == 0)
+                throw new IllegalArgumentException("None of " + requested + " is supported");
+            return selected;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof TlsSettings))
+                return false;
+            TlsSettings other = (TlsSettings) o;
+            return Objects.equals(protocols, other.protocols) && Objects.equals(cipherSuites, other.cipherSuites) &&
+                    sessionCacheSize == other.sessionCacheSize &&
+                    sessionTimeoutSeconds == other.sessionTimeoutSeconds &&
+                    Objects.equals(sessionTickets, other.sessionTickets);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(protocols, cipherSuites, sessionCacheSize, sessionTimeoutSeconds, sessionTickets);
+        }
+    }
+
+    public static class TlsStatistics {
+
+        private final boolean fullHandshakesCounted;
+        private final LongAdder handshakes = new LongAdder();
+        private final LongAdder fullHandshakes = new LongAdder();
+
+        private TlsStatistics(boolean fullHandshakesCounted) {
+            this.fullHandshakesCounted = fullHandshakesCounted;
+        }
+
+        public long getHandshakes() {
+            return handshakes.sum();
+        }
+
+        public long getFullHandshakes() {
+            return fullHandshakesCounted ? fullHandshakes.sum() : -1;
+        }
+
+        public long getResumedHandshakes() {
+            return fullHandshakesCounted ? Math.max(0, getHandshakes() - getFullHandshakes()) : -1;
+        }
+    }
+
+    private static class FullHandshakeCountingKeyManager extends X509ExtendedKeyManager {
+
+        private final X509ExtendedKeyManager keyManager;
+        private final TlsStatistics statistics;
+
+        FullHandshakeCountingKeyManager(X509ExtendedKeyManager keyManager, TlsStatistics statistics) {
+            this.keyManager = keyManager;
+            this.statistics = statistics;
+        }
+
+        @Override
+        public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+            return countFullHandshake(keyManager.chooseEngineServerAlias(keyType, issuers, engine));
+        }
+
+        @Override
+        public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+            return countFullHandshake(keyManager.chooseServerAlias(keyType, issuers, socket));
+        }
+
+        private String countFullHandshake(String alias) {
+            if (alias != null)
+                statistics.fullHandshakes.increment();
+            return alias;
+        }
+
+        @Override
+        public String chooseEngineClientAlias(String[] keyType, Principal[] issuers, SSLEngine engine) {
+            return keyManager.chooseEngineClientAlias(keyType, issuers, engine);
+        }
+
+        @Override
+        public String[] getClientAliases(String keyType, Principal[] issuers) {
+            return keyManager.getClientAliases(keyType, issuers);
+        }
+
+        @Override
+        public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+            return keyManager.chooseClientAlias(keyType, issuers, socket);
+        }
+
+        @Override
+        public String[] getServerAliases(String keyType, Principal[] issuers) {
+            return keyManager.getServerAliases(keyType, issuers);
+        }
+
+        @Override
+        public X509Certificate[] getCertificateChain(String alias) {
+            return keyManager.getCertificateChain(alias);
+        }
+
+        @Override
+        public PrivateKey getPrivateKey(String alias) {
+            return keyManager.getPrivateKey(alias);
         }
     }
 
@@ -1,9 +1,12 @@
 package com.mdanetzky.testserver.tests;
 
+import com.mdanetzky.testserver.Launcher;
+import com.mdanetzky.testserver.LoadGenerator;
 import com.mdanetzky.testserver.SimpleHttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import org.hamcrest.Matchers;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
@@ -11,17 +14,41 @@ import org.xml.sax.SAXException;
 
 import javax.net.ssl.HttpsURLConnection;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.net.BindException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class SimpleHttpServerTest {
@@ -52,6 +79,57 @@ public class SimpleHttpServerTest {
         assertTrue(url.startsWith("https://"));
     }
 
+    @Test
+    public void httpsWithSuppliedSslContext() throws IOException, SAXException {
+        String defaultUrl = SimpleHttpServer.getBuilder()
+                .setSsl()
+                .start();
+        SimpleHttpServer.ContextHandle context = SimpleHttpServer.getBuilder()
+                .setSsl(SimpleHttpServer.getSslContext())
+                .setContent(TEST_CONTENT)
+                .startContext();
+        String url = context.getUrl();
+        assertEquals(HttpUtil.getHttpText(url), TEST_CONTENT);
+        assertFalse(new URL(defaultUrl).getPort() == new URL(url).getPort());
+        assertEquals(context.getTlsStatistics().getHandshakes(), 1);
+        assertEquals(context.getTlsStatistics().getResumedHandshakes(), -1);
+    }
+
+    @Test
+    public void httpsResumesTlsSessions() throws IOException {
+        SimpleHttpServer.ContextHandle context = SimpleHttpServer.getBuilder()
+                .setSsl()
+                .setTlsSessionCache(100, 1, TimeUnit.HOURS)
+                .setContent(TEST_CONTENT)
+                .startContext();
+        URL url = new URL(context.getUrl());
+        SimpleHttpServer.TlsStatistics statistics = context.getTlsStatistics();
+        long handshakes = statistics.getHandshakes();
+        long fullHandshakes = statistics.getFullHandshakes();
+        assertEquals(getOverNewTlsConnection(url), TEST_CONTENT);
+        assertEquals(getOverNewTlsConnection(url), TEST_CONTENT);
+        assertEquals(statistics.getHandshakes() - handshakes, 2);
+        assertEquals(statistics.getFullHandshakes() - fullHandshakes, 1);
+    }
+
+    @Test
+    public void tlsSessionTicketsAreFixedOnceTlsIsInitialized() throws IOException {
+        SimpleHttpServer.getBuilder().setSsl().start();
+        boolean inUse = Boolean.parseBoolean(System.getProperty("jdk.tls.server.enableSessionTicketExtension", "true"));
+        assertTrue(SimpleHttpServer.getBuilder().setSsl().setTlsSessionTickets(inUse).start().startsWith("https://"));
+        thrownBy(() -> SimpleHttpServer.getBuilder().setSsl().setTlsSessionTickets(!inUse).start(),
+                IllegalStateException.class);
+    }
+
+    private static String getOverNewTlsConnection(URL url) throws IOException {
+        String request = "GET " + url.getPath() + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+        try (Socket socket = SimpleHttpServer.getSslContext().getSocketFactory()
+                .createSocket(url.getHost(), url.getPort())) {
+            socket.getOutputStream().write(request.getBytes());
+            return readRawResponseBody(new BufferedReader(new InputStreamReader(socket.getInputStream())));
+        }
+    }
+
     @Test
     public void echo() throws IOException, SAXException {
         String url = SimpleHttpServer.getBuilder().startEcho();
@@ -61,6 +139,840 @@ public class SimpleHttpServerTest {
         assertTrue(response.contains("Referer"));
     }
 
+    @Test
+    public void echoStreamsBinaryRequestBody() throws IOException {
+        byte[] body = new byte[256 * 1024];
+        new Random(42).nextBytes(body);
+        String url = SimpleHttpServer.getBuilder().startEcho();
+        byte[] response = HttpUtil.postBytes(url, body, false);
+        assertArrayEquals(Arrays.copyOfRange(response, response.length - body.length, response.length), body);
+    }
+
+    @Test
+    public void echoBodyLimitTruncatesChunkedRequestBody() throws IOException {
+        byte[] body = new byte[256 * 1024];
+        new Random(42).nextBytes(body);
+        String url = SimpleHttpServer.getBuilder()
+                .setEchoBodyLimit(1024)
+                .startEcho();
+        byte[] response = HttpUtil.postBytes(url, body, true);
+        byte[] marker = "REQUEST BODY:\n".getBytes();
+        int bodyStart = indexOf(response, marker) + marker.length;
+        assertArrayEquals(Arrays.copyOfRange(response, bodyStart, response.length), Arrays.copyOf(body, 1024));
+    }
+
+    private static int indexOf(byte[] bytes, byte[] part) {
+        for (int i = 0; i + part.length <= bytes.length; i++)
+            if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + part.length), part))
+                return i;
+        return -1;
+    }
+
+    @Test
+    public void fileContent() throws IOException {
+        byte[] content = new byte[3 * 1024 * 1024 + 17];
+        new Random(7).nextBytes(content);
+        Path file = Files.createTempFile("SimpleHttpServerTest", ".bin");
+        try {
+            Files.write(file, content);
+            for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+                String url = SimpleHttpServer.getBuilder()
+                        .setEngine(engine)
+                        .setContent(file)
+                        .start();
+                assertArrayEquals(HttpUtil.getHttpBytes(url), content);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void byteBufferContent() throws IOException {
+        ByteBuffer content = ByteBuffer.allocateDirect(TEST_CONTENT.length());
+        content.put(TEST_CONTENT.getBytes()).flip();
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            String url = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setContent(content)
+                    .start();
+            assertEquals(HttpUtil.getHttpText(url), TEST_CONTENT);
+        }
+    }
+
+    @Test
+    public void generatedContent() throws IOException {
+        long length = 1024 * 1024 + 3;
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            String url = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setGeneratedContent(length, 42)
+                    .start();
+            assertArrayEquals(HttpUtil.getHttpBytes(url),
+                    HttpUtil.readBytes(SimpleHttpServer.getGeneratedContentStream(length, 42)));
+        }
+    }
+
+    @Test
+    public void contextMetricsCountRequests() throws IOException, InterruptedException {
+        byte[] body = "request body".getBytes();
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            SimpleHttpServer.ContextHandle context = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .startEchoContext();
+            byte[] first = HttpUtil.postBytes(context.getUrl(), body, false);
+            byte[] second = HttpUtil.postBytes(context.getUrl(), body, true);
+            SimpleHttpServer.ContextMetrics metrics = awaitRequests(context, 2);
+            assertEquals(metrics.getBytesIn(), 2 * body.length);
+            assertEquals(metrics.getBytesOut(), first.length + second.length);
+            assertEquals(metrics.getResponseCodes(), Collections.singletonMap(200, 2L));
+            assertEquals(metrics.getLatency().getCount(), 2);
+            assertTrue(metrics.getLatency().getValueAtPercentile(50) > 0);
+        }
+    }
+
+    @Test
+    public void contextMetricsCountResponsesWithoutBody() throws IOException, InterruptedException {
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            SimpleHttpServer.ContextHandle context = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setHandler(httpExchange -> {
+                        httpExchange.sendResponseHeaders(204, -1);
+                        httpExchange.close();
+                    })
+                    .startContext();
+            HttpURLConnection connection = (HttpURLConnection) HttpUtil.getUrlConnection(context.getUrl());
+            assertEquals(connection.getResponseCode(), 204);
+            assertEquals(awaitRequests(context, 1).getResponseCodes(), Collections.singletonMap(204, 1L));
+        }
+    }
+
+    @Test
+    public void metricsEndpoint() throws IOException, InterruptedException {
+        SimpleHttpServer.ContextHandle context = SimpleHttpServer.getBuilder()
+                .setEngine(SimpleHttpServer.Engine.NIO)
+                .setContent(TEST_CONTENT)
+                .startContext();
+        String metricsUrl = SimpleHttpServer.getBuilder()
+                .setEngine(SimpleHttpServer.Engine.NIO)
+                .startMetrics();
+        HttpUtil.getHttpText(context.getUrl());
+        awaitRequests(context, 1);
+        String path = new URL(context.getUrl()).getPath();
+        assertTrue(HttpUtil.getHttpText(metricsUrl).contains(
+                "{\"path\":\"" + path + "\",\"requests\":1,\"bytesIn\":0,\"bytesOut\":" + TEST_CONTENT.length() +
+                        ",\"responseCodes\":{\"200\":1}"));
+        assertTrue(HttpUtil.getHttpText(metricsUrl + "?format=prometheus").contains(
+                "simple_http_server_responses_total{context=\"" + path + "\",code=\"200\"} 1"));
+    }
+
+    private static SimpleHttpServer.ContextMetrics awaitRequests(SimpleHttpServer.ContextHandle context, long requests)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (context.getMetrics().getRequests() < requests && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(context.getMetrics().getRequests(), requests);
+        return context.getMetrics();
+    }
+
+    @Test
+    public void requestJournalRecordsRequests() throws Exception {
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            SimpleHttpServer.ContextHandle context = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setRequestJournal(2, 4)
+                    .setContent(TEST_CONTENT)
+                    .startContext();
+            HttpUtil.getHttpText(context.getUrl() + "?first");
+            HttpUtil.postBytes(context.getUrl() + "?second", "second body".getBytes(), false);
+            HttpUtil.postBytes(context.getUrl() + "?third", "3".getBytes(), true);
+            SimpleHttpServer.RequestJournal journal = context.getJournal();
+            List<SimpleHttpServer.RecordedRequest> requests = journal.await(2, 2, TimeUnit.SECONDS);
+            assertEquals(journal.getTotalCount(), 3);
+            assertEquals(requests.get(0).getUri().getQuery(), "second");
+            assertEquals(requests.get(0).getMethod(), "POST");
+            assertEquals(requests.get(0).getHeader("content-length"), "11");
+            assertArrayEquals(requests.get(0).getBodyPrefix(), "seco".getBytes());
+            assertArrayEquals(requests.get(1).getBodyPrefix(), "3".getBytes());
+            journal.clear();
+            assertTrue(journal.getRequests().isEmpty());
+        }
+    }
+
+    @Test
+    public void requestJournalAwaitsMatchingRequests() throws Exception {
+        SimpleHttpServer.ContextHandle context = SimpleHttpServer.getBuilder()
+                .setRequestJournal(16)
+                .setContent(TEST_CONTENT)
+                .startContext();
+        ExecutorService client = Executors.newSingleThreadExecutor();
+        try {
+            client.submit(() -> {
+                for (int i = 0; i < 5; i++)
+                    HttpUtil.getHttpText(context.getUrl() + "?request=" + i % 2);
+                return null;
+            });
+            List<SimpleHttpServer.RecordedRequest> requests = context.getJournal()
+                    .await(request -> "request=1".equals(request.getUri().getQuery()), 2, 5, TimeUnit.SECONDS);
+            assertEquals(requests.size(), 2);
+        } finally {
+            client.shutdown();
+        }
+        thrown.expect(TimeoutException.class);
+        context.getJournal().await(request -> "request=2".equals(request.getUri().getQuery()), 1,
+                50, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void compressedContent() throws IOException {
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            String url = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setCompression(SimpleHttpServer.Encoding.GZIP, SimpleHttpServer.Encoding.DEFLATE)
+                    .setContent(TEST_CONTENT)
+                    .start();
+            assertEquals(getEncoded(url, "gzip, deflate", "gzip"), TEST_CONTENT);
+            assertEquals(getEncoded(url, "gzip;q=0.5, deflate", "deflate"), TEST_CONTENT);
+            assertEquals(getEncoded(url, "gzip;q=0, *", "deflate"), TEST_CONTENT);
+            assertEquals(getEncoded(url, "br", null), TEST_CONTENT);
+        }
+    }
+
+    @Test
+    public void compressedGeneratedContentIsStreamed() throws IOException {
+        long length = 5 * 1024 * 1024;
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            String url = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setCompression(SimpleHttpServer.Encoding.GZIP)
+                    .setGeneratedContent(length, 7)
+                    .start();
+            HttpURLConnection connection = (HttpURLConnection) HttpUtil.getUrlConnection(url);
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            assertEquals(connection.getHeaderField("Content-Encoding"), "gzip");
+            assertArrayEquals(HttpUtil.readBytes(new GZIPInputStream(connection.getInputStream())),
+                    HttpUtil.readBytes(SimpleHttpServer.getGeneratedContentStream(length, 7)));
+        }
+    }
+
+    @Test
+    public void compressedEcho() throws IOException {
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            String url = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setCompression(SimpleHttpServer.Encoding.DEFLATE)
+                    .startEcho();
+            HttpURLConnection connection = (HttpURLConnection) HttpUtil.getUrlConnection(url);
+            connection.setRequestProperty("Accept-Encoding", "deflate");
+            connection.setDoOutput(true);
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(TEST_CONTENT.getBytes());
+            }
+            assertEquals(connection.getHeaderField("Content-Encoding"), "deflate");
+            String echo = new String(HttpUtil.readBytes(new InflaterInputStream(connection.getInputStream())));
+            assertTrue(echo.endsWith("REQUEST BODY:\n" + TEST_CONTENT));
+        }
+    }
+
+    private static String getEncoded(String url, String acceptEncoding, String expectedEncoding) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) HttpUtil.getUrlConnection(url);
+        connection.setRequestProperty("Accept-Encoding", acceptEncoding);
+        String encoding = connection.getHeaderField("Content-Encoding");
+        assertEquals(encoding, expectedEncoding);
+        InputStream in = connection.getInputStream();
+        if ("gzip".equals(encoding))
+            in = new GZIPInputStream(in);
+        else if ("deflate".equals(encoding))
+            in = new InflaterInputStream(in);
+        assertEquals(connection.getHeaderField("Vary"), "Accept-Encoding");
+        return new String(HttpUtil.readBytes(in));
+    }
+
+    @Test
+    public void conditionalRequests() throws IOException {
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            String url = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setCompression(SimpleHttpServer.Encoding.GZIP)
+                    .setConditionalRequests(true)
+                    .setContent(TEST_CONTENT)
+                    .start();
+            HttpURLConnection connection = (HttpURLConnection) HttpUtil.getUrlConnection(url);
+            String entityTag = connection.getHeaderField("ETag");
+            assertNull(connection.getHeaderField("Last-Modified"));
+            assertEquals(connection.getHeaderField("Accept-Ranges"), "bytes");
+            assertEquals(HttpUtil.readUrlConnection(connection), TEST_CONTENT);
+            assertEquals(getResponseCode(url, "If-None-Match", entityTag), 304);
+            assertEquals(getResponseCode(url, "If-None-Match", "\"other\", W/" + entityTag), 304);
+            assertEquals(getResponseCode(url, "If-None-Match", "\"other\""), 200);
+            assertEquals(getResponseCode(url, "If-Modified-Since", "Thu, 01 Jan 1970 00:00:00 GMT"), 200);
+            HttpURLConnection encoded = (HttpURLConnection) HttpUtil.getUrlConnection(url);
+            encoded.setRequestProperty("Accept-Encoding", "gzip");
+            String encodedTag = encoded.getHeaderField("ETag");
+            assertFalse(encodedTag.equals(entityTag));
+            encoded.getInputStream().close();
+            encoded = (HttpURLConnection) HttpUtil.getUrlConnection(url);
+            encoded.setRequestProperty("Accept-Encoding", "gzip");
+            encoded.setRequestProperty("If-None-Match", encodedTag);
+            assertEquals(encoded.getResponseCode(), 304);
+        }
+    }
+
+    @Test
+    public void conditionalRequestsAreOptIn() throws IOException {
+        String url = SimpleHttpServer.getBuilder()
+                .setContent(TEST_CONTENT)
+                .start();
+        HttpURLConnection connection = (HttpURLConnection) HttpUtil.getUrlConnection(url);
+        assertNull(connection.getHeaderField("ETag"));
+        assertNull(connection.getHeaderField("Last-Modified"));
+        assertNull(connection.getHeaderField("Accept-Ranges"));
+        assertEquals(HttpUtil.readUrlConnection(connection), TEST_CONTENT);
+        assertEquals(getResponseCode(url, "If-None-Match", "*"), 200);
+        connection = getRange(url, "bytes=0-3");
+        assertEquals(connection.getResponseCode(), 200);
+        assertEquals(HttpUtil.readUrlConnection(connection), TEST_CONTENT);
+    }
+
+    @Test
+    public void fileContentIsLastModifiedAtFileTime() throws IOException {
+        Path file = Files.createTempFile("SimpleHttpServerTest", ".txt");
+        try {
+            Files.write(file, TEST_CONTENT.getBytes());
+            Files.setLastModifiedTime(file, FileTime.fromMillis(1_000_000_000_000L));
+            String url = SimpleHttpServer.getBuilder()
+                    .setConditionalRequests(true)
+                    .setContent(file)
+                    .start();
+            String lastModified = HttpUtil.getUrlConnection(url).getHeaderField("Last-Modified");
+            assertEquals(lastModified, "Sun, 09 Sep 2001 01:46:40 GMT");
+            assertEquals(getResponseCode(url, "If-Modified-Since", lastModified), 304);
+            assertEquals(getResponseCode(url, "If-Modified-Since", "Thu, 01 Jan 1970 00:00:00 GMT"), 200);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void rangeRequests() throws IOException {
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            String url = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setHeaders("Content-Type: text/plain")
+                    .setConditionalRequests(true)
+                    .setContent(TEST_CONTENT)
+                    .start();
+            HttpURLConnection connection = getRange(url, "bytes=5-8");
+            assertEquals(connection.getResponseCode(), 206);
+            assertEquals(connection.getHeaderField("Content-Range"), "bytes 5-8/12");
+            assertEquals(HttpUtil.readUrlConnection(connection), "cont");
+            connection = getRange(url, "bytes=-4");
+            assertEquals(connection.getHeaderField("Content-Range"), "bytes 8-11/12");
+            assertEquals(HttpUtil.readUrlConnection(connection), "tent");
+            connection = getRange(url, "bytes=0-3,5-");
+            assertEquals(connection.getResponseCode(), 206);
+            String contentType = connection.getHeaderField("Content-Type");
+            assertTrue(contentType, contentType.startsWith("multipart/byteranges; boundary="));
+            String boundary = contentType.substring(contentType.indexOf('=') + 1);
+            String body = new String(HttpUtil.readBytes(connection.getInputStream()));
+            assertEquals(body, "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 0-3/12\r\n\r\ntest" +
+                    "\r\n--" + boundary + "\r\nContent-Type: text/plain\r\nContent-Range: bytes 5-11/12\r\n\r\ncontent" +
+                    "\r\n--" + boundary + "--\r\n");
+            connection = getRange(url, "bytes=12-");
+            assertEquals(connection.getResponseCode(), 416);
+            assertEquals(connection.getHeaderField("Content-Range"), "bytes */12");
+            connection = getRange(url, "items=0-1");
+            assertEquals(HttpUtil.readUrlConnection(connection), TEST_CONTENT);
+            connection = getRange(url, "bytes=--5");
+            assertEquals(connection.getResponseCode(), 200);
+            assertEquals(HttpUtil.readUrlConnection(connection), TEST_CONTENT);
+            connection = getRange(url, "bytes=+0-3");
+            assertEquals(connection.getResponseCode(), 200);
+            connection = getRange(url, "bytes=0-3");
+            connection.setRequestProperty("If-Range", "\"outdated\"");
+            assertEquals(connection.getResponseCode(), 200);
+            assertEquals(HttpUtil.readUrlConnection(connection), TEST_CONTENT);
+        }
+    }
+
+    @Test
+    public void rangeRequestOnLargeContent() throws IOException {
+        long length = 3L * 1024 * 1024 + 17;
+        byte[] expected = Arrays.copyOfRange(HttpUtil.readBytes(SimpleHttpServer.getGeneratedContentStream(length, 3)),
+                1024 * 1024, 2 * 1024 * 1024 + 100);
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            String url = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setConditionalRequests(true)
+                    .setGeneratedContent(length, 3)
+                    .start();
+            HttpURLConnection connection = getRange(url, "bytes=" + 1024 * 1024 + "-" + (2 * 1024 * 1024 + 99));
+            connection.setRequestProperty("If-Range", HttpUtil.getUrlConnection(url).getHeaderField("ETag"));
+            assertEquals(connection.getResponseCode(), 206);
+            assertArrayEquals(HttpUtil.readBytes(connection.getInputStream()), expected);
+        }
+    }
+
+    private static HttpURLConnection getRange(String url, String range) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) HttpUtil.getUrlConnection(url);
+        connection.setRequestProperty("Range", range);
+        return connection;
+    }
+
+    private static int getResponseCode(String url, String header, String value) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) HttpUtil.getUrlConnection(url);
+        connection.setRequestProperty(header, value);
+        int responseCode = connection.getResponseCode();
+        if (responseCode == 200)
+            connection.getInputStream().close();
+        return responseCode;
+    }
+
+    @Test
+    public void delayedResponsesDoNotBlockExecutorThreads() throws Exception {
+        int requests = 20;
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            String url = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setExecutor(SimpleHttpServer.ServerExecutors.boundedThreadPool(2, 100,
+                            SimpleHttpServer.RejectionPolicy.OVERFLOW_THREAD))
+                    .setResponseDelay(300, TimeUnit.MILLISECONDS)
+                    .setContent(TEST_CONTENT)
+                    .start();
+            ExecutorService clients = Executors.newFixedThreadPool(requests);
+            try {
+                long start = System.nanoTime();
+                List<Future<String>> responses = new ArrayList<>();
+                for (int i = 0; i < requests; i++)
+                    responses.add(clients.submit(() -> HttpUtil.getHttpText(url)));
+                for (Future<String> response : responses)
+                    assertEquals(response.get(), TEST_CONTENT);
+                long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                assertTrue("Elapsed " + elapsedMillis, elapsedMillis >= 300 && elapsedMillis < requests * 300 / 2);
+            } finally {
+                clients.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void throttledBandwidth() throws IOException {
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            String url = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setBandwidth(40_000)
+                    .setGeneratedContent(20_000, 5)
+                    .start();
+            long start = System.nanoTime();
+            assertArrayEquals(HttpUtil.getHttpBytes(url),
+                    HttpUtil.readBytes(SimpleHttpServer.getGeneratedContentStream(20_000, 5)));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(450));
+        }
+    }
+
+    @Test
+    public void responseDurationPacesHandlerOutput() throws IOException {
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            String url = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setResponseDuration(SimpleHttpServer.Delays.uniform(400, 500, TimeUnit.MILLISECONDS))
+                    .startEcho();
+            long start = System.nanoTime();
+            assertTrue(HttpUtil.getHttpText(url).startsWith("GET"));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(400));
+        }
+    }
+
+    @Test
+    public void throttledHandlerOutputIsStreamed() throws Exception {
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            CountDownLatch firstPartRead = new CountDownLatch(1);
+            String url = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setBandwidth(40_000)
+                    .setHandler(httpExchange -> {
+                        httpExchange.sendResponseHeaders(200, 20_000);
+                        OutputStream body = httpExchange.getResponseBody();
+                        body.write(new byte[10_000]);
+                        try {
+                            firstPartRead.await(5, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        body.write(new byte[10_000]);
+                        body.close();
+                    })
+                    .start();
+            long start = System.nanoTime();
+            InputStream in = HttpUtil.getUrlConnection(url).getInputStream();
+            new DataInputStream(in).readFully(new byte[10_000]);
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            firstPartRead.countDown();
+            assertEquals(HttpUtil.readBytes(in).length, 10_000);
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(450));
+        }
+    }
+
+    @Test
+    public void delayDistributions() {
+        SimpleHttpServer.Delay percentiles = SimpleHttpServer.Delays.percentiles(
+                new double[]{50, 99, 100}, new long[]{10, 100, 200}, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 1000; i++) {
+            long delay = percentiles.nextDelayNanos();
+            assertTrue(delay >= TimeUnit.MILLISECONDS.toNanos(10) && delay <= TimeUnit.MILLISECONDS.toNanos(200));
+            assertTrue(SimpleHttpServer.Delays.normal(5, 10, TimeUnit.MILLISECONDS).nextDelayNanos() >= 0);
+        }
+    }
+
+    @Test
+    public void injectedFaults() throws IOException {
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            String resetUrl = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setFault(SimpleHttpServer.Fault.RESET_MID_BODY)
+                    .setGeneratedContent(1024 * 1024, 1)
+                    .start();
+            HttpURLConnection reset = (HttpURLConnection) HttpUtil.getUrlConnection(resetUrl);
+            assertEquals(reset.getResponseCode(), 200);
+            assertTrue(isTruncated(reset.getInputStream(), 1024 * 1024));
+            String stallUrl = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setFault(SimpleHttpServer.Fault.STALL_MID_BODY)
+                    .setContent(TEST_CONTENT)
+                    .start();
+            URLConnection stalled = HttpUtil.getUrlConnection(stallUrl);
+            stalled.setReadTimeout(300);
+            assertTrue(readUntilFailure(stalled.getInputStream()) instanceof SocketTimeoutException);
+            String refusedUrl = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setFault(SimpleHttpServer.Fault.RESET_BEFORE_RESPONSE)
+                    .start();
+            HttpURLConnection refused = (HttpURLConnection) HttpUtil.getUrlConnection(refusedUrl);
+            thrownBy(refused::getResponseCode, IOException.class);
+        }
+    }
+
+    @Test
+    public void midBodyFaultOfStreamedOutputUsesDeclaredLength() throws IOException {
+        String url = SimpleHttpServer.getBuilder()
+                .setFault(SimpleHttpServer.Fault.RESET_MID_BODY)
+                .setHandler(httpExchange -> {
+                    httpExchange.sendResponseHeaders(200, 1000);
+                    OutputStream body = httpExchange.getResponseBody();
+                    body.write('x');
+                    body.write(new byte[999]);
+                    body.close();
+                })
+                .start();
+        InputStream in = HttpUtil.getUrlConnection(url).getInputStream();
+        int received = 0;
+        try {
+            while (in.read() >= 0)
+                received++;
+        } catch (IOException ignored) {
+        }
+        assertEquals(received, 500);
+    }
+
+    private static boolean isTruncated(InputStream in, long length) {
+        try {
+            return HttpUtil.readBytes(in).length < length;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private static Exception readUntilFailure(InputStream in) {
+        try {
+            HttpUtil.readBytes(in);
+            return null;
+        } catch (IOException e) {
+            return e;
+        }
+    }
+
+    private static void thrownBy(Callable<?> call, Class<? extends Exception> expected) {
+        try {
+            call.call();
+        } catch (Exception e) {
+            assertTrue(e.toString(), expected.isInstance(e));
+            return;
+        }
+        Assert.fail("Expected " + expected.getSimpleName());
+    }
+
+    @Test
+    public void concurrencyLimitRejectsExcessRequests() throws Exception {
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            SimpleHttpServer.ContextHandle context = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setMaxConcurrentRequests(1)
+                    .setResponseDelay(500, TimeUnit.MILLISECONDS)
+                    .setContent(TEST_CONTENT)
+                    .startContext();
+            SimpleHttpServer.RequestLimiter limiter = context.getLimiter();
+            ExecutorService client = Executors.newSingleThreadExecutor();
+            try {
+                Future<String> admitted = client.submit(() -> HttpUtil.getHttpText(context.getUrl()));
+                while (limiter.getInFlight() == 0)
+                    Thread.sleep(5);
+                HttpURLConnection rejected = (HttpURLConnection) HttpUtil.getUrlConnection(context.getUrl());
+                assertEquals(rejected.getResponseCode(), 503);
+                assertEquals(rejected.getHeaderField("Retry-After"), "1");
+                assertEquals(admitted.get(), TEST_CONTENT);
+            } finally {
+                client.shutdown();
+            }
+            assertEquals(limiter.getAccepted(), 1);
+            assertEquals(limiter.getRejected(), 1);
+        }
+    }
+
+    @Test
+    public void concurrencyLimitQueuesRequests() throws Exception {
+        int requests = 3;
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            SimpleHttpServer.ContextHandle context = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setMaxConcurrentRequests(1)
+                    .setLimitQueueTimeout(5, TimeUnit.SECONDS)
+                    .setResponseDelay(200, TimeUnit.MILLISECONDS)
+                    .setContent(TEST_CONTENT)
+                    .startContext();
+            ExecutorService clients = Executors.newFixedThreadPool(requests);
+            try {
+                long start = System.nanoTime();
+                List<Future<String>> responses = new ArrayList<>();
+                for (int i = 0; i < requests; i++)
+                    responses.add(clients.submit(() -> HttpUtil.getHttpText(context.getUrl())));
+                for (Future<String> response : responses)
+                    assertEquals(response.get(), TEST_CONTENT);
+                assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(requests * 200));
+            } finally {
+                clients.shutdown();
+            }
+            assertEquals(context.getLimiter().getAccepted(), requests);
+            assertEquals(context.getLimiter().getQueued(), requests - 1);
+            assertEquals(context.getLimiter().getRejected(), 0);
+        }
+    }
+
+    @Test
+    public void rateLimit() throws IOException {
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            SimpleHttpServer.ContextHandle rejecting = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setRateLimit(0.5, 1)
+                    .setContent(TEST_CONTENT)
+                    .startContext();
+            assertEquals(HttpUtil.getHttpText(rejecting.getUrl()), TEST_CONTENT);
+            HttpURLConnection rejected = (HttpURLConnection) HttpUtil.getUrlConnection(rejecting.getUrl());
+            assertEquals(rejected.getResponseCode(), 429);
+            assertEquals(rejected.getHeaderField("Retry-After"), "2");
+            assertEquals(rejecting.getLimiter().getRejected(), 1);
+            String queueing = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setRateLimit(10, 2)
+                    .setLimitQueueTimeout(1, TimeUnit.SECONDS)
+                    .setContent(TEST_CONTENT)
+                    .start();
+            long start = System.nanoTime();
+            for (int i = 0; i < 5; i++)
+                assertEquals(HttpUtil.getHttpText(queueing), TEST_CONTENT);
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(250));
+        }
+    }
+
+    @Test
+    public void loadGeneratorClosedLoop() throws Exception {
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            SimpleHttpServer.ContextHandle context = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setContent(TEST_CONTENT)
+                    .startContext();
+            LoadGenerator.Result result = LoadGenerator.getBuilder()
+                    .setUrl(context.getUrl())
+                    .setConnections(2)
+                    .setWarmup(100, TimeUnit.MILLISECONDS)
+                    .setDuration(300, TimeUnit.MILLISECONDS)
+                    .run();
+            assertTrue(result.getRequests() > 0);
+            assertEquals(result.getErrors(), 0);
+            assertEquals(result.getResponseCodes(), Collections.singletonMap(200, result.getRequests()));
+            assertTrue(result.getLatency().getCount() >= result.getRequests());
+            assertTrue(context.getMetrics().getRequests() >= result.getRequests());
+        }
+    }
+
+    @Test
+    public void loadGeneratorOverHttps() throws Exception {
+        String url = SimpleHttpServer.getBuilder()
+                .setSsl()
+                .setContent(TEST_CONTENT)
+                .start();
+        LoadGenerator.Result result = LoadGenerator.getBuilder()
+                .setUrl(url)
+                .setWarmup(200, TimeUnit.MILLISECONDS)
+                .setDuration(200, TimeUnit.MILLISECONDS)
+                .run();
+        assertTrue(result.getRequests() > 0);
+        assertEquals(result.getErrors(), 0);
+    }
+
+    @Test
+    public void loadGeneratorOpenLoopCorrectsCoordinatedOmission() throws Exception {
+        String url = SimpleHttpServer.getBuilder()
+                .setEngine(SimpleHttpServer.Engine.NIO)
+                .setResponseDelay(50, TimeUnit.MILLISECONDS)
+                .setContent(TEST_CONTENT)
+                .start();
+        LoadGenerator.Result result = LoadGenerator.getBuilder()
+                .setUrl(url)
+                .setRequestsPerSecond(40)
+                .setDuration(1, TimeUnit.SECONDS)
+                .run();
+        assertEquals(result.getErrors(), 0);
+        assertTrue(result.toString(), result.getServiceTime().getValueAtPercentile(50) < TimeUnit.MILLISECONDS.toNanos(200));
+        assertTrue(result.toString(), result.getLatency().getMax() > TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    @Test
+    public void sinkDigestsUploads() throws Exception {
+        byte[] body = HttpUtil.readBytes(SimpleHttpServer.getGeneratedContentStream(3 * 1024 * 1024 + 5, 9));
+        String sha256 = toHex(MessageDigest.getInstance("SHA-256").digest(body));
+        List<SimpleHttpServer.Builder> builders = Arrays.asList(
+                SimpleHttpServer.getBuilder(),
+                SimpleHttpServer.getBuilder().setEngine(SimpleHttpServer.Engine.NIO),
+                SimpleHttpServer.getBuilder().setSsl());
+        for (SimpleHttpServer.Builder builder : builders) {
+            String url = builder.setSinkDigest(SimpleHttpServer.Digest.SHA_256).startSink();
+            for (boolean chunked : new boolean[]{false, true}) {
+                HttpURLConnection connection = upload(url, body, chunked);
+                assertEquals(connection.getHeaderField("X-Sink-Bytes"), Integer.toString(body.length));
+                assertEquals(connection.getHeaderField("X-Sink-Algorithm"), "SHA-256");
+                assertEquals(connection.getHeaderField("X-Sink-Checksum"), sha256);
+                assertTrue(HttpUtil.readUrlConnection(connection).startsWith("{\"bytes\":" + body.length +
+                        ",\"algorithm\":\"SHA-256\",\"checksum\":\"" + sha256 + "\",\"nanos\":"));
+            }
+        }
+    }
+
+    @Test
+    public void sinkComputesCrc32c() throws Exception {
+        byte[] body = TEST_CONTENT.getBytes();
+        java.util.zip.Checksum expected = getCrc32c();
+        expected.update(body, 0, body.length);
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            String url = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .startSink();
+            HttpURLConnection connection = upload(url, body, true);
+            assertEquals(connection.getHeaderField("X-Sink-Algorithm"), expected.getClass().getSimpleName());
+            assertEquals(connection.getHeaderField("X-Sink-Checksum"), String.format("%08x", expected.getValue()));
+        }
+    }
+
+    private static java.util.zip.Checksum getCrc32c() {
+        try {
+            return (java.util.zip.Checksum) Class.forName("java.util.zip.CRC32C").getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            return new java.util.zip.CRC32();
+        }
+    }
+
+    private static HttpURLConnection upload(String url, byte[] body, boolean chunked) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) HttpUtil.getUrlConnection(url);
+        connection.setDoOutput(true);
+        if (chunked)
+            connection.setChunkedStreamingMode(64 * 1024);
+        else
+            connection.setFixedLengthStreamingMode(body.length);
+        try (OutputStream os = connection.getOutputStream()) {
+            os.write(body);
+        }
+        return connection;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes)
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    @Test
+    public void recordAndReplay() throws IOException {
+        AtomicInteger backendRequests = new AtomicInteger();
+        SimpleHttpServer.ContextHandle backend = SimpleHttpServer.getBuilder()
+                .setHandler(httpExchange -> {
+                    backendRequests.incrementAndGet();
+                    byte[] body = (httpExchange.getRequestMethod() + " " + httpExchange.getRequestURI() + " " +
+                            new String(HttpUtil.readBytes(httpExchange.getRequestBody()))).getBytes();
+                    int responseCode = httpExchange.getRequestURI().getPath().endsWith("/missing") ? 404 : 200;
+                    httpExchange.getResponseHeaders().add("X-Backend", "recorded");
+                    httpExchange.getResponseHeaders().add("Set-Cookie", "a=1");
+                    httpExchange.getResponseHeaders().add("Set-Cookie", "b=2");
+                    httpExchange.sendResponseHeaders(responseCode, body.length);
+                    httpExchange.getResponseBody().write(body);
+                    httpExchange.close();
+                })
+                .startContext();
+        Path archive = Files.createTempFile("SimpleHttpServerTest", ".archive");
+        Files.delete(archive);
+        Path index = archive.resolveSibling(archive.getFileName() + ".idx");
+        try {
+            SimpleHttpServer.ContextHandle recorder = SimpleHttpServer.getBuilder()
+                    .startRecorderContext(backend.getUrl(), archive);
+            String backendPath = new URL(backend.getUrl()).getPath();
+            assertEquals(HttpUtil.getHttpText(recorder.getUrl() + "/items?id=1"),
+                    "GET " + backendPath + "/items?id=1 ");
+            assertArrayEquals(HttpUtil.postBytes(recorder.getUrl() + "/items", "one".getBytes(), false),
+                    ("POST " + backendPath + "/items one").getBytes());
+            assertArrayEquals(HttpUtil.postBytes(recorder.getUrl() + "/items", "two".getBytes(), true),
+                    ("POST " + backendPath + "/items two").getBytes());
+            assertEquals(getResponseCode(recorder.getUrl() + "/missing", "Accept", "*/*"), 404);
+            recorder.close();
+            backend.close();
+            assertEquals(backendRequests.get(), 4);
+            for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+                String url = SimpleHttpServer.getBuilder()
+                        .setEngine(engine)
+                        .startReplay(archive);
+                HttpURLConnection connection = (HttpURLConnection) HttpUtil.getUrlConnection(url + "/items?id=1");
+                assertEquals(HttpUtil.readUrlConnection(connection), "GET " + backendPath + "/items?id=1 ");
+                assertEquals(connection.getHeaderField("X-Backend"), "recorded");
+                assertEquals(connection.getHeaderFields().entrySet().stream()
+                        .filter(header -> "Set-Cookie".equalsIgnoreCase(header.getKey()))
+                        .flatMap(header -> header.getValue().stream())
+                        .sorted()
+                        .collect(Collectors.toList()), Arrays.asList("a=1", "b=2"));
+                assertArrayEquals(HttpUtil.postBytes(url + "/items", "two".getBytes(), false),
+                        ("POST " + backendPath + "/items two").getBytes());
+                assertArrayEquals(HttpUtil.postBytes(url + "/items", "one".getBytes(), true),
+                        ("POST " + backendPath + "/items one").getBytes());
+                assertEquals(getResponseCode(url + "/missing", "Accept", "*/*"), 404);
+                assertEquals(getResponseCode(url + "/items?id=2", "Accept", "*/*"), 404);
+                assertEquals(getResponseCode(url + "/items", "Accept", "*/*"), 404);
+            }
+            assertEquals(backendRequests.get(), 4);
+        } finally {
+            Files.deleteIfExists(archive);
+            Files.deleteIfExists(index);
+        }
+    }
+
+    @Test
+    public void replayRejectsOtherFiles() throws IOException {
+        Path file = Files.createTempFile("SimpleHttpServerTest", ".archive");
+        try {
+            Files.write(file, TEST_CONTENT.getBytes());
+            thrown.expect(IOException.class);
+            SimpleHttpServer.getBuilder().startReplay(file);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
     @Test
     public void responseCode500() throws IOException {
         String responseCode500Url = SimpleHttpServer.getBuilder()
@@ -92,6 +1004,25 @@ public class SimpleHttpServerTest {
         assertTrue(HttpUtil.getHttpResponseHeaders(url).contains("My2ndHeader: My2ndHeadersValue"));
     }
 
+    @Test
+    public void startedContextIgnoresLaterBuilderChanges() throws IOException {
+        SimpleHttpServer.Builder builder = SimpleHttpServer.getBuilder()
+                .setContent(TEST_CONTENT);
+        String url = builder.start();
+        builder.setContent("changed content").setResponseCode(500);
+        assertEquals(HttpUtil.getHttpText(url), TEST_CONTENT);
+    }
+
+    @Test
+    public void rejectsHeaderValuesWithLineBreaks() throws IOException {
+        Map<String, List<String>> headers = new HashMap<>();
+        headers.put("My1stHeader", Collections.singletonList("value\r\nInjected: header"));
+        thrown.expect(IllegalArgumentException.class);
+        SimpleHttpServer.getBuilder()
+                .setHeaders(headers)
+                .start();
+    }
+
     @Test
     public void sendsRedirect() throws IOException {
         String redirectTargetUrl = SimpleHttpServer.getBuilder()
@@ -134,26 +1065,645 @@ public class SimpleHttpServerTest {
         };
     }
 
+    @Test
+    public void dispatchRouting() throws IOException {
+        String url = SimpleHttpServer.getBuilder()
+                .setRouting(SimpleHttpServer.Routing.DISPATCH)
+                .setContent(TEST_CONTENT)
+                .start();
+        assertEquals(HttpUtil.getHttpText(url), TEST_CONTENT);
+        assertEquals(HttpUtil.getHttpText(url + "/sub/path"), TEST_CONTENT);
+    }
+
+    @Test
+    public void dispatchRoutingUnknownContext() throws IOException {
+        String url = SimpleHttpServer.getBuilder()
+                .setRouting(SimpleHttpServer.Routing.DISPATCH)
+                .start();
+        URLConnection connection = HttpUtil.getUrlConnection(url + "0");
+        thrown.expect(IOException.class);
+        HttpUtil.readUrlConnection(connection);
+    }
+
+    @Test
+    public void closedContextIsRemoved() throws IOException {
+        SimpleHttpServer.ContextHandle context = SimpleHttpServer.getBuilder()
+                .setContent(TEST_CONTENT)
+                .startContext();
+        assertEquals(HttpUtil.getHttpText(context.getUrl()), TEST_CONTENT);
+        context.close();
+        assertTrue(context.isClosed());
+        thrown.expect(IOException.class);
+        HttpUtil.getHttpText(context.getUrl());
+    }
+
+    @Test
+    public void idleContextIsEvicted() throws IOException, InterruptedException {
+        SimpleHttpServer.ContextHandle context = SimpleHttpServer.getBuilder()
+                .setIdleTimeout(100, TimeUnit.MILLISECONDS)
+                .setContent(TEST_CONTENT)
+                .startContext();
+        assertEquals(HttpUtil.getHttpText(context.getUrl()), TEST_CONTENT);
+        String url = SimpleHttpServer.getBuilder().setContent(TEST_CONTENT).start();
+        assertEquals(new URL(context.getUrl()).getPort(), new URL(url).getPort());
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!context.isClosed() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertTrue(context.isClosed());
+        assertEquals(HttpUtil.getHttpText(url), TEST_CONTENT);
+    }
+
+    @Test
+    public void leastRecentlyUsedContextIsEvicted() throws IOException {
+        SimpleHttpServer.Builder builder = SimpleHttpServer.getBuilder()
+                .setMaxContexts(2)
+                .setContent(TEST_CONTENT);
+        SimpleHttpServer.ContextHandle first = builder.startContext();
+        SimpleHttpServer.ContextHandle second = builder.startContext();
+        HttpUtil.getHttpText(first.getUrl());
+        SimpleHttpServer.ContextHandle third = builder.startContext();
+        assertTrue(second.isClosed());
+        assertFalse(first.isClosed());
+        assertFalse(third.isClosed());
+    }
+
+    @Test
+    public void boundedThreadPool() throws IOException {
+        String url = SimpleHttpServer.getBuilder()
+                .setExecutor(SimpleHttpServer.ServerExecutors.boundedThreadPool(
+                        2, 16, SimpleHttpServer.RejectionPolicy.OVERFLOW_THREAD))
+                .setContent(TEST_CONTENT)
+                .start();
+        assertEquals(HttpUtil.getHttpText(url), TEST_CONTENT);
+    }
+
+    @Test
+    public void overflowThreadKeepsDispatcherFree() throws Exception {
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            CountDownLatch started = new CountDownLatch(2);
+            CountDownLatch release = new CountDownLatch(1);
+            Set<String> threads = ConcurrentHashMap.newKeySet();
+            String url = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setExecutor(SimpleHttpServer.ServerExecutors.boundedThreadPool(
+                            1, 0, SimpleHttpServer.RejectionPolicy.OVERFLOW_THREAD))
+                    .setHandler(httpExchange -> {
+                        threads.add(Thread.currentThread().getName());
+                        started.countDown();
+                        try {
+                            release.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        byte[] content = TEST_CONTENT.getBytes();
+                        httpExchange.sendResponseHeaders(200, content.length);
+                        httpExchange.getResponseBody().write(content);
+                        httpExchange.close();
+                    })
+                    .start();
+            ExecutorService clients = Executors.newFixedThreadPool(2);
+            try {
+                Future<String> first = clients.submit(() -> HttpUtil.getHttpText(url));
+                Future<String> second = clients.submit(() -> HttpUtil.getHttpText(url));
+                assertTrue(started.await(10, TimeUnit.SECONDS));
+                release.countDown();
+                assertEquals(first.get(), TEST_CONTENT);
+                assertEquals(second.get(), TEST_CONTENT);
+                assertEquals(threads.size(), 2);
+                assertFalse(threads.toString(), threads.stream()
+                        .anyMatch(name -> name.contains("Dispatcher") || name.contains("nio")));
+            } finally {
+                clients.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    public void serviceUnavailableKeepsDispatcherFree() throws Exception {
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            String url = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setExecutor(SimpleHttpServer.ServerExecutors.boundedThreadPool(
+                            1, 0, SimpleHttpServer.RejectionPolicy.SERVICE_UNAVAILABLE))
+                    .setHandler(httpExchange -> {
+                        started.countDown();
+                        try {
+                            release.await(10, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        byte[] content = TEST_CONTENT.getBytes();
+                        httpExchange.sendResponseHeaders(200, content.length);
+                        httpExchange.getResponseBody().write(content);
+                        httpExchange.close();
+                    })
+                    .start();
+            URL target = new URL(url);
+            ExecutorService clients = Executors.newSingleThreadExecutor();
+            try (Socket uploader = new Socket(target.getHost(), target.getPort())) {
+                Future<String> first = clients.submit(() -> HttpUtil.getHttpText(url));
+                assertTrue(started.await(10, TimeUnit.SECONDS));
+                uploader.setSoTimeout(5000);
+                uploader.getOutputStream().write(("POST " + target.getPath() + " HTTP/1.1\r\nHost: localhost\r\n" +
+                        "Content-Length: 1000000\r\n\r\n").getBytes());
+                String statusLine = new BufferedReader(new InputStreamReader(uploader.getInputStream())).readLine();
+                assertTrue(statusLine, statusLine.startsWith("HTTP/1.1 503"));
+                release.countDown();
+                assertEquals(first.get(), TEST_CONTENT);
+                assertEquals(getOnceWorkerIsIdle(url), TEST_CONTENT);
+            } finally {
+                clients.shutdownNow();
+            }
+        }
+    }
+
+    private static String getOnceWorkerIsIdle(String url) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            HttpURLConnection connection = (HttpURLConnection) HttpUtil.getUrlConnection(url);
+            connection.setReadTimeout(1000);
+            try {
+                if (connection.getResponseCode() == 200 || attempt == 5)
+                    return HttpUtil.readUrlConnection(connection);
+            } catch (SocketTimeoutException e) {
+                if (attempt == 5)
+                    throw e;
+            }
+        }
+    }
+
+    @Test
+    public void failedShardReleasesBoundListeners() throws IOException {
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            try (ServerSocket occupied = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+                int port = occupied.getLocalPort() - 1;
+                new ServerSocket(port, 50, InetAddress.getLoopbackAddress()).close();
+                thrownBy(() -> SimpleHttpServer.getBuilder()
+                        .setEngine(engine)
+                        .setPort(port)
+                        .setShards(2)
+                        .start(), BindException.class);
+                new ServerSocket(port, 50, InetAddress.getLoopbackAddress()).close();
+            }
+        }
+    }
+
+    @Test
+    public void workStealingPool() throws IOException {
+        String url = SimpleHttpServer.getBuilder()
+                .setExecutor(SimpleHttpServer.ServerExecutors.workStealingPool(2))
+                .setContent(TEST_CONTENT)
+                .start();
+        assertEquals(HttpUtil.getHttpText(url), TEST_CONTENT);
+    }
+
+    @Test
+    public void virtualThreadPerExchange() throws IOException {
+        Assume.assumeTrue(SimpleHttpServer.ServerExecutors.isVirtualThreadSupported());
+        String url = SimpleHttpServer.getBuilder()
+                .setExecutor(SimpleHttpServer.ServerExecutors.virtualThreadPerExchange())
+                .setContent(TEST_CONTENT)
+                .start();
+        assertEquals(HttpUtil.getHttpText(url), TEST_CONTENT);
+    }
+
+    @Test
+    public void saturatedBoundedThreadPoolRespondsServiceUnavailable() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        String url = SimpleHttpServer.getBuilder()
+                .setExecutor(SimpleHttpServer.ServerExecutors.boundedThreadPool(
+                        1, 0, SimpleHttpServer.RejectionPolicy.SERVICE_UNAVAILABLE))
+                .setHandler(getBlockingHttpHandlerLambda(started, release))
+                .start();
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        Future<String> blocked = exec.submit(() -> HttpUtil.getHttpText(url));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        URLConnection connection = HttpUtil.getUrlConnection(url);
+        assertEquals(((HttpURLConnection) connection).getResponseCode(), 503);
+        release.countDown();
+        assertEquals(blocked.get(), TEST_CONTENT);
+    }
+
+    private HttpHandler getBlockingHttpHandlerLambda(CountDownLatch started, CountDownLatch release) {
+        byte[] testContent = TEST_CONTENT.getBytes();
+        return httpExchange -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            httpExchange.sendResponseHeaders(200, testContent.length);
+            OutputStream os = httpExchange.getResponseBody();
+            os.write(testContent);
+            os.close();
+        };
+    }
+
+    @Test
+    public void shardedListenersSpreadContexts() throws IOException {
+        SimpleHttpServer.Builder builder = SimpleHttpServer.getBuilder()
+                .setShards(2)
+                .setContent(TEST_CONTENT);
+        String first = builder.start();
+        String second = builder.start();
+        assertEquals(HttpUtil.getHttpText(first), TEST_CONTENT);
+        assertEquals(HttpUtil.getHttpText(second), TEST_CONTENT);
+        assertFalse(new URL(first).getPort() == new URL(second).getPort());
+    }
+
+    @Test
+    public void nioEngine() throws IOException {
+        String url = SimpleHttpServer.getBuilder()
+                .setEngine(SimpleHttpServer.Engine.NIO)
+                .setHeaders("My1stHeader: My1stHeadersValue")
+                .setContent(TEST_CONTENT)
+                .start();
+        assertEquals(HttpUtil.getHttpText(url), TEST_CONTENT);
+        assertTrue(HttpUtil.getHttpResponseHeaders(url).contains("My1stHeader: My1stHeadersValue"));
+    }
+
+    @Test
+    public void handlersSeeTheServerAddress() throws IOException {
+        for (SimpleHttpServer.Engine engine : SimpleHttpServer.Engine.values()) {
+            String url = SimpleHttpServer.getBuilder()
+                    .setEngine(engine)
+                    .setHandler(httpExchange -> {
+                        byte[] port = Integer.toString(httpExchange.getHttpContext().getServer().getAddress().getPort())
+                                .getBytes();
+                        httpExchange.sendResponseHeaders(200, port.length);
+                        httpExchange.getResponseBody().write(port);
+                        httpExchange.close();
+                    })
+                    .start();
+            assertEquals(HttpUtil.getHttpText(url), Integer.toString(new URL(url).getPort()));
+        }
+    }
+
+    @Test
+    public void nioEngineSendsHeadersMap() throws IOException {
+        Map<String, List<String>> headers = new HashMap<>();
+        headers.put("My1stHeader", Collections.singletonList("My1stHeadersValue"));
+        headers.put("Content-Length", Collections.singletonList("1000"));
+        String url = SimpleHttpServer.getBuilder()
+                .setEngine(SimpleHttpServer.Engine.NIO)
+                .setHeaders(headers)
+                .setContent(TEST_CONTENT)
+                .start();
+        assertTrue(HttpUtil.getHttpResponseHeaders(url).contains("My1stHeader: My1stHeadersValue"));
+        assertEquals(HttpUtil.getHttpText(url), TEST_CONTENT);
+    }
+
+    @Test
+    public void nioEngineResponseCode() throws IOException {
+        String url = SimpleHttpServer.getBuilder()
+                .setEngine(SimpleHttpServer.Engine.NIO)
+                .setResponseCode(402)
+                .start();
+        assertEquals(((HttpURLConnection) HttpUtil.getUrlConnection(url)).getResponseCode(), 402);
+    }
+
+    @Test
+    public void nioEngineEchoesChunkedRequestBody() throws IOException {
+        String url = SimpleHttpServer.getBuilder()
+                .setEngine(SimpleHttpServer.Engine.NIO)
+                .startEcho();
+        HttpURLConnection connection = (HttpURLConnection) HttpUtil.getUrlConnection(url);
+        connection.setDoOutput(true);
+        connection.setChunkedStreamingMode(4);
+        try (OutputStream os = connection.getOutputStream()) {
+            os.write(TEST_CONTENT.getBytes());
+        }
+        assertTrue(HttpUtil.readUrlConnection(connection).endsWith("REQUEST BODY:" + TEST_CONTENT));
+    }
+
+    @Test
+    public void nioEnginePipelinesKeepAliveRequests() throws IOException {
+        URL url = new URL(SimpleHttpServer.getBuilder()
+                .setEngine(SimpleHttpServer.Engine.NIO)
+                .setContent(TEST_CONTENT)
+                .start());
+        String request = "GET " + url.getPath() + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+        try (Socket socket = new Socket(url.getHost(), url.getPort())) {
+            socket.getOutputStream().write((request + request).getBytes());
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            assertEquals(readRawResponseBody(in), TEST_CONTENT);
+            assertEquals(readRawResponseBody(in), TEST_CONTENT);
+        }
+    }
+
+    @Test
+    public void nioEngineRejectsMalformedRequests() throws IOException {
+        URL url = new URL(SimpleHttpServer.getBuilder()
+                .setEngine(SimpleHttpServer.Engine.NIO)
+                .startEcho());
+        String[] requests = {
+                "POST " + url.getPath() + " HTTP/1.1\r\nContent-Length: abc\r\n\r\n",
+                "POST " + url.getPath() + " HTTP/1.1\r\nContent-Length: -5\r\n\r\n",
+                "POST " + url.getPath() + " HTTP/1.1\r\nContent-Length: 5, 6\r\n\r\n",
+                "POST " + url.getPath() + " HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 6\r\n\r\n",
+                "POST " + url.getPath() + " HTTP/1.1\r\nContent-Length: 5\r\nTransfer-Encoding: chunked\r\n\r\n",
+                "GET " + url.getPath() + " extra HTTP/1.1\r\n\r\n",
+                "GET " + url.getPath() + " HTTP/1.1\r\n\r\nGARBAGE\r\n\r\n"};
+        for (String request : requests) {
+            try (Socket socket = new Socket(url.getHost(), url.getPort())) {
+                socket.setSoTimeout(5000);
+                socket.getOutputStream().write(request.getBytes());
+                String response = new String(HttpUtil.readBytes(socket.getInputStream()));
+                assertTrue(request + response, response.contains("HTTP/1.1 400 "));
+            }
+        }
+    }
+
+    @Test
+    public void echoRejectsInvalidContentLength() throws IOException {
+        URL url = new URL(SimpleHttpServer.getBuilder()
+                .setEngine(SimpleHttpServer.Engine.NIO)
+                .setHttp2(true)
+                .startEcho());
+        String request = "POST " + url.getPath() + " HTTP/1.1\r\nContent-Length: 5, 5\r\n\r\nHello";
+        try (Socket socket = new Socket(url.getHost(), url.getPort())) {
+            socket.getOutputStream().write(request.getBytes());
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            assertTrue(readRawResponseBody(in).endsWith("Hello"));
+        }
+        try (Socket socket = new Socket(url.getHost(), url.getPort())) {
+            Http2Client client = new Http2Client(socket);
+            client.writePreface();
+            String[] contentLengths = {"abc", "-5", "5, 6"};
+            for (int i = 0; i < contentLengths.length; i++) {
+                ByteArrayOutputStream block = new ByteArrayOutputStream();
+                Http2Client.writeField(block, ":method", "POST");
+                Http2Client.writeField(block, ":scheme", "http");
+                Http2Client.writeField(block, ":path", url.getPath());
+                Http2Client.writeField(block, "content-length", contentLengths[i]);
+                client.writeHeaderBlock(2 * i + 1, block.toByteArray());
+            }
+            client.readResponses(contentLengths.length);
+            for (int i = 0; i < contentLengths.length; i++)
+                assertEquals(client.getStatus(2 * i + 1), 400);
+        }
+    }
+
+    private static String readRawResponseBody(BufferedReader in) throws IOException {
+        assertTrue(in.readLine().startsWith("HTTP/1.1 200"));
+        int contentLength = 0;
+        String line;
+        while (!(line = in.readLine()).isEmpty())
+            if (line.toLowerCase().startsWith("content-length:"))
+                contentLength = Integer.parseInt(line.substring(15).trim());
+        char[] body = new char[contentLength];
+        int read = 0;
+        while (read < contentLength)
+            read += in.read(body, read, contentLength - read);
+        return new String(body);
+    }
+
+    @Test
+    public void unixDomainSocket() throws Exception {
+        Assume.assumeTrue(SimpleHttpServer.isUnixDomainSocketSupported());
+        Path directory = Files.createTempDirectory("SimpleHttpServerTest");
+        Path socket = directory.resolve("server.sock");
+        try {
+            SimpleHttpServer.Builder builder = SimpleHttpServer.getBuilder()
+                    .setEngine(SimpleHttpServer.Engine.NIO)
+                    .setUnixDomainSocket(socket);
+            String url = builder.setContent(TEST_CONTENT).start();
+            String echoUrl = builder.startEcho();
+            assertTrue(url, url.startsWith("http+unix://"));
+            assertTrue(Files.exists(socket));
+            assertEquals(getOverUnixDomainSocket(socket, new URL(url.replace("http+unix", "http")).getPath()),
+                    TEST_CONTENT);
+            assertTrue(getOverUnixDomainSocket(socket, new URL(echoUrl.replace("http+unix", "http")).getPath())
+                    .startsWith("GET "));
+            LoadGenerator.Result result = LoadGenerator.getBuilder()
+                    .setUrl(url)
+                    .setConnections(2)
+                    .setDuration(200, TimeUnit.MILLISECONDS)
+                    .run();
+            assertTrue(result.getRequests() > 0);
+            assertEquals(result.getResponseCodes(), Collections.singletonMap(200, result.getRequests()));
+            thrownBy(() -> SimpleHttpServer.getBuilder().setUnixDomainSocket(socket).start(),
+                    UnsupportedOperationException.class);
+            SimpleHttpServer.stop();
+            assertFalse(Files.exists(socket));
+        } finally {
+            Files.deleteIfExists(socket);
+            Files.delete(directory);
+        }
+    }
+
+    private static String getOverUnixDomainSocket(Path socket, String path) throws IOException {
+        try (SocketChannel channel = SimpleHttpServer.connectUnixDomainSocket(socket)) {
+            channel.write(ByteBuffer.wrap(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n" +
+                    "Connection: close\r\n\r\n").getBytes()));
+            String response = new String(HttpUtil.readBytes(Channels.newInputStream(channel)));
+            return response.substring(response.indexOf("\r\n\r\n") + 4);
+        }
+    }
+
+    @Test
+    public void http2PriorKnowledgeMultiplexesStreams() throws IOException {
+        SimpleHttpServer.Builder builder = SimpleHttpServer.getBuilder()
+                .setEngine(SimpleHttpServer.Engine.NIO)
+                .setHttp2(true);
+        URL url = new URL(builder.setContent(TEST_CONTENT).start());
+        URL echoUrl = new URL(builder.startEcho());
+        byte[] body = new byte[60000];
+        new Random(1).nextBytes(body);
+        byte[] huffmanEncodedRequest = {(byte) 0x82, (byte) 0x86, (byte) 0x84, 0x41, (byte) 0x8c, (byte) 0xf1,
+                (byte) 0xe3, (byte) 0xc2, (byte) 0xe5, (byte) 0xf2, 0x3a, 0x6b, (byte) 0xa0, (byte) 0xab,
+                (byte) 0x90, (byte) 0xf4, (byte) 0xff};
+        try (Socket socket = new Socket(url.getHost(), url.getPort())) {
+            Http2Client client = new Http2Client(socket);
+            client.writePreface();
+            client.writeRequest(1, "GET", url.getPath(), null);
+            client.writeRequest(3, "POST", echoUrl.getPath(), body);
+            client.writeHeaderBlock(5, huffmanEncodedRequest);
+            client.readResponses(3);
+            assertEquals(client.getStatus(1), 200);
+            assertEquals(new String(client.getBody(1)), TEST_CONTENT);
+            assertEquals(client.getStatus(3), 200);
+            byte[] echo = client.getBody(3);
+            assertTrue(new String(echo).startsWith("POST " + echoUrl.getPath() + " HTTP/2.0"));
+            assertArrayEquals(Arrays.copyOfRange(echo, echo.length - body.length, echo.length), body);
+            assertEquals(client.getStatus(5), 404);
+        }
+        assertEquals(HttpUtil.getHttpText(url.toString()), TEST_CONTENT);
+    }
+
+    @Test
+    public void http2UpgradeFromHttp11() throws IOException {
+        URL url = new URL(SimpleHttpServer.getBuilder()
+                .setEngine(SimpleHttpServer.Engine.NIO)
+                .setHttp2(true)
+                .setContent(TEST_CONTENT)
+                .start());
+        try (Socket socket = new Socket(url.getHost(), url.getPort())) {
+            socket.getOutputStream().write(("GET " + url.getPath() + " HTTP/1.1\r\nHost: localhost\r\n" +
+                    "Connection: Upgrade, HTTP2-Settings\r\nUpgrade: h2c\r\nHTTP2-Settings: AAEAAAAA\r\n\r\n")
+                    .getBytes());
+            Http2Client client = new Http2Client(socket);
+            assertTrue(client.readHttp11Head().startsWith("HTTP/1.1 101 "));
+            client.writePreface();
+            client.readResponses(1);
+            assertEquals(client.getStatus(1), 200);
+            assertEquals(new String(client.getBody(1)), TEST_CONTENT);
+        }
+        thrownBy(() -> SimpleHttpServer.getBuilder().setHttp2(true).start(), UnsupportedOperationException.class);
+    }
+
+    @Test
+    public void launcherStartsAndReloadsManifestRoutes() throws IOException {
+        Path directory = Files.createTempDirectory("SimpleHttpServerTest");
+        Path manifest = directory.resolve("stubs.properties");
+        Path file = directory.resolve("content.txt");
+        Files.write(file, TEST_CONTENT.getBytes());
+        Files.write(manifest, ("route.created.status=201\nroute.created.header.X-Stub=created\n" +
+                "route.created.content=first\nroute.echo.type=echo\nroute.echo.path=/echo-stub\n" +
+                "route.file.file=content.txt\n").getBytes());
+        Launcher launcher = Launcher.start(manifest);
+        try {
+            assertTrue(launcher.getUrl("created").endsWith("/created"));
+            HttpURLConnection connection = (HttpURLConnection) new URL(launcher.getUrl("created")).openConnection();
+            assertEquals(connection.getResponseCode(), 201);
+            assertEquals(connection.getHeaderField("X-Stub"), "created");
+            assertEquals(new String(HttpUtil.readBytes(connection.getInputStream())), "first");
+            String echoUrl = launcher.getUrl("echo");
+            assertTrue(echoUrl.endsWith("/echo-stub"));
+            assertEquals(HttpUtil.getHttpText(launcher.getUrl("file")), TEST_CONTENT);
+            thrownBy(() -> SimpleHttpServer.getBuilder().setContextPath("/echo-stub").start(),
+                    IllegalStateException.class);
+            thrownBy(() -> SimpleHttpServer.getBuilder().setContextPath("/7"), IllegalArgumentException.class);
+            assertEquals(launcher.reload(), Collections.emptyList());
+
+            Files.write(manifest, ("route.created.status=201\nroute.created.header.X-Stub=created\n" +
+                    "route.created.content=second\nroute.file.file=content.txt\nroute.added.content=added\n")
+                    .getBytes());
+            assertEquals(launcher.reload(), Arrays.asList("created", "echo", "added"));
+            assertEquals(HttpUtil.getHttpText(launcher.getUrl("created")), "second");
+            assertEquals(HttpUtil.getHttpText(launcher.getUrl("added")), "added");
+            assertEquals(((HttpURLConnection) new URL(echoUrl).openConnection()).getResponseCode(), 404);
+            assertEquals(launcher.getUrl("echo"), null);
+
+            Files.write(manifest, "route.created.type=unknown\n".getBytes());
+            thrownBy(launcher::reload, IllegalArgumentException.class);
+            assertEquals(HttpUtil.getHttpText(launcher.getUrl("created")), "second");
+
+            Files.write(manifest, ("route.created.status=201\nroute.created.content=third\n" +
+                    "route.file.file=content.txt\nroute.later.status=invalid\n").getBytes());
+            thrownBy(launcher::reload, NumberFormatException.class);
+            assertEquals(HttpUtil.getHttpText(launcher.getUrl("created")), "second");
+            assertEquals(HttpUtil.getHttpText(launcher.getUrl("added")), "added");
+        } finally {
+            launcher.close();
+            Files.delete(file);
+            Files.delete(manifest);
+            Files.delete(directory);
+        }
+    }
+
     @Test
     public void multiThreaded() throws IOException, InterruptedException {
         int numberOfThreads = Runtime.getRuntime().availableProcessors() + 1;
         int timeoutInMilliseconds = 2000;
-        runTestThreads(numberOfThreads, timeoutInMilliseconds);
+        runTestThreads(numberOfThreads, timeoutInMilliseconds, () -> SimpleHttpServer.getBuilder().setTcpNoDelay(true));
+        for (int threads = 1; threads <= 8; threads *= 2)
+            registerAndCloseConcurrently(threads);
+    }
+
+    private static void registerAndCloseConcurrently(int threads) throws IOException, InterruptedException {
+        int registrationsPerThread = 500;
+        SimpleHttpServer.getBuilder().start();
+        Set<String> urls = ConcurrentHashMap.newKeySet();
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        CountDownLatch ready = new CountDownLatch(threads);
+        List<Callable<Void>> tasks = Stream.<Callable<Void>>generate(() -> () -> {
+            ready.countDown();
+            ready.await();
+            for (int i = 0; i < registrationsPerThread; i++) {
+                SimpleHttpServer.ContextHandle context = SimpleHttpServer.getBuilder()
+                        .setContent(TEST_CONTENT)
+                        .startContext();
+                assertTrue(urls.add(context.getUrl()));
+                context.close();
+            }
+            return null;
+        }).limit(threads).collect(Collectors.toList());
+        exec.invokeAll(tasks, 10, TimeUnit.SECONDS).forEach(SimpleHttpServerTest::finishFuture);
+        exec.shutdown();
+        assertEquals(urls.size(), threads * registrationsPerThread);
+        HttpURLConnection closed = (HttpURLConnection) new URL(urls.iterator().next()).openConnection();
+        assertEquals(closed.getResponseCode(), 404);
+    }
+
+    @Test
+    public void registrationIsSafeAgainstConcurrentStop() throws Exception {
+        int numberOfThreads = 4;
+        AtomicBoolean stopping = new AtomicBoolean(true);
+        ExecutorService exec = Executors.newCachedThreadPool();
+        try {
+            Future<?> stopper = exec.submit(() -> {
+                for (int i = 0; i < 20; i++) {
+                    SimpleHttpServer.stop();
+                    Thread.sleep(5);
+                }
+                stopping.set(false);
+                return null;
+            });
+            List<Future<String>> starters = new ArrayList<>();
+            for (int i = 0; i < numberOfThreads; i++)
+                starters.add(exec.submit(() -> {
+                    Set<String> urls = new HashSet<>();
+                    while (stopping.get()) {
+                        try {
+                            assertTrue(urls.add(SimpleHttpServer.getBuilder().setContent(TEST_CONTENT).start()));
+                        } catch (IOException e) {
+                            assertEquals(e.getMessage(), "Server stopped while the context was being started");
+                        }
+                    }
+                    return SimpleHttpServer.getBuilder().setContent(TEST_CONTENT).start();
+                }));
+            stopper.get();
+            for (Future<String> starter : starters)
+                assertEquals(HttpUtil.getHttpText(starter.get()), TEST_CONTENT);
+        } finally {
+            exec.shutdown();
+        }
+    }
+
+    @Test
+    public void multiThreadedDispatchRouting() throws IOException, InterruptedException {
+        int numberOfThreads = Runtime.getRuntime().availableProcessors() + 1;
+        int timeoutInMilliseconds = 2000;
+        runTestThreads(numberOfThreads, timeoutInMilliseconds,
+                () -> SimpleHttpServer.getBuilder().setRouting(SimpleHttpServer.Routing.DISPATCH).setTcpNoDelay(true));
     }
 
-    private static void runTestThreads(int numberOfThreads, int timeoutInMilliseconds) throws InterruptedException {
+    @Test
+    public void multiThreadedNioEngine() throws IOException, InterruptedException {
+        int numberOfThreads = Runtime.getRuntime().availableProcessors() + 1;
+        int timeoutInMilliseconds = 2000;
+        runTestThreads(numberOfThreads, timeoutInMilliseconds,
+                () -> SimpleHttpServer.getBuilder().setEngine(SimpleHttpServer.Engine.NIO));
+    }
+
+    private static void runTestThreads(int numberOfThreads, int timeoutInMilliseconds,
+                                       Supplier<SimpleHttpServer.Builder> builders) throws InterruptedException {
         ExecutorService exec = Executors.newCachedThreadPool();
         List<Callable<Void>> tasks = Stream
-                .generate(SimpleHttpServerTest::getTestFiftyServerContextsTask)
+                .generate(() -> getTestFiftyServerContextsTask(builders))
                 .limit(numberOfThreads)
                 .collect(Collectors.toList());
         exec.invokeAll(tasks, timeoutInMilliseconds, TimeUnit.MILLISECONDS)
                 .forEach(SimpleHttpServerTest::finishFuture);
     }
 
-    private static Callable<Void> getTestFiftyServerContextsTask() {
+    private static Callable<Void> getTestFiftyServerContextsTask(Supplier<SimpleHttpServer.Builder> builders) {
         return () -> {
-            testFiftyServerContexts();
+            testFiftyServerContexts(builders);
             return null;
         };
     }
@@ -170,20 +1720,21 @@ public class SimpleHttpServerTest {
         }
     }
 
-    private static void testFiftyServerContexts() throws IOException {
+    private static void testFiftyServerContexts(Supplier<SimpleHttpServer.Builder> builders) throws IOException {
         String testContent = TEST_CONTENT + RandomString.get();
         for (int i = 0; i < 50; i++)
-            testServerContext(testContent);
+            testServerContext(testContent, builders);
     }
 
-    private static void testServerContext(String testContent) throws IOException {
-        String url = startServerContextOrDie(testContent);
+    private static void testServerContext(String testContent, Supplier<SimpleHttpServer.Builder> builders) throws IOException {
+        String url = startServerContextOrDie(testContent, builders);
         testContentDelivery(testContent, url);
         sleepRandomMilliseconds();
     }
 
-    private static String startServerContextOrDie(String testContent) throws IOException {
-        return startServerContext(testContent);
+    private static String startServerContextOrDie(String testContent, Supplier<SimpleHttpServer.Builder> builders)
+            throws IOException {
+        return startServerContext(testContent, builders);
     }
 
     private static void testContentDelivery(String testContent, String url) throws IOException {
@@ -199,8 +1750,9 @@ public class SimpleHttpServerTest {
         }
     }
 
-    private static String startServerContext(String testContent) throws IOException {
-        return SimpleHttpServer.getBuilder()
+    private static String startServerContext(String testContent, Supplier<SimpleHttpServer.Builder> builders)
+            throws IOException {
+        return builders.get()
                 .setContent(testContent)
                 .start();
     }
@@ -228,7 +1780,7 @@ public class SimpleHttpServerTest {
         }
 
         private static void setTestServerSslCertificates(URLConnection connection) {
-            ((HttpsURLConnection) connection).setSSLSocketFactory(SimpleHttpServer.sslContext.getSocketFactory());
+            ((HttpsURLConnection) connection).setSSLSocketFactory(SimpleHttpServer.getSslContext().getSocketFactory());
             ((HttpsURLConnection) connection).setHostnameVerifier((s, sslSession) -> true);
         }
 
@@ -246,6 +1798,33 @@ public class SimpleHttpServerTest {
             return response.toString();
         }
 
+        private static byte[] postBytes(String url, byte[] body, boolean chunked) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) getUrlConnection(url);
+            connection.setDoOutput(true);
+            if (chunked)
+                connection.setChunkedStreamingMode(8192);
+            else
+                connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(body);
+            }
+            return readBytes(connection.getInputStream());
+        }
+
+        private static byte[] getHttpBytes(String url) throws IOException {
+            return readBytes(getUrlConnection(url).getInputStream());
+        }
+
+        private static byte[] readBytes(InputStream in) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1)
+                bytes.write(buffer, 0, count);
+            in.close();
+            return bytes.toByteArray();
+        }
+
         private static String getHttpResponseHeaders(String url) throws IOException {
             URLConnection connection = getUrlConnection(url);
             return connection.getHeaderFields().entrySet().stream()
@@ -259,6 +1838,136 @@ public class SimpleHttpServerTest {
         }
     }
 
+    private static class Http2Client {
+
+        private static final int[] STATIC_STATUS_CODES = {200, 204, 206, 304, 400, 404, 500};
+        private final DataInputStream in;
+        private final OutputStream out;
+        private final Map<Integer, Integer> statuses = new HashMap<>();
+        private final Map<Integer, ByteArrayOutputStream> bodies = new HashMap<>();
+
+        Http2Client(Socket socket) throws IOException {
+            in = new DataInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+        }
+
+        private String readHttp11Head() throws IOException {
+            StringBuilder head = new StringBuilder();
+            while (head.length() < 4 || !head.substring(head.length() - 4).equals("\r\n\r\n"))
+                head.append((char) in.readUnsignedByte());
+            return head.toString();
+        }
+
+        private void writePreface() throws IOException {
+            out.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes());
+            writeFrame(0x4, 0, 0, new byte[]{0, 0x1, 0, 0, 0, 0, 0, 0x4, 0, 0x10, 0, 0});
+            writeFrame(0x8, 0, 0, new byte[]{0, 0x10, 0, 0});
+        }
+
+        private void writeRequest(int streamId, String method, String path, byte[] body) throws IOException {
+            ByteArrayOutputStream block = new ByteArrayOutputStream();
+            writeField(block, ":method", method);
+            writeField(block, ":scheme", "http");
+            writeField(block, ":path", path);
+            writeField(block, ":authority", "localhost");
+            if (body != null)
+                writeField(block, "content-length", Integer.toString(body.length));
+            writeFrame(0x1, body == null ? 0x5 : 0x4, streamId, block.toByteArray());
+            for (int offset = 0; body != null && offset < body.length; offset += 16384) {
+                int end = Math.min(body.length, offset + 16384);
+                writeFrame(0x0, end == body.length ? 0x1 : 0, streamId, Arrays.copyOfRange(body, offset, end));
+            }
+        }
+
+        private void writeHeaderBlock(int streamId, byte[] block) throws IOException {
+            writeFrame(0x1, 0x5, streamId, block);
+        }
+
+        private static void writeField(ByteArrayOutputStream block, String name, String value) {
+            block.write(0);
+            block.write(name.length());
+            block.write(name.getBytes(), 0, name.length());
+            block.write(value.length());
+            block.write(value.getBytes(), 0, value.length());
+        }
+
+        private void writeFrame(int type, int flags, int streamId, byte[] payload) throws IOException {
+            ByteBuffer frame = ByteBuffer.allocate(9 + payload.length);
+            frame.put((byte) (payload.length >>> 16)).putShort((short) payload.length)
+                    .put((byte) type).put((byte) flags).putInt(streamId).put(payload);
+            out.write(frame.array());
+        }
+
+        private void readResponses(int count) throws IOException {
+            while (count > 0) {
+                int length = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+                int type = in.readUnsignedByte();
+                int flags = in.readUnsignedByte();
+                int streamId = in.readInt() & 0x7fffffff;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if (type == 0x4 && (flags & 0x1) == 0)
+                    writeFrame(0x4, 0x1, 0, new byte[0]);
+                if (type == 0x1)
+                    statuses.put(streamId, readStatus(ByteBuffer.wrap(payload)));
+                if (type == 0x0)
+                    bodies.computeIfAbsent(streamId, id -> new ByteArrayOutputStream()).write(payload, 0, length);
+                if ((type == 0x0 || type == 0x1) && (flags & 0x1) != 0)
+                    count--;
+            }
+        }
+
+        private static int readStatus(ByteBuffer block) {
+            int status = 0;
+            while (block.hasRemaining()) {
+                int b = block.get(block.position()) & 0xff;
+                if ((b & 0x80) != 0) {
+                    int index = readInteger(block, 7);
+                    if (index >= 8 && index <= 14)
+                        status = STATIC_STATUS_CODES[index - 8];
+                } else if ((b & 0xe0) == 0x20) {
+                    readInteger(block, 5);
+                } else {
+                    int index = readInteger(block, (b & 0x40) != 0 ? 6 : 4);
+                    String name = index == 0 ? readString(block) : null;
+                    String value = readString(block);
+                    if (index >= 8 && index <= 14 || ":status".equals(name))
+                        status = Integer.parseInt(value);
+                }
+            }
+            return status;
+        }
+
+        private static int readInteger(ByteBuffer block, int prefix) {
+            int mask = (1 << prefix) - 1;
+            int value = block.get() & mask;
+            if (value < mask)
+                return value;
+            int b;
+            int shift = 0;
+            do {
+                b = block.get() & 0xff;
+                value += (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        private static String readString(ByteBuffer block) {
+            byte[] value = new byte[readInteger(block, 7)];
+            block.get(value);
+            return new String(value);
+        }
+
+        private int getStatus(int streamId) {
+            return statuses.get(streamId);
+        }
+
+        private byte[] getBody(int streamId) {
+            return bodies.getOrDefault(streamId, new ByteArrayOutputStream()).toByteArray();
+        }
+    }
+
     private static class RandomString {
 
         private static final char[] SYMBOLS = "0123456789abcdefghijklmnopqrstuvwxyz".toCharArray();